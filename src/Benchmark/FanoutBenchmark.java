@@ -0,0 +1,215 @@
+package Benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ProtocolSocket.Header;
+import ProtocolSocket.ProtocolID;
+import ProtocolSocket.ProtocolSocket;
+import Server.ServerConfig;
+import Server.ServerManager;
+
+/**
+ * Measures the time from sending a message to the global channel until its last member has received it, once with
+ * the fan-out on the shard thread and once split into parallel partitions. The members are plaintext loopback
+ * connections that are read by a single selector thread.
+ * Usage: FanoutBenchmark [MEMBERS...], the number of messages per run is set with -Dbench.messages (default 20).
+ * javachat.* system properties configure the server as usual
+ * @author etsubu
+ *
+ */
+public class FanoutBenchmark {
+	private static final int[] DEFAULT_MEMBERS = {1000, 4000, 8000};
+
+	/**
+	 * Incoming bytes of one member
+	 */
+	private static class Member {
+		private final SocketChannel channel;
+		private final ByteBuffer buffer;
+
+		private Member(SocketChannel channel) {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocate(1 << 16);
+		}
+	}
+
+	private final int members;
+	private final int messages;
+	private final AtomicIntegerArray delivered;
+	private final AtomicLongArray lastDelivery;
+	private volatile boolean running;
+
+	private FanoutBenchmark(int members, int messages) {
+		this.members = members;
+		this.messages = messages;
+		this.delivered = new AtomicIntegerArray(messages);
+		this.lastDelivery = new AtomicLongArray(messages);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = args.length == 0 ? DEFAULT_MEMBERS : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+		int messages = Integer.getInteger("bench.messages", 20);
+		System.out.println("members\tmode\tmedian_ms\tp90_ms\tmax_ms");
+		for(int size : sizes) {
+			new FanoutBenchmark(size, messages).run(false);
+			new FanoutBenchmark(size, messages).run(true);
+		}
+	}
+
+	/**
+	 * Runs the benchmark against a fresh server and prints the time-to-last-delivery percentiles
+	 * @param parallel True to split the fan-out into partitions, false to deliver on the shard thread
+	 * @throws Exception If the loopback connections fail
+	 */
+	private void run(boolean parallel) throws Exception {
+		ServerConfig config = new ServerConfig();
+		config.set("ratelimit.enabled", "false");
+		config.set("hotspots.enabled", "false");
+		if(!parallel) {
+			config.set("fanout.parallelThreshold", "0");
+		}
+		ServerManager manager = new ServerManager(config);
+		ServerSocket server = new ServerSocket(0, this.members, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(() -> {
+			try {
+				while(true) {
+					Socket socket = server.accept();
+					socket.setTcpNoDelay(true);
+					manager.addUser(new ProtocolSocket(socket));
+				}
+			} catch(IOException e) {
+				// Closed at the end of the run
+			}
+		}, "bench-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		Selector selector = Selector.open();
+		List<Member> connected = new ArrayList<>();
+		for(int i = 0; i < this.members; i++) {
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+			channel.socket().setTcpNoDelay(true);
+			write(channel, "m" + i, ProtocolID.CLIENT_NICKNAME);
+			channel.configureBlocking(false);
+			Member member = new Member(channel);
+			channel.register(selector, SelectionKey.OP_READ, member);
+			connected.add(member);
+		}
+		this.running = true;
+		Thread reader = new Thread(() -> readLoop(selector), "bench-reader");
+		reader.setDaemon(true);
+		reader.start();
+		while(manager.getGlobalChannel().getMemberCount() < this.members) {
+			Thread.sleep(10);
+		}
+		// Let the join notifications drain before measuring
+		Thread.sleep(Math.max(500, this.members / 4));
+
+		SocketChannel sender = connected.get(0).channel;
+		long[] elapsed = new long[this.messages];
+		for(int i = 0; i < this.messages; i++) {
+			long start = System.nanoTime();
+			write(sender, ServerManager.GLOBAL_CHANNEL_ID + ":" + i, ProtocolID.CHANNEL_BROADCAST);
+			while(this.lastDelivery.get(i) == 0) {
+				Thread.onSpinWait();
+			}
+			elapsed[i] = this.lastDelivery.get(i) - start;
+		}
+		Arrays.sort(elapsed);
+		System.out.printf("%d\t%s\t%.3f\t%.3f\t%.3f%n", this.members, parallel ? "parallel" : "shard",
+				elapsed[elapsed.length / 2] / 1e6, elapsed[(int) (elapsed.length * 0.9)] / 1e6, elapsed[elapsed.length - 1] / 1e6);
+
+		this.running = false;
+		selector.wakeup();
+		reader.join();
+		for(Member member : connected) {
+			member.channel.close();
+		}
+		selector.close();
+		server.close();
+		manager.getShards().shutdown();
+		manager.getFanout().shutdown();
+		manager.getOutbound().shutdown();
+	}
+
+	/**
+	 * Writes a packet to a member connection
+	 * @param channel Connection of the member
+	 * @param message Payload of the packet
+	 * @param type Type of the packet
+	 * @throws IOException If the write fails
+	 */
+	private static void write(SocketChannel channel, String message, ProtocolID type) throws IOException {
+		byte[] data = message.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(Header.HEADER_SIZE + data.length);
+		buffer.put(Header.toBytes(data.length, type.ordinal())).put(data).flip();
+		synchronized(channel) {
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Reads every member connection and records when each message has reached all members
+	 * @param selector Selector of the member connections
+	 */
+	private void readLoop(Selector selector) {
+		try {
+			while(this.running) {
+				selector.select();
+				for(SelectionKey key : selector.selectedKeys()) {
+					Member member = (Member) key.attachment();
+					if(member.channel.read(member.buffer) < 0) {
+						key.cancel();
+						continue;
+					}
+					parse(member.buffer);
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Consumes the complete packets in the buffer and counts the deliveries of the benchmark messages
+	 * @param buffer Buffer of a member in write mode
+	 */
+	private void parse(ByteBuffer buffer) {
+		buffer.flip();
+		while(buffer.remaining() >= Header.HEADER_SIZE) {
+			int size = (buffer.get(buffer.position()) & 0xFF) | ((buffer.get(buffer.position() + 1) & 0xFF) << 8);
+			if(buffer.remaining() < Header.HEADER_SIZE + size) {
+				break;
+			}
+			int type = buffer.get(buffer.position() + 2);
+			byte[] data = new byte[size];
+			buffer.position(buffer.position() + Header.HEADER_SIZE);
+			buffer.get(data);
+			if(type == ProtocolID.CHANNEL_BROADCAST.ordinal()) {
+				String payload = new String(data, StandardCharsets.UTF_8);
+				int index = Integer.parseInt(payload.substring(payload.lastIndexOf(':') + 1));
+				if(this.delivered.incrementAndGet(index) == this.members) {
+					this.lastDelivery.set(index, System.nanoTime());
+				}
+			}
+		}
+		buffer.compact();
+	}
+}
@@ -0,0 +1,319 @@
+package Benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.ObjectName;
+import javax.net.ssl.SSLSocket;
+
+import ProtocolSocket.Header;
+import ProtocolSocket.ProtocolID;
+import ProtocolSocket.ProtocolServerSocket;
+import ProtocolSocket.ProtocolSocket;
+import Server.ServerConfig;
+import Server.ServerManager;
+
+/**
+ * Measures the memory an idle connection costs the server. The clients run in a child process so that only the
+ * server side is counted: N connections send their nickname and then stay idle. The heap retained after a full
+ * collection, the resident set size and, with -XX:NativeMemoryTracking=summary, the committed native memory and
+ * thread stacks are compared with the figures before the connections were opened.
+ * Usage: FootprintBenchmark [CONNECTIONS...], TLS is measured with -Dbench.tls=true which needs the same keystore
+ * properties as TransportBenchmark. javachat.* system properties configure the server as usual
+ * @author etsubu
+ *
+ */
+public class FootprintBenchmark {
+	private static final int[] DEFAULT_CONNECTIONS = {1000, 4000};
+	private static final Pattern NMT_TOTAL = Pattern.compile("Total: reserved=(\\d+)KB, committed=(\\d+)KB");
+	private static final Pattern NMT_THREAD = Pattern.compile("Thread \\(reserved=(\\d+)KB, committed=(\\d+)KB\\)");
+	private static final long CLIENT_STACK_SIZE = 64 * 1024;
+
+	/**
+	 * Memory figures of the process at one point
+	 */
+	private static class Sample {
+		private final long heap;
+		private final long rss;
+		private final long nativeCommitted;
+		private final long threadCommitted;
+		private final long threadReserved;
+
+		private Sample() {
+			this.heap = retainedHeap();
+			this.rss = residentSetSize();
+			String nmt = nativeMemorySummary();
+			this.nativeCommitted = kilobytes(NMT_TOTAL, nmt, 2);
+			this.threadCommitted = kilobytes(NMT_THREAD, nmt, 2);
+			this.threadReserved = kilobytes(NMT_THREAD, nmt, 1);
+		}
+	}
+
+	private final int connections;
+	private final boolean tls;
+
+	private FootprintBenchmark(int connections, boolean tls) {
+		this.connections = connections;
+		this.tls = tls;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length > 0 && args[0].equals("client")) {
+			runClients(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Boolean.parseBoolean(args[3]));
+			return;
+		}
+		int[] counts = args.length == 0 ? DEFAULT_CONNECTIONS : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+		boolean tls = Boolean.getBoolean("bench.tls");
+		System.out.println("connections\theap_b_per_conn\trss_b_per_conn\tnative_b_per_conn\tstack_b_per_conn\tstack_reserved_b_per_conn");
+		// The first run loads the classes and warms up the JIT so their memory is not counted to the connections
+		new FootprintBenchmark(100, tls).run(false);
+		for(int count : counts) {
+			new FootprintBenchmark(count, tls).run(true);
+		}
+	}
+
+	/**
+	 * Opens the idle connections against a fresh server and measures the memory per connection
+	 * @param print True to print the results
+	 * @throws Exception If the connections fail
+	 */
+	private void run(boolean print) throws Exception {
+		ServerConfig config = new ServerConfig();
+		config.set("ratelimit.enabled", "false");
+		config.set("hotspots.enabled", "false");
+		// The clients never answer a PING, so the connections must not time out while they are measured
+		config.set("timeouts.pingMillis", "0");
+		config.set("timeouts.idleMillis", "0");
+		ServerManager manager = new ServerManager(config);
+		ProtocolServerSocket listener = new ProtocolServerSocket(InetAddress.getLoopbackAddress(), 0, this.tls, false, this.connections);
+		Thread acceptor = new Thread(() -> {
+			try {
+				while(true) {
+					manager.addUser(listener.accept());
+				}
+			} catch(IOException e) {
+				// Closed at the end of the run
+			}
+		}, "bench-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		Sample before = new Sample();
+
+		Process clients = startClients(listener.getLocalPort());
+		while(manager.getGlobalChannel().getMemberCount() < this.connections) {
+			if(!clients.isAlive()) {
+				throw new IOException("The client process exited with " + clients.exitValue());
+			}
+			Thread.sleep(10);
+		}
+		// Let the joins, the user lists and the queues settle before measuring
+		do {
+			Thread.sleep(1000);
+		} while(manager.getOutbound().getPendingBytes() > 0);
+		Sample after = new Sample();
+		if(print) {
+			System.out.printf("%d\t%d\t%d\t%s\t%s\t%s%n", this.connections, (after.heap - before.heap) / this.connections,
+					(after.rss - before.rss) / this.connections, perConnection(before.nativeCommitted, after.nativeCommitted),
+					perConnection(before.threadCommitted, after.threadCommitted), perConnection(before.threadReserved, after.threadReserved));
+		}
+
+		clients.destroy();
+		clients.waitFor();
+		// The next run measures from a baseline without these users
+		while(manager.getGlobalChannel().getMemberCount() > 0) {
+			Thread.sleep(10);
+		}
+		listener.close();
+		manager.getShards().shutdown();
+		manager.getFanout().shutdown();
+		manager.getOutbound().shutdown();
+		manager.getTimeouts().stop();
+	}
+
+	/**
+	 * Starts the child process that opens the connections
+	 * @param port Port of the server
+	 * @return The child process
+	 * @throws IOException If the process cannot be started
+	 */
+	private Process startClients(int port) throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		for(String property : new String[] {"javax.net.ssl.trustStore", "javax.net.ssl.trustStorePassword"}) {
+			if(System.getProperty(property) != null) {
+				command.add("-D" + property + "=" + System.getProperty(property));
+			}
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(FootprintBenchmark.class.getName());
+		command.add("client");
+		command.add(Integer.toString(port));
+		command.add(Integer.toString(this.connections));
+		command.add(Boolean.toString(this.tls));
+		return new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+	}
+
+	/**
+	 * Opens the connections of the child process and keeps them open until the parent closes the standard input.
+	 * Plaintext connections are drained by one selector thread, TLS connections by a small reader thread each
+	 * @param port Port of the server
+	 * @param count Number of connections
+	 * @param tls True to connect with TLS
+	 * @throws Exception If the connections fail
+	 */
+	private static void runClients(int port, int count, boolean tls) throws Exception {
+		Selector selector = Selector.open();
+		for(int i = 0; i < count; i++) {
+			if(tls) {
+				SSLSocket ssl = (SSLSocket) ProtocolSocket.sslSocketFactory.createSocket(InetAddress.getLoopbackAddress(), port);
+				ProtocolSocket.configureSSLSocket(ssl);
+				ssl.startHandshake();
+				ProtocolSocket socket = new ProtocolSocket(ssl);
+				socket.write("idle" + i, ProtocolID.CLIENT_NICKNAME);
+				Thread reader = new Thread(null, () -> drain(ssl), "idle" + i, CLIENT_STACK_SIZE);
+				reader.setDaemon(true);
+				reader.start();
+			} else {
+				SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+				byte[] nickname = ("idle" + i).getBytes(StandardCharsets.UTF_8);
+				ByteBuffer packet = ByteBuffer.allocate(Header.HEADER_SIZE + nickname.length);
+				packet.put(Header.toBytes(nickname.length, ProtocolID.CLIENT_NICKNAME.ordinal())).put(nickname).flip();
+				while(packet.hasRemaining()) {
+					channel.write(packet);
+				}
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ);
+			}
+		}
+		Thread reader = new Thread(() -> drain(selector), "idle-reader");
+		reader.setDaemon(true);
+		reader.start();
+		// Exits when the parent destroys the process or closes the pipe
+		new BufferedReader(new InputStreamReader(System.in)).readLine();
+	}
+
+	/**
+	 * Reads and discards everything the server sends on the plaintext connections
+	 * @param selector Selector of the connections
+	 */
+	private static void drain(Selector selector) {
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		try {
+			while(true) {
+				selector.select();
+				for(SelectionKey key : selector.selectedKeys()) {
+					buffer.clear();
+					if(((SocketChannel) key.channel()).read(buffer) == -1) {
+						key.cancel();
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch(IOException e) {
+			// The process is exiting
+		}
+	}
+
+	/**
+	 * Reads and discards everything the server sends on a TLS connection
+	 * @param socket The connection
+	 */
+	private static void drain(Socket socket) {
+		byte[] buffer = new byte[1024];
+		try {
+			while(socket.getInputStream().read(buffer) != -1) {
+				// Discarded
+			}
+		} catch(IOException e) {
+			// The process is exiting
+		}
+	}
+
+	/**
+	 * Collects the garbage until the used heap no longer shrinks
+	 * @return Bytes of heap in use after the collections
+	 */
+	private static long retainedHeap() {
+		long used = Long.MAX_VALUE;
+		for(int i = 0; i < 10; i++) {
+			System.gc();
+			long now = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			if(now >= used) {
+				return now;
+			}
+			used = now;
+		}
+		return used;
+	}
+
+	/**
+	 * Reads the resident set size of the process on Linux
+	 * @return Bytes resident in memory or 0 if unknown
+	 */
+	private static long residentSetSize() {
+		try {
+			for(String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+				if(line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+				}
+			}
+		} catch(IOException | RuntimeException e) {
+			// Not on Linux
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets the native memory tracking summary of the JVM
+	 * @return The summary or an empty string if native memory tracking is not enabled
+	 */
+	private static String nativeMemorySummary() {
+		try {
+			Object summary = ManagementFactory.getPlatformMBeanServer().invoke(new ObjectName("com.sun.management:type=DiagnosticCommand"),
+					"vmNativeMemory", new Object[] {new String[] {"summary"}}, new String[] {String[].class.getName()});
+			return summary.toString();
+		} catch(Exception e) {
+			return "";
+		}
+	}
+
+	/**
+	 * Parses a figure from the native memory tracking summary
+	 * @param pattern Pattern whose first group is the reserved and second group the committed kilobytes
+	 * @param summary The summary
+	 * @param group 1 for the reserved and 2 for the committed memory
+	 * @return Bytes or -1 if the figure is not in the summary
+	 */
+	private static long kilobytes(Pattern pattern, String summary, int group) {
+		Matcher matcher = pattern.matcher(summary);
+		return matcher.find() ? Long.parseLong(matcher.group(group)) * 1024 : -1;
+	}
+
+	/**
+	 * Formats the growth of a native memory figure per connection
+	 * @param before Bytes before the connections
+	 * @param after Bytes after the connections
+	 * @return Bytes per connection or n/a without native memory tracking
+	 */
+	private String perConnection(long before, long after) {
+		return before < 0 || after < 0 ? "n/a" : Long.toString((after - before) / this.connections);
+	}
+}
@@ -0,0 +1,198 @@
+package Benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocket;
+
+import ProtocolSocket.Batch;
+import ProtocolSocket.Header;
+import ProtocolSocket.Packet;
+import ProtocolSocket.ProtocolID;
+import ProtocolSocket.ProtocolListener;
+import ProtocolSocket.ProtocolServerSocket;
+import ProtocolSocket.ProtocolSocket;
+import ProtocolSocket.UnixServerSocket;
+import Server.ServerConfig;
+import Server.ServerManager;
+
+/**
+ * Measures the CPU time the server and its clients spend per channel message on each transport: TLS, plaintext
+ * loopback TCP and a Unix domain socket. A sender and a receiver on the global channel run in this process, so the
+ * figure covers both ends of the connections. TLS needs -Djavax.net.ssl.keyStore and -Djavax.net.ssl.trustStore
+ * (with their passwords) pointing to a keystore with an EC key and is skipped otherwise.
+ * Usage: TransportBenchmark [tls|tcp|unix...], the number of messages is set with -Dbench.messages (default 100000)
+ * and their payload size with -Dbench.size (default 64). With -Dbench.batch=false the receiver does not accept BATCH
+ * frames
+ * @author etsubu
+ *
+ */
+public class TransportBenchmark {
+	private static final String[] DEFAULT_TRANSPORTS = {"tls", "tcp", "unix"};
+	private static final int WINDOW = 256;
+
+	private final String transport;
+	private final int messages;
+	private final String payload;
+	private final boolean batch;
+	private final AtomicLong received;
+
+	private TransportBenchmark(String transport, int messages, int size, boolean batch) {
+		this.transport = transport;
+		this.batch = batch;
+		this.messages = messages;
+		char[] filler = new char[Math.max(1, size)];
+		Arrays.fill(filler, 'x');
+		this.payload = ServerManager.GLOBAL_CHANNEL_ID + ":" + new String(filler);
+		this.received = new AtomicLong();
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] transports = args.length == 0 ? DEFAULT_TRANSPORTS : args;
+		int messages = Integer.getInteger("bench.messages", 100000);
+		int size = Integer.getInteger("bench.size", 64);
+		boolean batch = Boolean.parseBoolean(System.getProperty("bench.batch", "true"));
+		System.out.println("transport\tmessages\tmsgs_per_s\tcpu_us_per_msg");
+		for(String transport : transports) {
+			if(transport.equals("tls") && System.getProperty("javax.net.ssl.keyStore") == null) {
+				System.out.println("tls\tskipped, javax.net.ssl.keyStore is not set");
+				continue;
+			}
+			// The first run warms up the JIT
+			new TransportBenchmark(transport, Math.max(1, messages / 10), size, batch).run(false);
+			new TransportBenchmark(transport, messages, size, batch).run(true);
+		}
+	}
+
+	/**
+	 * Runs the benchmark against a fresh server
+	 * @param print True to print the results
+	 * @throws Exception If the connections fail
+	 */
+	private void run(boolean print) throws Exception {
+		ServerConfig config = new ServerConfig();
+		config.set("ratelimit.enabled", "false");
+		config.set("hotspots.enabled", "false");
+		ServerManager manager = new ServerManager(config);
+		Path socketPath = null;
+		ProtocolListener listener;
+		if(this.transport.equals("unix")) {
+			socketPath = Files.createTempDirectory("javachat").resolve("bench.sock");
+			listener = new UnixServerSocket(socketPath);
+		} else {
+			listener = new ProtocolServerSocket(InetAddress.getLoopbackAddress(), 0, this.transport.equals("tls"), false, 0);
+		}
+		Thread acceptor = new Thread(() -> {
+			try {
+				while(true) {
+					manager.addUser(listener.accept());
+				}
+			} catch(IOException e) {
+				// Closed at the end of the run
+			}
+		}, "bench-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		ProtocolSocket sender = connect(listener, socketPath);
+		ProtocolSocket receiver = connect(listener, socketPath);
+		sender.write("sender", ProtocolID.CLIENT_NICKNAME);
+		receiver.write("receiver".getBytes(StandardCharsets.UTF_8), ProtocolID.CLIENT_NICKNAME, this.batch ? Header.FLAG_BATCH : 0);
+		while(manager.getGlobalChannel().getMemberCount() < 2) {
+			Thread.sleep(10);
+		}
+		Thread drain = new Thread(() -> read(sender, null), "bench-drain");
+		drain.setDaemon(true);
+		drain.start();
+		Thread reader = new Thread(() -> read(receiver, this.received), "bench-reader");
+		reader.setDaemon(true);
+		reader.start();
+		// Let the join notifications drain before measuring
+		Thread.sleep(200);
+		this.received.set(0);
+
+		com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+		long cpuStart = os.getProcessCpuTime();
+		long start = System.nanoTime();
+		for(int i = 0; i < this.messages; i++) {
+			while(i - this.received.get() >= WINDOW) {
+				Thread.onSpinWait();
+			}
+			sender.write(this.payload, ProtocolID.CHANNEL_BROADCAST);
+		}
+		while(this.received.get() < this.messages) {
+			Thread.onSpinWait();
+		}
+		long elapsed = System.nanoTime() - start;
+		long cpu = os.getProcessCpuTime() - cpuStart;
+		if(print) {
+			System.out.printf("%s\t%d\t%.0f\t%.2f%n", this.transport, this.messages, this.messages / (elapsed / 1e9), cpu / 1e3 / this.messages);
+		}
+
+		sender.close();
+		receiver.close();
+		listener.close();
+		if(socketPath != null) {
+			Files.deleteIfExists(socketPath.getParent());
+		}
+		manager.getShards().shutdown();
+		manager.getFanout().shutdown();
+		manager.getOutbound().shutdown();
+		manager.getTimeouts().stop();
+	}
+
+	/**
+	 * Connects a client over the benchmarked transport
+	 * @param listener Listener of the server
+	 * @param socketPath Path of the Unix domain socket or null
+	 * @return The connected client
+	 * @throws IOException If the connection fails
+	 */
+	private ProtocolSocket connect(ProtocolListener listener, Path socketPath) throws IOException {
+		if(socketPath != null) {
+			return new ProtocolSocket(socketPath);
+		}
+		int port = ((ProtocolServerSocket) listener).getLocalPort();
+		if(this.transport.equals("tls")) {
+			SSLSocket ssl = (SSLSocket) ProtocolSocket.sslSocketFactory.createSocket(InetAddress.getLoopbackAddress(), port);
+			ProtocolSocket.configureSSLSocket(ssl);
+			ssl.startHandshake();
+			return new ProtocolSocket(ssl);
+		}
+		return new ProtocolSocket(new Socket(InetAddress.getLoopbackAddress(), port));
+	}
+
+	/**
+	 * Reads a connection until it is closed and counts the channel messages
+	 * @param socket The connection
+	 * @param counter Counter of the received channel messages or null
+	 */
+	private static void read(ProtocolSocket socket, AtomicLong counter) {
+		try {
+			while(true) {
+				Packet packet = socket.readPacket();
+				if(counter == null) {
+					continue;
+				}
+				if(packet.getHeader().getType() == ProtocolID.BATCH.ordinal()) {
+					for(Packet batched : Batch.unpack(packet)) {
+						if(batched.getHeader().getType() == ProtocolID.CHANNEL_BROADCAST.ordinal()) {
+							counter.incrementAndGet();
+						}
+					}
+				} else if(packet.getHeader().getType() == ProtocolID.CHANNEL_BROADCAST.ordinal()) {
+					counter.incrementAndGet();
+				}
+			}
+		} catch(Exception e) {
+			// Closed at the end of the run
+		}
+	}
+}
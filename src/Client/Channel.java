@@ -1,5 +1,9 @@
 package Client;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Contains all the information about a single channel
  * @author etsubu
@@ -11,6 +15,13 @@ public class Channel {
 	private String[] userList;
 	private ClientActions clientHandler;
 	private ChatPanel panel;
+	private long sequence;
+	private int memberCount;
+	private String[] recent;
+	private String rosterPrefix;
+	private List<String> roster;
+	private boolean rosterMore;
+	private boolean rosterLoading;
 	
 	/**
 	 * Initializes the Channel information
@@ -22,6 +33,8 @@ public class Channel {
 		this.channelID = channelID;
 		this.channelName = channelName;
 		this.userList = null;
+		this.memberCount = -1;
+		this.roster = new ArrayList<>();
 		this.clientHandler = clientHandler;
 		this.panel = new ChatPanel(this);
 	}
@@ -42,6 +55,43 @@ public class Channel {
 		return this.channelID;
 	}
 	
+	/**
+	 * Changes the ID of the channel when it was recreated on the server while the client was reconnecting
+	 * @param channelID New ID of the channel
+	 */
+	void setChannelID(int channelID) {
+		this.channelID = channelID;
+	}
+	
+	/**
+	 * Getter for the sequence number of the latest message received on the channel
+	 * @return The sequence number, 0 if the server has not sent one
+	 */
+	public synchronized long getSequence() {
+		return this.sequence;
+	}
+	
+	/**
+	 * Sets the sequence number of the latest message as told by the server
+	 * @param sequence The sequence number
+	 */
+	public synchronized void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+	
+	/**
+	 * Adds a received channel message to the panel. Every channel message advances the sequence number by one
+	 * @param message Message that was received
+	 */
+	public void channelMessageReceived(String message) {
+		synchronized(this) {
+			if(this.sequence != 0) {
+				this.sequence++;
+			}
+		}
+		messageReceived(message);
+	}
+	
 	/**
 	 * Getter for the channel name
 	 * @return Name of the channel
@@ -59,11 +109,159 @@ public class Channel {
 	}
 	
 	/**
-	 * Sets the list of users on the channel
+	 * Sets the list of users on the channel. A channel that gets the whole list is not large
 	 * @param userList Users on the channel
 	 */
 	public synchronized void setUserList(String[] userList) {
 		this.userList = userList;
+		this.memberCount = -1;
+		this.recent = null;
+		resetRoster(null);
+	}
+	
+	/**
+	 * Sets the member count and the recently active members of a large channel. The whole list is then fetched a
+	 * page at a time with requestRosterPage
+	 * @param memberCount Number of members on the channel
+	 * @param recent Recently active members, the most recent first
+	 */
+	public synchronized void setPresence(int memberCount, String[] recent) {
+		if(this.memberCount == -1) {
+			resetRoster(null);
+		}
+		this.userList = null;
+		this.memberCount = memberCount;
+		this.recent = recent;
+	}
+	
+	/**
+	 * Checks whether the server sends only the member count and the recently active members of the channel
+	 * @return True if the channel is large
+	 */
+	public synchronized boolean isLarge() {
+		return this.memberCount != -1;
+	}
+	
+	/**
+	 * Getter for the number of members of a large channel
+	 * @return Number of members or -1 if the channel is not large
+	 */
+	public synchronized int getMemberCount() {
+		return this.memberCount;
+	}
+	
+	/**
+	 * Getter for the recently active members of a large channel
+	 * @return Recently active members, the most recent first, or null if the channel is not large
+	 */
+	public synchronized String[] getRecentMembers() {
+		return this.recent;
+	}
+	
+	/**
+	 * Getter for the loaded pages of the members of a large channel
+	 * @return Loaded members sorted by their nickname
+	 */
+	public synchronized List<String> getRoster() {
+		return new ArrayList<>(this.roster);
+	}
+	
+	/**
+	 * Requests the next page of the members starting with the prefix. A different prefix starts over from the first
+	 * page. Nothing is requested while a page is on its way or after the last page
+	 * @param prefix Prefix of the nicknames, case insensitive
+	 */
+	public void requestRosterPage(String prefix) {
+		String after;
+		synchronized(this) {
+			if(!prefix.equals(this.rosterPrefix)) {
+				resetRoster(prefix);
+			}
+			if(this.rosterLoading || !this.rosterMore) {
+				return;
+			}
+			this.rosterLoading = true;
+			after = this.roster.isEmpty() ? "" : this.roster.get(this.roster.size() - 1);
+		}
+		this.clientHandler.requestUserPage(this.channelID, prefix, after);
+	}
+	
+	/**
+	 * Adds a received page of the members. A page of a previous prefix is ignored
+	 * @param prefix Prefix the page was requested with
+	 * @param after Nickname the page starts after
+	 * @param more True if there are more members after the page
+	 * @param names Members on the page
+	 * @return True if the page was added
+	 */
+	public synchronized boolean rosterPageReceived(String prefix, String after, boolean more, String[] names) {
+		String last = this.roster.isEmpty() ? "" : this.roster.get(this.roster.size() - 1);
+		if(!prefix.equals(this.rosterPrefix) || !after.equals(last)) {
+			return false;
+		}
+		for(String name : names) {
+			this.roster.add(name);
+		}
+		this.rosterMore = more;
+		this.rosterLoading = false;
+		return true;
+	}
+	
+	/**
+	 * Drops the loaded pages of the members
+	 * @param prefix Prefix of the next pages or null
+	 */
+	private void resetRoster(String prefix) {
+		this.roster.clear();
+		this.rosterPrefix = prefix;
+		this.rosterMore = true;
+		this.rosterLoading = false;
+	}
+	
+	/**
+	 * Subscribes to the user list updates of the channel while its tab is shown
+	 */
+	public void subscribeUserList() {
+		this.clientHandler.subscribeUserList(this.channelID);
+	}
+	
+	/**
+	 * Unsubscribes from the user list updates of the channel and drops the list when its tab is hidden
+	 */
+	public void unsubscribeUserList() {
+		this.clientHandler.unsubscribeUserList(this.channelID);
+		setUserList(null);
+	}
+	
+	/**
+	 * Getter for the ClientActions of the connected client
+	 * @return The ClientActions
+	 */
+	protected ClientActions getClientActions() {
+		return this.clientHandler;
+	}
+	
+	/**
+	 * Sends a private message to a user and opens the conversation with the user
+	 * @param nickname Nickname of the recipient
+	 * @param message Message to send
+	 */
+	public void sendPrivateMessage(String nickname, String message) {
+		this.clientHandler.openConversation(nickname);
+		notifyIfFailed(this.clientHandler.sendPrivateMessage(nickname, message), "Message to " + nickname + " could not be sent: " + message);
+	}
+	
+	/**
+	 * Shows a note on this channel if a packet could not be sent
+	 * @param sent Future of the sent packet
+	 * @param note Note to show
+	 */
+	protected void notifyIfFailed(CompletableFuture<Void> sent, String note) {
+		sent.whenComplete((result, error) -> {
+			if(error != null) {
+				messageReceived(note);
+			}
+		});
 	}
 	
 	/**
@@ -71,14 +269,22 @@ public class Channel {
 	 * @param message Message to send
 	 */
 	public void sendMessage(String message) {
-		this.clientHandler.sendMessage(message, this.channelID);
+		notifyIfFailed(this.clientHandler.sendMessage(message, this.channelID), "Message could not be sent: " + message);
+	}
+	
+	/**
+	 * Requests the heavy hitter report from the server. The report is shown on this channel
+	 * @param kind channels, users or empty for both
+	 */
+	public void requestHeavyHitters(String kind) {
+		this.clientHandler.requestHeavyHitters(kind, this.channelID);
 	}
 	
 	/**
 	 * Leaves this channel
 	 */
 	public void leaveChannel(){
-		this.clientHandler.sendLeaveChannel(this.channelID);
+		notifyIfFailed(this.clientHandler.sendLeaveChannel(this.channelID), "Could not leave the channel");
 	}
 	
 	/**
@@ -12,6 +12,7 @@ import java.util.Map;
  */
 public class ChannelManager {
 	private Map<Integer, Channel> joinedChannels;
+	private Map<String, Conversation> conversations;
 	private String[] allChannels;
 	private ChatTabPanel chatTabPanel;
 	private ChannelPanel channelPanel;
@@ -23,6 +24,7 @@ public class ChannelManager {
 	 */
 	public ChannelManager(ChatTabPanel chatTabPanel, ChannelPanel channelPanel) {
 		this.joinedChannels = new HashMap<>();
+		this.conversations = new HashMap<>();
 		this.allChannels = null;
 		this.chatTabPanel = chatTabPanel;
 		this.channelPanel = channelPanel;
@@ -49,10 +51,21 @@ public class ChannelManager {
 	 * @param c Channel that is to be added
 	 */
 	public synchronized void addChannel(Channel c) {
-		if(!this.joinedChannels.containsKey(c.getChannelID())) {
-			this.joinedChannels.put(c.getChannelID(), c);
-			this.chatTabPanel.addChatPanel(c);
+		if(this.joinedChannels.containsKey(c.getChannelID())) {
+			return;
+		}
+		for(Channel existing : this.joinedChannels.values()) {
+			if(existing.getChannelName().equalsIgnoreCase(c.getChannelName())) {
+				// Rejoined after a reconnect but the channel was recreated on the server meanwhile
+				this.joinedChannels.remove(existing.getChannelID());
+				existing.setChannelID(c.getChannelID());
+				existing.setSequence(0);
+				this.joinedChannels.put(c.getChannelID(), existing);
+				return;
+			}
 		}
+		this.joinedChannels.put(c.getChannelID(), c);
+		this.chatTabPanel.addChatPanel(c);
 	}
 	
 	/**
@@ -67,6 +80,32 @@ public class ChannelManager {
 		this.chatTabPanel.removeChatPanel(c);
 	}
 	
+	/**
+	 * Gets the conversation with a user and opens a tab for it if there is none
+	 * @param nickname Nickname of the other user
+	 * @param clientHandler ClientActions of the connected client
+	 * @return The conversation
+	 */
+	public synchronized Conversation getConversation(String nickname, ClientActions clientHandler) {
+		String key = nickname.toLowerCase();
+		Conversation conversation = this.conversations.get(key);
+		if(conversation == null) {
+			conversation = new Conversation(nickname, clientHandler);
+			this.conversations.put(key, conversation);
+			this.chatTabPanel.addChatPanel(conversation);
+		}
+		return conversation;
+	}
+	
+	/**
+	 * Closes the tab of a conversation
+	 * @param conversation Conversation to close
+	 */
+	public synchronized void removeConversation(Conversation conversation) {
+		this.conversations.remove(conversation.getNickname().toLowerCase());
+		this.chatTabPanel.removeChatPanel(conversation);
+	}
+	
 	/**
 	 * Gets a channel by its ID
 	 * @param ID ID of the channel
@@ -76,26 +115,111 @@ public class ChannelManager {
 		return this.joinedChannels.get(ID);
 	}
 	
+	/**
+	 * Closes the tabs of the channels but keeps the conversations. Called when the server started a new session
+	 * after a reconnect, it sends the channels of the new session
+	 */
+	public synchronized void removeChannels() {
+		for(Channel c : new ArrayList<>(this.joinedChannels.values())) {
+			removeChannel(c);
+		}
+	}
+	
+	/**
+	 * Lists the sequence numbers of the latest received messages for resuming the session
+	 * @return CHANNEL_ID:SEQUENCE lines of the channels whose sequence number is known
+	 */
+	public synchronized String getSequences() {
+		StringBuilder sequences = new StringBuilder();
+		for(Channel c : this.joinedChannels.values()) {
+			long sequence = c.getSequence();
+			if(sequence != 0) {
+				sequences.append("\n" + c.getChannelID() + ":" + sequence);
+			}
+		}
+		return sequences.toString();
+	}
+	
+	/**
+	 * Sets the sequence number of the latest message of a channel
+	 * @param ID ID of the channel
+	 * @param sequence The sequence number
+	 */
+	public synchronized void setSequence(int ID, long sequence) {
+		if(this.joinedChannels.containsKey(ID)) {
+			this.joinedChannels.get(ID).setSequence(sequence);
+		}
+	}
+	
+	/**
+	 * Subscribes again to the user list of the shown channel after the client has reconnected
+	 */
+	public synchronized void resubscribe() {
+		this.chatTabPanel.resubscribe();
+	}
+	
+	/**
+	 * Shows a status message on every open tab
+	 * @param message The message
+	 */
+	public synchronized void statusMessage(String message) {
+		for(Channel c : this.joinedChannels.values()) {
+			c.messageReceived(message);
+		}
+		for(Conversation conversation : this.conversations.values()) {
+			conversation.messageReceived(message);
+		}
+	}
+	
 	/**
 	 * Called when connection is lost. Cleans all the channels
 	 */
 	public synchronized void cleanup() {
 		this.joinedChannels.clear();
+		this.conversations.clear();
 		this.channelPanel.disable();
 		this.chatTabPanel.cleanup();
 	}
 	/**
-	 * Updates the user list on the given channel
+	 * Updates the user list on the given channel. Only the list of the shown channel is kept
 	 * @param ID ID of the channel to update
 	 * @param userList The list of users
 	 */
 	public synchronized void updateChannelUsers(int ID, String[] userList) {
-		if(this.joinedChannels.containsKey(ID)) {
+		if(this.joinedChannels.containsKey(ID) && this.chatTabPanel.isSubscribed(this.joinedChannels.get(ID))) {
 			this.joinedChannels.get(ID).setUserList(userList);
 			this.chatTabPanel.update();
 		}
 	}
 	
+	/**
+	 * Updates the member count and the recently active members of a large channel
+	 * @param ID ID of the channel
+	 * @param memberCount Number of members
+	 * @param recent Recently active members, the most recent first
+	 */
+	public synchronized void updateChannelPresence(int ID, int memberCount, String[] recent) {
+		if(this.joinedChannels.containsKey(ID) && this.chatTabPanel.isSubscribed(this.joinedChannels.get(ID))) {
+			this.joinedChannels.get(ID).setPresence(memberCount, recent);
+			this.chatTabPanel.update();
+		}
+	}
+	
+	/**
+	 * Adds a received page of the members of a large channel
+	 * @param ID ID of the channel
+	 * @param prefix Prefix the page was requested with
+	 * @param after Nickname the page starts after
+	 * @param more True if there are more members after the page
+	 * @param names Members on the page
+	 */
+	public synchronized void userPageReceived(int ID, String prefix, String after, boolean more, String[] names) {
+		Channel channel = this.joinedChannels.get(ID);
+		if(channel != null && this.chatTabPanel.isSubscribed(channel) && channel.rosterPageReceived(prefix, after, more, names)) {
+			this.chatTabPanel.update();
+		}
+	}
+	
 	/**
 	 * Gives the received message for the given channel
 	 * @param ID ID of the channel
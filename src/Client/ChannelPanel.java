@@ -11,6 +11,7 @@ import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
 
 /**
  * Contains a list of available channel and a button join the selected channel
@@ -95,12 +96,25 @@ public class ChannelPanel extends JPanel implements ActionListener{
 		}
 		return false;
 	}
+	
+	/**
+	 * Sends the request to join a channel without waiting for it to be written. The user is told if it fails
+	 * @param channelName Name of the channel
+	 */
+	private void joinChannel(String channelName) {
+		this.clientActions.joinToChannel(channelName).whenComplete((result, error) -> {
+			if(error != null) {
+				SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Could not join " + channelName + ", the connection was lost",
+						"Join failed", JOptionPane.ERROR_MESSAGE));
+			}
+		});
+	}
 	@Override
 	public void actionPerformed(ActionEvent e) {
 		if(e.getSource().equals(this.joinChannelButton)) {
 			String channelName = this.channelList.getSelectedValue();
 			if(channelName != null) {
-				this.clientActions.joinToChannel(channelName);
+				joinChannel(channelName);
 			}
 		} else if(e.getSource().equals(this.createChannelButton)) {
 			String channelName = JOptionPane.showInputDialog(null, "Input the channel name: ", "Channel name", JOptionPane.QUESTION_MESSAGE);
@@ -108,7 +122,7 @@ public class ChannelPanel extends JPanel implements ActionListener{
 				if(doesNameExist(channelName)) {
 					JOptionPane.showMessageDialog(null, "The channel " + channelName + " already exists!", "The channel exists", JOptionPane.ERROR_MESSAGE);
 				} else {
-					this.clientActions.joinToChannel(channelName);
+					joinChannel(channelName);
 				}
 			}
 		}
@@ -56,6 +56,13 @@ public class ChatPanel extends JPanel implements KeyListener{
 			this.messageArea.setText("");
 		} else if(text.equals("/dc")) {
 			this.channel.leaveChannel();
+		} else if(text.startsWith("/msg ")) {
+			String[] parts = text.substring(5).trim().split(" ", 2);
+			if(parts.length == 2 && !parts[1].isEmpty()) {
+				this.channel.sendPrivateMessage(parts[0], parts[1]);
+			}
+		} else if(text.equals("/hot") || text.startsWith("/hot ")) {
+			this.channel.requestHeavyHitters(text.substring(4).trim());
 		} else {
 			this.channel.sendMessage(text);
 		}
@@ -9,7 +9,8 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 /**
- * Contains all the ChatPanels and allows the user to switch between them using tabs.
+ * Contains all the ChatPanels and allows the user to switch between them using tabs. The client is only subscribed
+ * to the user list of the channel whose tab is shown
  * @author etsubu
  *
  */
@@ -19,6 +20,7 @@ public class ChatTabPanel extends JTabbedPane implements ChangeListener{
 	private List<ChatPanel> chatPanels;
 	private int[] keyBinds;
 	private UserListPanel userListPanel;
+	private volatile Channel subscribed;
 	
 	/**
 	 * Initializes the ChatTabPanel
@@ -62,8 +64,9 @@ public class ChatTabPanel extends JTabbedPane implements ChangeListener{
 	 */
 	public void addChatPanel(Channel channel) {
 		ChatPanel chatPanel = channel.getChatPanel();
-		this.addTab(channel.getChannelName(), null, chatPanel);
+		// Added to the list first so the first tab is found when addTab selects it
 		this.chatPanels.add(chatPanel);
+		this.addTab(channel.getChannelName(), null, chatPanel);
 		this.setSelectedIndex(this.getTabCount() - 1);
 		updateKeyBinds();
 		update();
@@ -75,9 +78,28 @@ public class ChatTabPanel extends JTabbedPane implements ChangeListener{
 	public void cleanup() {
 		this.removeAll();
 		this.chatPanels.clear();
+		this.subscribed = null;
 		this.userListPanel.cleanup();
 	}
 	
+	/**
+	 * Checks whether the tab of the channel is shown and the client is subscribed to its user list
+	 * @param channel The channel
+	 * @return True if the channel is shown
+	 */
+	public boolean isSubscribed(Channel channel) {
+		return channel == this.subscribed;
+	}
+	
+	/**
+	 * Subscribes again to the user list of the shown channel after the client has reconnected
+	 */
+	public void resubscribe() {
+		if(this.subscribed != null) {
+			this.subscribed.subscribeUserList();
+		}
+	}
+	
 	/**
 	 * Removes a chat panel from the screen
 	 * @param channel Channel to remove from panel
@@ -102,11 +124,22 @@ public class ChatTabPanel extends JTabbedPane implements ChangeListener{
 			return;
 		}
 		Channel channel = this.chatPanels.get(index).getChannel();
-		this.userListPanel.updateUserList(channel.getUserList());
+		this.userListPanel.update(channel);
 	}
 	
 	@Override
 	public void stateChanged(ChangeEvent e) {
+		int index = this.getSelectedIndex();
+		Channel selected = (index == -1 || index >= this.chatPanels.size()) ? null : this.chatPanels.get(index).getChannel();
+		if(selected != this.subscribed) {
+			if(this.subscribed != null) {
+				this.subscribed.unsubscribeUserList();
+			}
+			this.subscribed = selected;
+			if(selected != null) {
+				selected.subscribeUserList();
+			}
+		}
 		update();
 	}
 }
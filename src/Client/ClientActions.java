@@ -1,8 +1,15 @@
 package Client;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+import ProtocolSocket.Frame;
 import ProtocolSocket.Packet;
+import ProtocolSocket.PacketDispatcher;
+import ProtocolSocket.PacketDispatcher.ErrorPolicy;
 import ProtocolSocket.ProtocolID;
 import ProtocolSocket.ProtocolSocket;
 
@@ -12,9 +19,12 @@ import ProtocolSocket.ProtocolSocket;
  *
  */
 public class ClientActions {
+	private static final byte[] EMPTY = new byte[0];
+	private static final PacketDispatcher<ClientActions> DISPATCHER = createDispatcher();
 	private ClientManager manager;
-	private ProtocolSocket protoSocket;
+	private final PacketSender sender;
 	private ChannelManager channelManager;
+	private final PacketParser parser;
 	
 	/**
 	 * Intializes ClientActions
@@ -25,34 +35,101 @@ public class ClientActions {
 	public ClientActions(ClientManager manager, ChannelManager channelManager, ProtocolSocket protoSocket) {
 		this.manager = manager;
 		this.channelManager = channelManager;
-		this.protoSocket = protoSocket;
+		this.sender = new PacketSender(protoSocket);
+		this.parser = new PacketParser();
 	}
 	
+	/**
+	 * Replaces the connection after the client has reconnected. The channels keep using the same ClientActions
+	 * @param protoSocket The ProtocolSocket of the new connection
+	 */
+	public void setProtocolSocket(ProtocolSocket protoSocket) {
+		this.sender.setSocket(protoSocket);
+	}
+	
+	/**
+	 * Stops sending after the client has disconnected. Packets that have not been written fail
+	 */
+	public void close() {
+		this.sender.close();
+	}
+	
+	/**
+	 * Queues a packet to the server without blocking. If the write fails the connection is closed, which the
+	 * reading thread notices and reconnects
+	 * @param message Payload of the packet
+	 * @param type Type of the packet
+	 * @return Future that completes when the packet has been written or fails if it could not be
+	 */
+	private CompletableFuture<Void> write(String message, ProtocolID type) {
+		return this.sender.send(new Frame(message, type));
+	}
 	
 	/**
 	 * Send message to the server and handles the possible command the message represents (e.g. /join [CHANNEL] /dc)
 	 * @param message Message the user sent
 	 * @param channelID ChannelID the message was meant for
+	 * @return Future that completes when the message has been written
 	 */
-	public void sendMessage(String message, int channelID) {
-		String formatMessage = channelID + ":" + message;
-		try {
-			this.protoSocket.write(formatMessage.getBytes("UTF-8"), ProtocolID.CHANNEL_BROADCAST);
-		} catch(Exception e) {
-			this.manager.disconnect();
+	public CompletableFuture<Void> sendMessage(String message, int channelID) {
+		Channel channel = this.channelManager.getChannel(channelID);
+		String nickname = this.manager.getNickname();
+		// The server relays the message with the nickname and the channel ID, or the channel name to the other cluster nodes
+		if(Packet.payloadSize(Integer.toString(channelID), nickname, message) > Packet.MAX_SIZE
+				|| (channel != null && Packet.payloadSize(channel.getChannelName(), nickname, message) > Packet.MAX_SIZE)) {
+			return CompletableFuture.failedFuture(new IOException("Message is too long"));
 		}
+		return write(channelID + ":" + message, ProtocolID.CHANNEL_BROADCAST);
+	}
+	
+	/**
+	 * Sends a private message to a user
+	 * @param nickname Nickname of the recipient
+	 * @param message Message to send
+	 * @return Future that completes when the message has been written
+	 */
+	public CompletableFuture<Void> sendPrivateMessage(String nickname, String message) {
+		// The server relays the message as FROM:TO:MESSAGE
+		if(Packet.payloadSize(this.manager.getNickname(), nickname, message) > Packet.MAX_SIZE) {
+			return CompletableFuture.failedFuture(new IOException("Message is too long"));
+		}
+		return write(nickname + ":" + message, ProtocolID.PRIVATE_MESSAGE);
+	}
+	
+	/**
+	 * Opens the conversation tab with a user
+	 * @param nickname Nickname of the other user
+	 */
+	public void openConversation(String nickname) {
+		if(!nickname.isEmpty() && !nickname.equalsIgnoreCase(this.manager.getNickname())) {
+			this.channelManager.getConversation(nickname, this);
+		}
+	}
+	
+	/**
+	 * Closes the conversation tab with a user
+	 * @param conversation The conversation to close
+	 */
+	public void closeConversation(Conversation conversation) {
+		this.channelManager.removeConversation(conversation);
 	}
 	
 	/**
 	 * Sends a message that the user wants to leave the given channel
 	 * @param channelID ID of the channel to leave
+	 * @return Future that completes when the request has been written
 	 */
-	public void sendLeaveChannel(int channelID) {
-		try {
-			this.protoSocket.write(Integer.toString(channelID).getBytes("UTF-8"), ProtocolID.LEAVE_CHANNEL);
-		} catch(Exception e) {
-			this.manager.disconnect();
-		}
+	public CompletableFuture<Void> sendLeaveChannel(int channelID) {
+		return write(Integer.toString(channelID), ProtocolID.LEAVE_CHANNEL);
+	}
+	
+	/**
+	 * Requests the heavy hitter report from the server. Only admins receive a response
+	 * @param kind channels, users or empty for both
+	 * @param channelID ID of the channel where the report will be shown
+	 */
+	public void requestHeavyHitters(String kind, int channelID) {
+		write(channelID + ":" + kind, ProtocolID.ADMIN_HEAVY_HITTERS);
 	}
 	
 	/**
@@ -60,35 +137,107 @@ public class ClientActions {
 	 * @param channelID ID of the channel to list users for
 	 */
 	public void listUsersOnChannel(int channelID) {
-		try {
-			this.protoSocket.write(Integer.toString(channelID).getBytes("UTF-8"), ProtocolID.LIST_USERS);
-		} catch(Exception e) {
-			this.manager.disconnect();
-		}
+		write(Integer.toString(channelID), ProtocolID.LIST_USERS);
 	}
 	
 	/**
-	 * Processes the received packet
+	 * Requests a page of the members of a large channel sorted by their nickname
+	 * @param channelID ID of the channel
+	 * @param prefix Only the nicknames starting with the prefix are listed, case insensitive
+	 * @param after The page starts after this nickname, empty for the first page
+	 */
+	public void requestUserPage(int channelID, String prefix, String after) {
+		write(channelID + ":" + prefix + ":" + after, ProtocolID.LIST_USERS);
+	}
+	
+	/**
+	 * Subscribes to the user list updates of a channel. The server sends the current list right away
+	 * @param channelID ID of the channel
+	 */
+	public void subscribeUserList(int channelID) {
+		write(Integer.toString(channelID), ProtocolID.USER_LIST_SUBSCRIBE);
+	}
+	
+	/**
+	 * Unsubscribes from the user list updates of a channel
+	 * @param channelID ID of the channel
+	 */
+	public void unsubscribeUserList(int channelID) {
+		write(Integer.toString(channelID), ProtocolID.USER_LIST_UNSUBSCRIBE);
+	}
+	
+	/**
+	 * Answers a PING of the server so it knows the connection is alive
+	 */
+	private void sendPong() {
+		write("", ProtocolID.PONG);
+	}
+	
+	/**
+	 * Creates the table of handlers for the packets the server sends. Channel messages, user lists and private
+	 * messages are parsed from the bytes of the packet, the rest are decoded to a String first. A packet that breaks
+	 * the client state disconnects, a notification that cannot be shown is only dropped
+	 * @return The dispatcher
+	 */
+	private static PacketDispatcher<ClientActions> createDispatcher() {
+		PacketDispatcher<ClientActions> dispatcher = new PacketDispatcher<>(actions -> actions.manager.disconnect(), null);
+		dispatcher.register(ProtocolID.CHANNEL_BROADCAST, (actions, packet) -> actions.processBroadcastMessage(bytes(packet)));
+		dispatcher.register(ProtocolID.LIST_USERS, (actions, packet) -> actions.processListUsers(bytes(packet)));
+		dispatcher.register(ProtocolID.PRIVATE_MESSAGE, (actions, packet) -> actions.processPrivateMessage(bytes(packet)));
+		dispatcher.register(ProtocolID.JOIN_CHANNEL, (actions, packet) -> actions.processJoinChannel(text(packet)));
+		dispatcher.register(ProtocolID.CLIENT_JOINED, (actions, packet) -> actions.processChannelInformation(text(packet)), ErrorPolicy.IGNORE);
+		dispatcher.register(ProtocolID.CLIENT_LEFT, (actions, packet) -> actions.processChannelInformation(text(packet)), ErrorPolicy.IGNORE);
+		dispatcher.register(ProtocolID.MEMBERSHIP_CHANGES, (actions, packet) -> actions.processMembershipChanges(text(packet)), ErrorPolicy.IGNORE);
+		dispatcher.register(ProtocolID.LIST_CHANNELS, (actions, packet) -> actions.updateChannelList(text(packet)));
+		dispatcher.register(ProtocolID.LEAVE_CHANNEL, (actions, packet) -> actions.leaveChannel(text(packet)));
+		dispatcher.register(ProtocolID.ADMIN_HEAVY_HITTERS, (actions, packet) -> actions.processChannelInformation(text(packet)), ErrorPolicy.IGNORE);
+		dispatcher.register(ProtocolID.PING, (actions, packet) -> actions.sendPong());
+		dispatcher.register(ProtocolID.SESSION_TOKEN, (actions, packet) -> actions.manager.setSessionToken(text(packet)));
+		dispatcher.register(ProtocolID.USER_PRESENCE, (actions, packet) -> actions.processUserPresence(text(packet)), ErrorPolicy.IGNORE);
+		dispatcher.register(ProtocolID.USER_PAGE, (actions, packet) -> actions.processUserPage(text(packet)), ErrorPolicy.IGNORE);
+		dispatcher.register(ProtocolID.CHANNEL_SEQUENCE, (actions, packet) -> actions.processChannelSequence(text(packet)));
+		// Closed by the server on purpose, e.g. the nickname was taken, so there is no point in reconnecting
+		dispatcher.register(ProtocolID.CONNECTION_CLOSED, (actions, packet) -> actions.manager.disconnect(text(packet)));
+		return dispatcher;
+	}
+	
+	/**
+	 * Gets the payload of a packet
+	 * @param packet The packet
+	 * @return The payload, empty if the packet has none
+	 */
+	private static byte[] bytes(Packet packet) {
+		return packet.getData() == null ? EMPTY : packet.getData();
+	}
+	
+	/**
+	 * Decodes the payload of a packet
+	 * @param packet The packet
+	 * @return The payload as UTF-8 text
+	 */
+	private static String text(Packet packet) {
+		return new String(bytes(packet), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Processes the received packet with the handler of its type
 	 * @param packet Packet to process
 	 */
 	public void processPacket(Packet packet) {
-		int type = packet.getHeader().getType();
-        String data = new String(packet.getData(), StandardCharsets.UTF_8);
-        if (type == ProtocolID.CHANNEL_BROADCAST.ordinal()) {
-        	processBroadcastMessage(data);
-        } else if (type == ProtocolID.LIST_USERS.ordinal()) {
-        	processListUsers(data);
-        } else if (type == ProtocolID.JOIN_CHANNEL.ordinal()) {
-        	processJoinChannel(data);
-        } else if (type == ProtocolID.CLIENT_JOINED.ordinal()) {
-        	processChannelInformation(data);
-        } else if (type == ProtocolID.CLIENT_LEFT.ordinal()) {
-        	processChannelInformation(data);
-        } else if (type == ProtocolID.LIST_CHANNELS.ordinal()) {
-        	updateChannelList(data);
-        } else if (type == ProtocolID.LEAVE_CHANNEL.ordinal()) {
-        	leaveChannel(data);
-        }
+		DISPATCHER.dispatch(this, packet);
+	}
+	
+	/**
+	 * Sets the sequence number of the latest message of a channel
+	 * @param data CHANNEL_ID:SEQUENCE
+	 */
+	private void processChannelSequence(String data) {
+		int index = data.indexOf(":");
+		try {
+			this.channelManager.setSequence(Integer.parseInt(data.substring(0, index)), Long.parseLong(data.substring(index + 1)));
+		} catch(RuntimeException e) {
+			this.manager.disconnect();
+		}
 	}
 	
 	private void leaveChannel(String channelIDStr) {
@@ -118,6 +267,60 @@ public class ClientActions {
 		this.channelManager.broadcastMessageReceived(Integer.parseInt(info.substring(0, index)), info.substring(index + 1));
 	}
 	
+	/**
+	 * Shows the joins and leaves the server collected on a channel as one line each
+	 * @param data CHANNEL_ID:JOINED:LEFT followed by +NICKNAME and -NICKNAME lines
+	 */
+	private void processMembershipChanges(String data) {
+		String[] lines = data.split("\n");
+		String[] header = lines[0].split(":");
+		if (header.length != 3) {
+			this.manager.disconnect();
+			return;
+		}
+		try {
+			int channelID = Integer.parseInt(header[0]);
+			int joined = Integer.parseInt(header[1]);
+			int left = Integer.parseInt(header[2]);
+			List<String> joinedNames = new ArrayList<>();
+			List<String> leftNames = new ArrayList<>();
+			for (int i = 1; i < lines.length; i++) {
+				if (lines[i].startsWith("+")) {
+					joinedNames.add(lines[i].substring(1));
+				} else if (lines[i].startsWith("-")) {
+					leftNames.add(lines[i].substring(1));
+				}
+			}
+			if (joined > 0) {
+				this.channelManager.broadcastMessageReceived(channelID, describeChanges(joined, joinedNames, "joined"));
+			}
+			if (left > 0) {
+				this.channelManager.broadcastMessageReceived(channelID, describeChanges(left, leftNames, "left"));
+			}
+		} catch(NumberFormatException e) {
+			this.manager.disconnect();
+		}
+	}
+	
+	/**
+	 * Formats a line of collected joins or leaves
+	 * @param count Number of users who joined or left
+	 * @param names Nicknames the server sent, at most count
+	 * @param action joined or left
+	 * @return e.g. 3 users joined the channel: alice, bob and 1 more
+	 */
+	private static String describeChanges(int count, List<String> names, String action) {
+		StringBuilder line = new StringBuilder();
+		line.append(count).append(count == 1 ? " user " : " users ").append(action).append(" the channel");
+		if (!names.isEmpty()) {
+			line.append(": ").append(String.join(", ", names));
+			if (count > names.size()) {
+				line.append(" and ").append(count - names.size()).append(" more");
+			}
+		}
+		return line.toString();
+	}
+	
 	/**
 	 * Updates the channel to the list of joined channels
 	 * @param channelStr CHANNEL_ID:CHANNEL_NAME
@@ -140,58 +343,128 @@ public class ClientActions {
 	/**
 	 * Tries to join to a channel by the given name. If the channel does not exist it will be created
 	 * @param channelName Channel name to join
+	 * @return Future that completes when the request has been written
+	 */
+	public CompletableFuture<Void> joinToChannel(String channelName) {
+		return write(channelName, ProtocolID.JOIN_CHANNEL);
+	}
+	
+	/**
+	 * Forwards the received user list to the channel. The nicknames go through the nickname cache
+	 * @param data CHANNEL_ID:NICKNAME followed by the other nicknames on their own lines
 	 */
-	public void joinToChannel(String channelName) {
+	private void processListUsers(byte[] data) {
+		int index = PacketParser.indexOf(data, 0, ':');
+		if(index == -1 || index == data.length - 1) {
+			this.manager.disconnect();
+			return;
+		}
+		try{
+			int channelID = PacketParser.parseInt(data, 0, index);
+			int count = 1;
+			for(int i = index + 1; i < data.length; i++) {
+				if(data[i] == '\n') {
+					count++;
+				}
+			}
+			String[] userList = new String[count];
+			int start = index + 1;
+			for(int i = 0; i < count; i++) {
+				int end = PacketParser.indexOf(data, start, '\n');
+				if(end == -1) {
+					end = data.length;
+				}
+				userList[i] = this.parser.nickname(data, start, end);
+				start = end + 1;
+			}
+			this.channelManager.updateChannelUsers(channelID, userList);
+		} catch(NumberFormatException e) {
+			this.manager.disconnect();
+		}
+	}
+	
+	/**
+	 * Forwards the member count and the recently active members of a large channel
+	 * @param data CHANNEL_ID:COUNT followed by the recent members on their own lines
+	 */
+	private void processUserPresence(String data) {
+		String[] lines = data.split("\n");
+		int index = lines[0].indexOf(":");
+		if(index == -1) {
+			this.manager.disconnect();
+			return;
+		}
 		try {
-			this.protoSocket.write(channelName.getBytes("UTF-8"), ProtocolID.JOIN_CHANNEL);
-		} catch (Exception e) {
+			int channelID = Integer.parseInt(lines[0].substring(0, index));
+			int count = Integer.parseInt(lines[0].substring(index + 1));
+			String[] recent = new String[lines.length - 1];
+			System.arraycopy(lines, 1, recent, 0, recent.length);
+			this.channelManager.updateChannelPresence(channelID, count, recent);
+		} catch(NumberFormatException e) {
 			this.manager.disconnect();
 		}
 	}
 	
 	/**
-	 * Forwards the received user list to the channel
-	 * @param message
+	 * Forwards a page of the members of a large channel
+	 * @param data CHANNEL_ID:PREFIX:AFTER:MORE followed by the members on their own lines
 	 */
-	private void processListUsers(String message) {
-		int index = message.indexOf(":");
-		if(index == -1 || index == message.length() - 1) {
+	private void processUserPage(String data) {
+		String[] lines = data.split("\n");
+		String[] header = lines[0].split(":", -1);
+		if(header.length != 4) {
 			this.manager.disconnect();
 			return;
 		}
-		try{
-			int channelID = Integer.parseInt(message.substring(0, index));
-			String parsedMessage = message.substring(index + 1);
-			String[] userList = parsedMessage.split("\n");
-			this.channelManager.updateChannelUsers(channelID, userList);
+		try {
+			String[] names = new String[lines.length - 1];
+			System.arraycopy(lines, 1, names, 0, names.length);
+			this.channelManager.userPageReceived(Integer.parseInt(header[0]), header[1], header[2], header[3].equals("1"), names);
 		} catch(NumberFormatException e) {
 			this.manager.disconnect();
 		}
 	}
 	/**
-	 * Processes a received broadcastmessage
-	 * @param data The data of the received packet
+	 * Shows a received private message in the conversation with the other user. The server echoes the messages
+	 * this user sends and reports an unknown recipient with an empty sender
+	 * @param data FROM:TO:MESSAGE
 	 */
-	public void processBroadcastMessage(String data) {
-		int index = data.indexOf(":");
-		if (index == -1 || index == data.length() - 1) {
+	private void processPrivateMessage(byte[] data) {
+		int index = PacketParser.indexOf(data, 0, ':');
+		int second = index == -1 ? -1 : PacketParser.indexOf(data, index + 1, ':');
+		if (second == -1 || second == data.length - 1) {
+			this.manager.disconnect();
+			return;
+		}
+		String to = this.parser.nickname(data, index + 1, second);
+		if (index == 0) {
+			this.channelManager.getConversation(to, this).messageReceived(this.parser.text(data, second + 1, data.length));
+			return;
+		}
+		String from = this.parser.nickname(data, 0, index);
+		String other = from.equalsIgnoreCase(this.manager.getNickname()) ? to : from;
+		this.channelManager.getConversation(other, this).messageReceived(this.parser.message(data, 0, index, second + 1));
+	}
+	
+	/**
+	 * Processes a received broadcastmessage. The channel ID and the sender are parsed from the bytes and the only
+	 * String allocated is the rendered SENDER: MESSAGE, which is not built at all for an unknown channel
+	 * @param data CHANNEL_ID:SENDER:MESSAGE
+	 */
+	public void processBroadcastMessage(byte[] data) {
+		int index = PacketParser.indexOf(data, 0, ':');
+		int separator = index == -1 ? -1 : PacketParser.indexOf(data, index + 1, ':');
+		if (separator == -1 || separator == data.length - 1) {
 			this.manager.disconnect();
 			return;
 		}
 		try {
-			int channelID = Integer.parseInt(data.substring(0, index));
-			String parsedPacket = data.substring(index + 1);
-			index = parsedPacket.indexOf(":");
-			if(index == -1 || index == parsedPacket.length() - 1) {
-				this.manager.disconnect();
-				return;
+			Channel channel = this.channelManager.getChannel(PacketParser.parseInt(data, 0, index));
+			if(channel != null) {
+				channel.channelMessageReceived(this.parser.message(data, index + 1, separator, separator + 1));
 			}
-			String sender = parsedPacket.substring(0, index);
-			String message = parsedPacket.substring(index + 1);
-			this.channelManager.broadcastMessageReceived(channelID, sender + ": " + message);
 		} catch(NumberFormatException e){
 			this.manager.disconnect();
-			return;
 		}
 	}
 }
@@ -2,28 +2,45 @@ package Client;
 
 import java.awt.Toolkit;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.swing.JOptionPane;
 
+import ProtocolSocket.Batch;
+import ProtocolSocket.Header;
 import ProtocolSocket.Packet;
 import ProtocolSocket.ProtocolID;
 import ProtocolSocket.ProtocolSocket;
 
 /**
- * Handles the connection to the server
+ * Handles the connection to the server. A lost connection is reconnected automatically with exponential backoff
+ * and the session is resumed, so the nickname, the channels and the messages missed meanwhile are restored
  * @author etsubu
  *
  */
 public class ClientManager implements Runnable {
+	private static final long INITIAL_BACKOFF_MILLIS = 500;
+	private static final long MAX_BACKOFF_MILLIS = 30000;
+	private static final int MAX_RECONNECT_ATTEMPTS = 10;
+	/**
+	 * Header flags announcing what the client supports, sent with the nickname or session resume packet
+	 */
+	private static final int CAPABILITIES = Header.FLAG_BATCH | Header.FLAG_PING | Header.FLAG_MEMBERSHIP_CHANGES;
     private char[] password;
-	private ProtocolSocket protoSocket;
-	private boolean isConnected;
+	private volatile ProtocolSocket protoSocket;
+	private volatile boolean isConnected;
+	private volatile int generation;
+	private volatile Thread reader;
 	private UserInterface ui;
 	private String nickname;
 	private ClientActions actionHandler;
 	private ChannelManager channelManager;
+	private String serverAddress;
+	private String sessionToken;
+	private String sessionServer;
+	private String sessionNickname;
 	
 	/**
 	 * Initializes the ClientManager
@@ -48,7 +65,30 @@ public class ClientManager implements Runnable {
 	}
 	
 	/**
-	 * Tries to connect to the given server
+	 * Getter for the user nickname
+	 * @return Nickname of the user
+	 */
+	public String getNickname() {
+		return this.nickname;
+	}
+	
+	/**
+	 * Stores the session token received from the server. The session is resumed when reconnecting
+	 * to the same server with the same nickname. A different token after a reconnect means the old session
+	 * had expired, so the tabs of its channels are closed and the server sends the channels of the new one
+	 * @param token Token of the session
+	 */
+	public void setSessionToken(String token) {
+		if(this.sessionToken != null && !this.sessionToken.equals(token)) {
+			this.channelManager.removeChannels();
+		}
+		this.sessionToken = token;
+		this.sessionServer = this.serverAddress;
+		this.sessionNickname = this.nickname;
+	}
+	
+	/**
+	 * Tries to connect to the given server. If there is a session on the server the joined channels are restored
 	 * @param ip The ip address of the server
 	 * @return did the connection succeed
 	 */
@@ -62,8 +102,7 @@ public class ClientManager implements Runnable {
 		        if(str != null)
 		            password = str.toCharArray();
 		    }
-			this.protoSocket = new ProtocolSocket(ip, 7777, true, password);
-			this.protoSocket.write(this.nickname.getBytes(StandardCharsets.UTF_8), ProtocolID.CLIENT_NICKNAME);
+			this.protoSocket = openConnection(ip);
 		} catch(SSLHandshakeException e) {
 		    JOptionPane.showMessageDialog(null, "Server's certificate is not trusted!", "SSLHandshakeException", JOptionPane.ERROR_MESSAGE);
 		    return false;
@@ -78,10 +117,72 @@ public class ClientManager implements Runnable {
 			return false;
 		}
 		this.actionHandler = new ClientActions(this, this.channelManager, this.protoSocket);
+		this.generation++;
 		this.isConnected = true;
 		return true;
 	}
 	
+	/**
+	 * Connects to the server and sends the nickname, or the session token and the sequence numbers of the
+	 * latest received messages if there is a session on the server
+	 * @param ip The ip address of the server
+	 * @return The connection
+	 * @throws Exception If the connection failed
+	 */
+	private ProtocolSocket openConnection(String ip) throws Exception {
+		ProtocolSocket socket = new ProtocolSocket(ip, 7777, true, password);
+		this.serverAddress = ip;
+		try {
+			if(this.sessionToken != null && ip.equals(this.sessionServer) && this.nickname.equals(this.sessionNickname)) {
+				String resume = this.sessionToken + ":" + this.nickname + this.channelManager.getSequences();
+				socket.write(resume.getBytes(StandardCharsets.UTF_8), ProtocolID.SESSION_RESUME, CAPABILITIES);
+			} else {
+				socket.write(this.nickname.getBytes(StandardCharsets.UTF_8), ProtocolID.CLIENT_NICKNAME, CAPABILITIES);
+			}
+		} catch(Exception e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+	
+	/**
+	 * Reconnects to the server after the connection was lost. The delay doubles after every failed attempt and is
+	 * randomized so the clients of a restarted server do not reconnect all at once
+	 * @param current Generation of the lost connection
+	 * @return True if the client reconnected, false if it gave up or was disconnected meanwhile
+	 */
+	private boolean reconnect(int current) {
+		long backoff = INITIAL_BACKOFF_MILLIS;
+		for(int attempt = 1; attempt <= MAX_RECONNECT_ATTEMPTS; attempt++) {
+			this.channelManager.statusMessage("Connection lost, reconnecting (" + attempt + "/" + MAX_RECONNECT_ATTEMPTS + ")...");
+			try {
+				Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+			} catch(InterruptedException e) {
+				return false;
+			}
+			if(current != this.generation) {
+				return false;
+			}
+			try {
+				ProtocolSocket socket = openConnection(this.serverAddress);
+				if(current != this.generation) {
+					socket.close();
+					return false;
+				}
+				this.protoSocket = socket;
+				this.actionHandler.setProtocolSocket(socket);
+				this.channelManager.resubscribe();
+				this.channelManager.statusMessage("Reconnected");
+				return true;
+			} catch(Exception e) {
+				// The server is still unreachable
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+		}
+		return false;
+	}
+	
 	/**
 	 * Getter for the ClientActions of this Client
 	 * @return ClientActions of this client
@@ -94,11 +195,27 @@ public class ClientManager implements Runnable {
 	 * Disconnects the client from the server
 	 */
 	public void disconnect() {
+		disconnect("");
+	}
+	
+	/**
+	 * Disconnects the client from the server without reconnecting
+	 * @param message Message shown to the user
+	 */
+	public void disconnect(String message) {
+		this.generation++;
+		if(this.actionHandler != null) {
+			this.actionHandler.close();
+		}
+		Thread thread = this.reader;
+		if(thread != null && thread != Thread.currentThread()) {
+			thread.interrupt();
+		}
 	    if(protoSocket != null)
 	        this.protoSocket.close();
 		this.channelManager.cleanup();
 		this.isConnected = false;
-		this.ui.connectionLost("");
+		this.ui.connectionLost(message);
 	}
 	
 	/**
@@ -111,12 +228,29 @@ public class ClientManager implements Runnable {
 
 	@Override
 	public void run() {
-		while (this.isConnected) {
+		int current = this.generation;
+		this.reader = Thread.currentThread();
+		while (this.isConnected && current == this.generation) {
 			try {
 				Packet packet = this.protoSocket.readPacket();
-				this.actionHandler.processPacket(packet);
+				if(packet.getHeader().getType() == ProtocolID.BATCH.ordinal()) {
+					for(Packet batched : Batch.unpack(packet)) {
+						this.actionHandler.processPacket(batched);
+					}
+				} else {
+					this.actionHandler.processPacket(packet);
+				}
 			} catch (Exception e) {
-				disconnect();
+				if(current != this.generation) {
+					// Disconnected on purpose
+					break;
+				}
+				if(!reconnect(current)) {
+					if(current == this.generation) {
+						disconnect();
+					}
+					break;
+				}
 			}
 		}
 	}
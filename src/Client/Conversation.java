@@ -0,0 +1,55 @@
+package Client;
+
+/**
+ * Private conversation with a single user. Shown in its own tab like a channel but the messages are
+ * sent directly to the other user
+ * @author etsubu
+ *
+ */
+public class Conversation extends Channel {
+	private String nickname;
+
+	/**
+	 * Initializes the conversation
+	 * @param nickname Nickname of the other user
+	 * @param clientHandler ClientActions of the connected client
+	 */
+	public Conversation(String nickname, ClientActions clientHandler) {
+		super(-1, "@" + nickname, clientHandler);
+		this.nickname = nickname;
+		setUserList(new String[] {nickname});
+	}
+
+	/**
+	 * Getter for the nickname of the other user
+	 * @return Nickname of the other user
+	 */
+	public String getNickname() {
+		return this.nickname;
+	}
+
+	@Override
+	public void sendMessage(String message) {
+		notifyIfFailed(getClientActions().sendPrivateMessage(this.nickname, message), "Message could not be sent: " + message);
+	}
+
+	@Override
+	public void subscribeUserList() {
+		// The user list of a conversation is only the other user
+	}
+
+	@Override
+	public void unsubscribeUserList() {
+		// The user list of a conversation is only the other user
+	}
+
+	@Override
+	public void requestHeavyHitters(String kind) {
+		messageReceived("/hot can only be used on channels");
+	}
+
+	@Override
+	public void leaveChannel() {
+		getClientActions().closeConversation(this);
+	}
+}
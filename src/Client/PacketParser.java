@@ -0,0 +1,197 @@
+package Client;
+
+import java.util.Arrays;
+
+/**
+ * Parses the fields of received packets straight from their bytes, so the inbound path does not build a String of the
+ * whole packet only to slice it. Nicknames are interned through a small cache since the same few senders repeat, and
+ * the text that is rendered is decoded into a reused buffer so it is the only String allocated per message
+ * @author etsubu
+ *
+ */
+class PacketParser {
+	private static final int NICKNAME_CACHE_SIZE = 256;
+	private static final char REPLACEMENT = '\uFFFD';
+	private final byte[][] cachedBytes;
+	private final String[] cachedNicknames;
+	private char[] text;
+
+	/**
+	 * Initializes the parser with an empty nickname cache
+	 */
+	PacketParser() {
+		this.cachedBytes = new byte[NICKNAME_CACHE_SIZE][];
+		this.cachedNicknames = new String[NICKNAME_CACHE_SIZE];
+		this.text = new char[256];
+	}
+
+	/**
+	 * Finds the next occurrence of an ASCII character
+	 * @param data Bytes of the packet
+	 * @param from Index to start from
+	 * @param c The character
+	 * @return Index of the character or -1 if it is not found
+	 */
+	static int indexOf(byte[] data, int from, char c) {
+		for(int i = from; i < data.length; i++) {
+			if(data[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses a non-negative decimal int
+	 * @param data Bytes of the packet
+	 * @param from Index of the first digit
+	 * @param to Index after the last digit
+	 * @return The parsed int
+	 * @throws NumberFormatException If the bytes are not digits or the value does not fit in an int
+	 */
+	static int parseInt(byte[] data, int from, int to) throws NumberFormatException {
+		if(from >= to || to - from > 10) {
+			throw new NumberFormatException();
+		}
+		long value = 0;
+		for(int i = from; i < to; i++) {
+			int digit = data[i] - '0';
+			if(digit < 0 || digit > 9) {
+				throw new NumberFormatException();
+			}
+			value = value * 10 + digit;
+		}
+		if(value > Integer.MAX_VALUE) {
+			throw new NumberFormatException();
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Gets the nickname encoded in the bytes. A nickname that was seen recently is returned from the cache without
+	 * allocating
+	 * @param data Bytes of the packet
+	 * @param from Index of the first byte of the nickname
+	 * @param to Index after the last byte of the nickname
+	 * @return The nickname
+	 */
+	synchronized String nickname(byte[] data, int from, int to) {
+		int hash = 1;
+		for(int i = from; i < to; i++) {
+			hash = 31 * hash + data[i];
+		}
+		int slot = (hash ^ (hash >>> 16)) & (NICKNAME_CACHE_SIZE - 1);
+		byte[] cached = this.cachedBytes[slot];
+		if(cached != null && Arrays.equals(cached, 0, cached.length, data, from, to)) {
+			return this.cachedNicknames[slot];
+		}
+		String nickname = text(data, from, to);
+		this.cachedBytes[slot] = Arrays.copyOfRange(data, from, to);
+		this.cachedNicknames[slot] = nickname;
+		return nickname;
+	}
+
+	/**
+	 * Decodes a message as it is rendered, SENDER: MESSAGE. The message runs to the end of the packet
+	 * @param data Bytes of the packet
+	 * @param senderFrom Index of the first byte of the sender
+	 * @param senderTo Index after the last byte of the sender
+	 * @param messageFrom Index of the first byte of the message
+	 * @return The rendered text
+	 */
+	synchronized String message(byte[] data, int senderFrom, int senderTo, int messageFrom) {
+		// UTF-8 never decodes to more chars than it has bytes
+		ensureCapacity(senderTo - senderFrom + 2 + data.length - messageFrom);
+		int length = decode(data, senderFrom, senderTo, this.text, 0);
+		this.text[length++] = ':';
+		this.text[length++] = ' ';
+		length = decode(data, messageFrom, data.length, this.text, length);
+		return new String(this.text, 0, length);
+	}
+
+	/**
+	 * Decodes UTF-8 bytes to a String
+	 * @param data Bytes of the packet
+	 * @param from Index of the first byte
+	 * @param to Index after the last byte
+	 * @return The decoded String
+	 */
+	synchronized String text(byte[] data, int from, int to) {
+		ensureCapacity(to - from);
+		return new String(this.text, 0, decode(data, from, to, this.text, 0));
+	}
+
+	/**
+	 * Grows the reused decoding buffer
+	 * @param capacity Number of chars needed
+	 */
+	private void ensureCapacity(int capacity) {
+		if(this.text.length < capacity) {
+			this.text = new char[Math.max(capacity, this.text.length * 2)];
+		}
+	}
+
+	/**
+	 * Decodes UTF-8 bytes into a char array. Malformed sequences are decoded as U+FFFD
+	 * @param data The bytes
+	 * @param from Index of the first byte
+	 * @param to Index after the last byte
+	 * @param chars Array to decode into, at least to - from chars from the position
+	 * @param position Index of the first char to write
+	 * @return Index after the last written char
+	 */
+	private static int decode(byte[] data, int from, int to, char[] chars, int position) {
+		int i = from;
+		while(i < to) {
+			int b = data[i++];
+			if(b >= 0) {
+				chars[position++] = (char) b;
+				continue;
+			}
+			int extra;
+			int code;
+			if((b & 0xE0) == 0xC0) {
+				extra = 1;
+				code = b & 0x1F;
+			} else if((b & 0xF0) == 0xE0) {
+				extra = 2;
+				code = b & 0x0F;
+			} else if((b & 0xF8) == 0xF0) {
+				extra = 3;
+				code = b & 0x07;
+			} else {
+				chars[position++] = REPLACEMENT;
+				continue;
+			}
+			if(i + extra > to) {
+				chars[position++] = REPLACEMENT;
+				break;
+			}
+			boolean valid = true;
+			for(int j = 0; j < extra; j++) {
+				int next = data[i + j];
+				if((next & 0xC0) != 0x80) {
+					valid = false;
+					break;
+				}
+				code = (code << 6) | (next & 0x3F);
+			}
+			if(!valid || code < (extra == 1 ? 0x80 : extra == 2 ? 0x800 : 0x10000) || code > Character.MAX_CODE_POINT
+					|| (code >= Character.MIN_SURROGATE && code <= Character.MAX_SURROGATE)) {
+				chars[position++] = REPLACEMENT;
+				if(valid) {
+					i += extra;
+				}
+				continue;
+			}
+			i += extra;
+			if(code >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+				chars[position++] = Character.highSurrogate(code);
+				chars[position++] = Character.lowSurrogate(code);
+			} else {
+				chars[position++] = (char) code;
+			}
+		}
+		return position;
+	}
+}
@@ -0,0 +1,158 @@
+package Client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import ProtocolSocket.Frame;
+import ProtocolSocket.ProtocolSocket;
+
+/**
+ * Outbound queue of the client. The UI only encodes a frame and queues it, a single writer thread writes the queued
+ * frames in order, so a stalled connection never blocks the event dispatch thread and frames sent from different
+ * threads cannot interleave on the socket. Frames that have queued up meanwhile are written with one flush. Every send
+ * returns a future that completes when the frame has been written or fails when it could not be
+ * @author etsubu
+ *
+ */
+class PacketSender implements Runnable {
+	private static final int MAX_BATCH = 64;
+
+	/**
+	 * Queued frame with the connection it was meant for
+	 */
+	private static class Pending {
+		private final Frame frame;
+		private final ProtocolSocket socket;
+		private final CompletableFuture<Void> future;
+
+		private Pending(Frame frame, ProtocolSocket socket) {
+			this.frame = frame;
+			this.socket = socket;
+			this.future = new CompletableFuture<>();
+		}
+	}
+
+	private final LinkedBlockingQueue<Pending> queue;
+	private final Thread writer;
+	private volatile ProtocolSocket socket;
+	private volatile boolean closed;
+	private ProtocolSocket failed;
+
+	/**
+	 * Initializes the queue and starts the writer thread
+	 * @param socket The connection the frames are written to
+	 */
+	PacketSender(ProtocolSocket socket) {
+		this.socket = socket;
+		this.queue = new LinkedBlockingQueue<>();
+		this.writer = new Thread(this, "client-sender");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Replaces the connection after the client has reconnected. Frames queued for the lost connection are not sent
+	 * @param socket The new connection
+	 */
+	void setSocket(ProtocolSocket socket) {
+		this.socket = socket;
+	}
+
+	/**
+	 * Queues a frame to the current connection
+	 * @param frame Frame to send
+	 * @return Future that completes when the frame has been written
+	 */
+	CompletableFuture<Void> send(Frame frame) {
+		Pending pending = new Pending(frame, this.socket);
+		if(this.closed) {
+			pending.future.completeExceptionally(new IOException("Not connected"));
+			return pending.future;
+		}
+		this.queue.add(pending);
+		if(this.closed) {
+			failQueued();
+		}
+		return pending.future;
+	}
+
+	/**
+	 * Stops the writer thread. The frames that have not been written fail
+	 */
+	void close() {
+		this.closed = true;
+		this.writer.interrupt();
+		failQueued();
+	}
+
+	/**
+	 * Fails every frame that is still queued
+	 */
+	private void failQueued() {
+		Pending pending;
+		while((pending = this.queue.poll()) != null) {
+			pending.future.completeExceptionally(new IOException("Not connected"));
+		}
+	}
+
+	/**
+	 * Writes a batch of frames meant for the same connection. A failed write closes the connection, which the
+	 * reading thread notices and reconnects, and fails the rest of the frames queued for it
+	 * @param batch Frames to write
+	 * @param socket Connection of the frames
+	 */
+	private void write(List<Pending> batch, ProtocolSocket socket) {
+		if(batch.isEmpty()) {
+			return;
+		}
+		List<Frame> frames = new ArrayList<>(batch.size());
+		for(Pending pending : batch) {
+			frames.add(pending.frame);
+		}
+		try {
+			if(socket == this.failed) {
+				throw new IOException("Connection lost");
+			}
+			socket.writeFrames(frames);
+			for(Pending pending : batch) {
+				pending.future.complete(null);
+			}
+		} catch(IOException e) {
+			this.failed = socket;
+			socket.close();
+			for(Pending pending : batch) {
+				pending.future.completeExceptionally(e);
+			}
+		}
+		batch.clear();
+	}
+
+	@Override
+	public void run() {
+		List<Pending> taken = new ArrayList<>(MAX_BATCH);
+		List<Pending> batch = new ArrayList<>(MAX_BATCH);
+		while(!this.closed) {
+			try {
+				taken.add(this.queue.take());
+			} catch(InterruptedException e) {
+				break;
+			}
+			this.queue.drainTo(taken, MAX_BATCH - 1);
+			// A reconnect can happen between two frames, so a batch only holds frames of one connection
+			ProtocolSocket socket = taken.get(0).socket;
+			for(Pending pending : taken) {
+				if(pending.socket != socket) {
+					write(batch, socket);
+					socket = pending.socket;
+				}
+				batch.add(pending);
+			}
+			write(batch, socket);
+			taken.clear();
+		}
+		failQueued();
+	}
+}
@@ -68,6 +68,7 @@ public class UserInterface{
 		if(this.manager.connectToServer(ip)) {
 			this.optionsPanel.setConnected(true);
 			this.channnelPanel.enable(this.manager.getClientActions());
+			this.userListPanel.enable(this.manager.getClientActions());
 			new Thread(this.manager).start();
 		} else {
 			this.optionsPanel.setConnected(false);
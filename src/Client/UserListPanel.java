@@ -1,24 +1,47 @@
 package Client;
 
 import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
+import java.util.List;
 
 import javax.swing.BoxLayout;
 import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JPanel;
+import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 /**
- * Contains the list of users on the current channel and different options to interact with them
+ * Contains the list of users on the current channel and different options to interact with them.
+ * A large channel shows its member count, with the recently active members as the tooltip, and loads
+ * the members a page at a time as the list is scrolled down. The filter field lists only the members
+ * whose nickname starts with it
  * @author etsubu
  *
  */
-public class UserListPanel extends JPanel{
+public class UserListPanel extends JPanel implements ActionListener, AdjustmentListener, DocumentListener {
 	
 	private static final long serialVersionUID = 1L;
+	/**
+	 * The next page is requested when the list is scrolled this many rows from the bottom
+	 */
+	private static final int LOAD_AHEAD_ROWS = 10;
+	private JLabel countLabel;
+	private JTextField filterField;
+	private Channel channel;
 	private DefaultListModel<String> userListModel;
 	private JList<String> userList;
 	private JScrollPane listScroller;
+	private JButton messageButton;
+	private ClientActions clientActions;
 	
 	/**
 	 * Initializes the UserListPanel
@@ -33,17 +56,40 @@ public class UserListPanel extends JPanel{
 	 * Initializes the components
 	 */
 	private void initComponents() {
+		this.countLabel = new JLabel();
+		this.countLabel.setVisible(false);
+		this.filterField = new JTextField();
+		this.filterField.setMaximumSize(new Dimension(Integer.MAX_VALUE, this.filterField.getPreferredSize().height));
+		this.filterField.setToolTipText("Show the users whose nickname starts with");
+		this.filterField.getDocument().addDocumentListener(this);
+		this.filterField.setVisible(false);
 		this.userListModel = new DefaultListModel<String>();
 		this.userList = new JList<String>(this.userListModel);
 		this.listScroller = new JScrollPane(this.userList);
+		this.listScroller.getVerticalScrollBar().addAdjustmentListener(this);
+		this.messageButton = new JButton("Message");
+		this.messageButton.addActionListener(this);
 		
+		this.add(this.countLabel);
+		this.add(this.filterField);
 		this.add(this.listScroller);
+		this.add(this.messageButton);
+	}
+	
+	/**
+	 * Sets the status to enabled
+	 * @param actions The ClientActions used to open conversations with the users
+	 */
+	public void enable(ClientActions actions) {
+		this.clientActions = actions;
+		this.messageButton.setEnabled(true);
 	}
 	
 	/**
 	 * Called when connection is lost. Cleans the user list
 	 */
 	public void cleanup() {
+		this.channel = null;
 		this.userListModel.clear();
 	}
 	
@@ -51,7 +97,9 @@ public class UserListPanel extends JPanel{
 	 * Disables the components in the panel
 	 */
 	public void deactive() {
+		this.channel = null;
 		this.userListModel.clear();
+		this.messageButton.setEnabled(false);
 	}
 	
 	/**
@@ -66,5 +114,96 @@ public class UserListPanel extends JPanel{
 		    }
 		}
 	}
+	
+	/**
+	 * Shows the users of the current channel. The whole list of a small channel is shown as is, a large channel shows
+	 * the loaded pages and requests the first page if none has been loaded
+	 * @param channel The current channel
+	 */
+	public void update(Channel channel) {
+		boolean changed = channel != this.channel;
+		this.channel = channel;
+		if(!channel.isLarge()) {
+			this.countLabel.setVisible(false);
+			this.filterField.setVisible(false);
+			updateUserList(channel.getUserList());
+			return;
+		}
+		if(changed) {
+			this.filterField.setText("");
+		}
+		String[] recent = channel.getRecentMembers();
+		this.countLabel.setText(channel.getMemberCount() + " users");
+		this.countLabel.setToolTipText(recent == null || recent.length == 0 ? null : "Recently active: " + String.join(", ", recent));
+		this.countLabel.setVisible(true);
+		this.filterField.setVisible(true);
+		List<String> roster = channel.getRoster();
+		if(changed || roster.size() < this.userListModel.size()) {
+			this.userListModel.clear();
+		}
+		for(int i = this.userListModel.size(); i < roster.size(); i++) {
+			this.userListModel.addElement(roster.get(i));
+		}
+		if(roster.isEmpty()) {
+			channel.requestRosterPage(getPrefix());
+		}
+		revalidate();
+	}
+	
+	/**
+	 * Getter for the prefix in the filter field. The separators of the protocol are dropped
+	 * @return The prefix
+	 */
+	private String getPrefix() {
+		return this.filterField.getText().replaceAll("[:\\s]", "");
+	}
+	
+	/**
+	 * Requests the members that match the changed filter
+	 */
+	private void filterChanged() {
+		Channel current = this.channel;
+		if(current != null && current.isLarge()) {
+			this.userListModel.clear();
+			current.requestRosterPage(getPrefix());
+		}
+	}
+	
+	@Override
+	public void adjustmentValueChanged(AdjustmentEvent e) {
+		Channel current = this.channel;
+		if(current == null || !current.isLarge()) {
+			return;
+		}
+		JScrollBar bar = this.listScroller.getVerticalScrollBar();
+		int remaining = bar.getMaximum() - bar.getValue() - bar.getVisibleAmount();
+		int rowHeight = Math.max(1, this.userList.getFixedCellHeight() > 0 ? this.userList.getFixedCellHeight() : this.userList.getFont().getSize());
+		if(remaining <= LOAD_AHEAD_ROWS * rowHeight) {
+			current.requestRosterPage(getPrefix());
+		}
+	}
+	
+	@Override
+	public void insertUpdate(DocumentEvent e) {
+		filterChanged();
+	}
+	
+	@Override
+	public void removeUpdate(DocumentEvent e) {
+		filterChanged();
+	}
+	
+	@Override
+	public void changedUpdate(DocumentEvent e) {
+		filterChanged();
+	}
+	
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		String nickname = this.userList.getSelectedValue();
+		if(nickname != null && this.clientActions != null) {
+			this.clientActions.openConversation(nickname);
+		}
+	}
 
 }
@@ -0,0 +1,91 @@
+package Metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-min sketch for estimating the counts of a large population of keys in constant memory.
+ * Estimates never undercount and overcount by at most total/width with high probability.
+ * Updates are lock free and never allocate
+ * @author etsubu
+ *
+ */
+public class CountMinSketch {
+	private static final long[] SEEDS = {
+			0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L,
+			0xFF51AFD7ED558CCDL, 0xC4CEB9FE1A85EC53L, 0x27D4EB2F165667C5L, 0x94D049BB133111EBL};
+	private final int depth;
+	private final int width;
+	private final int mask;
+	private final AtomicLongArray counters;
+
+	/**
+	 * Initializes the sketch
+	 * @param width Number of counters per row, rounded up to a power of two
+	 * @param depth Number of rows, between 1 and 8
+	 */
+	public CountMinSketch(int width, int depth) {
+		if(depth < 1 || depth > SEEDS.length || width < 1) {
+			throw new IllegalArgumentException("Invalid sketch dimensions");
+		}
+		int roundedWidth = Integer.highestOneBit(width);
+		if(roundedWidth < width) {
+			roundedWidth <<= 1;
+		}
+		this.depth = depth;
+		this.width = roundedWidth;
+		this.mask = roundedWidth - 1;
+		this.counters = new AtomicLongArray(roundedWidth * depth);
+	}
+
+	/**
+	 * Mixes the key with the seed of the row
+	 * @param key Key to hash
+	 * @param row Row of the sketch
+	 * @return Index of the counter in the row
+	 */
+	private int index(long key, int row) {
+		long h = key ^ SEEDS[row];
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return row * this.width + ((int) h & this.mask);
+	}
+
+	/**
+	 * Adds to the count of the key
+	 * @param key The key
+	 * @param amount Amount to add
+	 * @return Estimated count of the key after the addition
+	 */
+	public long add(long key, long amount) {
+		long estimate = Long.MAX_VALUE;
+		for(int row = 0; row < this.depth; row++) {
+			estimate = Math.min(estimate, this.counters.addAndGet(index(key, row), amount));
+		}
+		return estimate;
+	}
+
+	/**
+	 * Estimates the count of the key
+	 * @param key The key
+	 * @return Estimated count
+	 */
+	public long estimate(long key) {
+		long estimate = Long.MAX_VALUE;
+		for(int row = 0; row < this.depth; row++) {
+			estimate = Math.min(estimate, this.counters.get(index(key, row)));
+		}
+		return estimate;
+	}
+
+	/**
+	 * Resets all the counts to zero
+	 */
+	public void clear() {
+		for(int i = 0; i < this.counters.length(); i++) {
+			this.counters.set(i, 0);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package Metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonically increasing counter. The value is striped over several cells so that
+ * concurrent writers do not contend on a single memory location. Incrementing never allocates
+ * @author etsubu
+ *
+ */
+public class Counter implements Metric {
+	private final LongAdder value;
+
+	/**
+	 * Initializes the counter to zero
+	 */
+	public Counter() {
+		this.value = new LongAdder();
+	}
+
+	/**
+	 * Increments the counter by one
+	 */
+	public void inc() {
+		this.value.increment();
+	}
+
+	/**
+	 * Increments the counter by the given amount
+	 * @param amount Amount to add
+	 */
+	public void add(long amount) {
+		this.value.add(amount);
+	}
+
+	/**
+	 * Getter for the current value
+	 * @return Sum of all the increments
+	 */
+	public long get() {
+		return this.value.sum();
+	}
+
+	@Override
+	public String getType() {
+		return "counter";
+	}
+
+	@Override
+	public void writePrometheus(String name, String labels, StringBuilder out) {
+		MetricsRegistry.appendSample(out, name, labels, null, get());
+	}
+}
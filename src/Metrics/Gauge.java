@@ -0,0 +1,59 @@
+package Metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Value that can go up and down, such as the number of connected users
+ * @author etsubu
+ *
+ */
+public class Gauge implements Metric {
+	private final LongAdder value;
+
+	/**
+	 * Initializes the gauge to zero
+	 */
+	public Gauge() {
+		this.value = new LongAdder();
+	}
+
+	/**
+	 * Increments the gauge by one
+	 */
+	public void inc() {
+		this.value.increment();
+	}
+
+	/**
+	 * Decrements the gauge by one
+	 */
+	public void dec() {
+		this.value.decrement();
+	}
+
+	/**
+	 * Adds the given amount to the gauge
+	 * @param amount Amount to add, may be negative
+	 */
+	public void add(long amount) {
+		this.value.add(amount);
+	}
+
+	/**
+	 * Getter for the current value
+	 * @return Current value of the gauge
+	 */
+	public long get() {
+		return this.value.sum();
+	}
+
+	@Override
+	public String getType() {
+		return "gauge";
+	}
+
+	@Override
+	public void writePrometheus(String name, String labels, StringBuilder out) {
+		MetricsRegistry.appendSample(out, name, labels, null, get());
+	}
+}
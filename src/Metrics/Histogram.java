@@ -0,0 +1,146 @@
+package Metrics;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram with fixed bucket boundaries. Recording a value is a binary search over the
+ * boundaries and an increment of a striped counter so it never allocates
+ * @author etsubu
+ *
+ */
+public class Histogram implements Metric {
+	private final long[] bounds;
+	private final LongAdder[] buckets;
+	private final LongAdder sum;
+	private final double exportScale;
+	private final String[] boundLabels;
+
+	/**
+	 * Initializes the histogram
+	 * @param bounds Inclusive upper bounds of the buckets in ascending order. Values above the last bound go to +Inf bucket
+	 * @param exportScale Multiplier applied to the bounds and sum when exported, e.g. 1e-9 to export nanoseconds as seconds
+	 */
+	public Histogram(long[] bounds, double exportScale) {
+		this.bounds = Arrays.copyOf(bounds, bounds.length);
+		this.buckets = new LongAdder[bounds.length + 1];
+		for(int i = 0; i < this.buckets.length; i++) {
+			this.buckets[i] = new LongAdder();
+		}
+		this.sum = new LongAdder();
+		this.exportScale = exportScale;
+		// Scaled in decimal so the labels read 0.000001 instead of 1.0000000000000002E-6, and built once instead of per scrape
+		this.boundLabels = new String[bounds.length];
+		for(int i = 0; i < bounds.length; i++) {
+			BigDecimal bound = BigDecimal.valueOf(bounds[i]).multiply(BigDecimal.valueOf(exportScale));
+			this.boundLabels[i] = "le=\"" + bound.stripTrailingZeros().toPlainString() + "\"";
+		}
+	}
+
+	/**
+	 * Creates bucket boundaries that grow exponentially
+	 * @param start The first boundary
+	 * @param factor Growth factor between boundaries
+	 * @param count Number of boundaries
+	 * @return Bucket boundaries
+	 */
+	public static long[] exponentialBounds(long start, double factor, int count) {
+		long[] bounds = new long[count];
+		double bound = start;
+		for(int i = 0; i < count; i++) {
+			bounds[i] = (long) bound;
+			bound = Math.max(bound * factor, bounds[i] + 1);
+		}
+		return bounds;
+	}
+
+	/**
+	 * Creates a histogram suitable for latencies recorded in nanoseconds, from 1 microsecond to about 17 seconds
+	 * @return New latency histogram
+	 */
+	public static Histogram latencyNanos() {
+		return new Histogram(exponentialBounds(1_000L, 2.0, 25), 1e-9);
+	}
+
+	/**
+	 * Records a single value
+	 * @param value Value to record
+	 */
+	public void record(long value) {
+		int index = Arrays.binarySearch(this.bounds, value);
+		if(index < 0) {
+			index = -index - 1;
+		}
+		this.buckets[index].increment();
+		this.sum.add(value);
+	}
+
+	/**
+	 * Getter for the number of recorded values
+	 * @return Number of recorded values
+	 */
+	public long getCount() {
+		long count = 0;
+		for(LongAdder bucket : this.buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Getter for the sum of the recorded values
+	 * @return Sum of the recorded values
+	 */
+	public long getSum() {
+		return this.sum.sum();
+	}
+
+	/**
+	 * Calculates the mean of the recorded values
+	 * @return Mean value or 0 if nothing has been recorded
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) getSum() / count;
+	}
+
+	/**
+	 * Estimates the given percentile as the upper bound of the bucket containing it
+	 * @param percentile Percentile between 0 and 100
+	 * @return Estimated value, Long.MAX_VALUE if it falls to the +Inf bucket
+	 */
+	public long getPercentile(double percentile) {
+		long count = getCount();
+		if(count == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(count * percentile / 100.0);
+		long seen = 0;
+		for(int i = 0; i < this.bounds.length; i++) {
+			seen += this.buckets[i].sum();
+			if(seen >= target) {
+				return this.bounds[i];
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public String getType() {
+		return "histogram";
+	}
+
+	@Override
+	public void writePrometheus(String name, String labels, StringBuilder out) {
+		long cumulative = 0;
+		for(int i = 0; i < this.bounds.length; i++) {
+			cumulative += this.buckets[i].sum();
+			MetricsRegistry.appendSample(out, name + "_bucket", labels, this.boundLabels[i], cumulative);
+		}
+		cumulative += this.buckets[this.bounds.length].sum();
+		MetricsRegistry.appendSample(out, name + "_bucket", labels, "le=\"+Inf\"", cumulative);
+		MetricsRegistry.appendSample(out, name + "_sum", labels, null, getSum() * this.exportScale);
+		MetricsRegistry.appendSample(out, name + "_count", labels, null, cumulative);
+	}
+}
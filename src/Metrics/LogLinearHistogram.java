@@ -0,0 +1,140 @@
+package Metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HDR style histogram with a bounded relative error. Every power of two range is split into
+ * 2^subBucketBits linear sub buckets so the precision stays the same from microseconds to seconds.
+ * Recording is a few bit operations and an atomic increment so it never allocates
+ * @author etsubu
+ *
+ */
+public class LogLinearHistogram implements Metric {
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+	private final int subBucketBits;
+	private final int subBucketCount;
+	private final long maxValue;
+	private final AtomicLongArray counts;
+	private final LongAdder sum;
+	private final double exportScale;
+
+	/**
+	 * Initializes the histogram
+	 * @param subBucketBits Number of bits used for the linear sub buckets. 5 gives about 3% relative error
+	 * @param maxValueBits Values up to 2^maxValueBits - 1 are tracked, larger ones are clamped
+	 * @param exportScale Multiplier applied to the values when exported, e.g. 1e-9 to export nanoseconds as seconds
+	 */
+	public LogLinearHistogram(int subBucketBits, int maxValueBits, double exportScale) {
+		if(subBucketBits < 1 || maxValueBits <= subBucketBits || maxValueBits > 62) {
+			throw new IllegalArgumentException("Invalid histogram precision");
+		}
+		this.subBucketBits = subBucketBits;
+		this.subBucketCount = 1 << subBucketBits;
+		this.maxValue = (1L << maxValueBits) - 1;
+		this.counts = new AtomicLongArray((maxValueBits - subBucketBits + 1) * this.subBucketCount);
+		this.sum = new LongAdder();
+		this.exportScale = exportScale;
+	}
+
+	/**
+	 * Creates a histogram for latencies recorded in nanoseconds. Tracks values up to about 18 minutes with 3% precision
+	 * @return New latency histogram
+	 */
+	public static LogLinearHistogram latencyNanos() {
+		return new LogLinearHistogram(5, 40, 1e-9);
+	}
+
+	/**
+	 * Maps a value to its bucket
+	 * @param value Non negative value
+	 * @return Index of the bucket
+	 */
+	private int bucketIndex(long value) {
+		if(value < this.subBucketCount) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - this.subBucketBits;
+		int mantissa = (int) (value >>> shift);
+		return (shift + 1) * this.subBucketCount + (mantissa - this.subBucketCount);
+	}
+
+	/**
+	 * Maps a bucket to the highest value it contains
+	 * @param index Index of the bucket
+	 * @return Highest value that falls into the bucket
+	 */
+	private long highestValue(int index) {
+		if(index < this.subBucketCount) {
+			return index;
+		}
+		int shift = index / this.subBucketCount - 1;
+		long mantissa = index % this.subBucketCount + this.subBucketCount;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	/**
+	 * Records a single value. Negative values are recorded as zero and too large values are clamped
+	 * @param value Value to record
+	 */
+	public void record(long value) {
+		long clamped = Math.max(0, Math.min(value, this.maxValue));
+		this.counts.incrementAndGet(bucketIndex(clamped));
+		this.sum.add(clamped);
+	}
+
+	/**
+	 * Getter for the number of recorded values
+	 * @return Number of recorded values
+	 */
+	public long getCount() {
+		long count = 0;
+		for(int i = 0; i < this.counts.length(); i++) {
+			count += this.counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Getter for the sum of the recorded values
+	 * @return Sum of the recorded values
+	 */
+	public long getSum() {
+		return this.sum.sum();
+	}
+
+	/**
+	 * Calculates the value at the given quantile
+	 * @param quantile Quantile between 0 and 1
+	 * @return Highest value of the bucket that contains the quantile or 0 if nothing has been recorded
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long count = getCount();
+		if(count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(count * quantile));
+		long seen = 0;
+		for(int i = 0; i < this.counts.length(); i++) {
+			seen += this.counts.get(i);
+			if(seen >= target) {
+				return highestValue(i);
+			}
+		}
+		return this.maxValue;
+	}
+
+	@Override
+	public String getType() {
+		return "summary";
+	}
+
+	@Override
+	public void writePrometheus(String name, String labels, StringBuilder out) {
+		for(double quantile : QUANTILES) {
+			MetricsRegistry.appendSample(out, name, labels, "quantile=\"" + quantile + "\"", getValueAtQuantile(quantile) * this.exportScale);
+		}
+		MetricsRegistry.appendSample(out, name + "_sum", labels, null, getSum() * this.exportScale);
+		MetricsRegistry.appendSample(out, name + "_count", labels, null, getCount());
+	}
+}
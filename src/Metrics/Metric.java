@@ -0,0 +1,23 @@
+package Metrics;
+
+/**
+ * Common interface for all metrics that can be exported by the MetricsRegistry
+ * @author etsubu
+ *
+ */
+public interface Metric {
+
+	/**
+	 * Getter for the Prometheus type of the metric
+	 * @return counter, gauge or histogram
+	 */
+	public String getType();
+
+	/**
+	 * Writes the samples of this metric in Prometheus text format
+	 * @param name Name of the metric family
+	 * @param labels Labels of this metric without the braces, may be empty
+	 * @param out Builder to write into
+	 */
+	public void writePrometheus(String name, String labels, StringBuilder out);
+}
@@ -0,0 +1,152 @@
+package Metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of registered metrics and renders them in Prometheus text exposition format.
+ * Metrics with the same name but different labels are grouped into one family
+ * @author etsubu
+ *
+ */
+public class MetricsRegistry {
+	private final Map<String, Family> families;
+
+	/**
+	 * Single metric family which shares the name, help text and type
+	 */
+	private static class Family {
+		private final String help;
+		private final String type;
+		private final List<String> labels;
+		private final List<Metric> metrics;
+
+		private Family(String help, String type) {
+			this.help = help;
+			this.type = type;
+			this.labels = new ArrayList<>();
+			this.metrics = new ArrayList<>();
+		}
+	}
+
+	/**
+	 * Initializes an empty registry
+	 */
+	public MetricsRegistry() {
+		this.families = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Registers a metric without labels
+	 * @param name Name of the metric
+	 * @param help Description of the metric
+	 * @param metric The metric
+	 * @return The registered metric
+	 */
+	public <T extends Metric> T register(String name, String help, T metric) {
+		return register(name, help, "", metric);
+	}
+
+	/**
+	 * Registers a metric with labels
+	 * @param name Name of the metric
+	 * @param help Description of the metric
+	 * @param labels Labels in Prometheus format without braces, e.g. type="JOIN_CHANNEL"
+	 * @param metric The metric
+	 * @return The registered metric
+	 */
+	public synchronized <T extends Metric> T register(String name, String help, String labels, T metric) {
+		Family family = this.families.get(name);
+		if(family == null) {
+			family = new Family(help, metric.getType());
+			this.families.put(name, family);
+		} else if(!family.type.equals(metric.getType())) {
+			throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+		}
+		family.labels.add(labels);
+		family.metrics.add(metric);
+		return metric;
+	}
+
+	/**
+	 * Removes a metric with the given name and labels
+	 * @param name Name of the metric
+	 * @param labels Labels of the metric
+	 */
+	public synchronized void unregister(String name, String labels) {
+		Family family = this.families.get(name);
+		if(family == null) {
+			return;
+		}
+		int index = family.labels.indexOf(labels);
+		if(index != -1) {
+			family.labels.remove(index);
+			family.metrics.remove(index);
+		}
+		if(family.metrics.isEmpty()) {
+			this.families.remove(name);
+		}
+	}
+
+	/**
+	 * Renders all the registered metrics in Prometheus text format
+	 * @return Metrics as text
+	 */
+	public synchronized String scrape() {
+		StringBuilder out = new StringBuilder(4096);
+		for(Map.Entry<String, Family> entry : this.families.entrySet()) {
+			String name = entry.getKey();
+			Family family = entry.getValue();
+			out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+			for(int i = 0; i < family.metrics.size(); i++) {
+				family.metrics.get(i).writePrometheus(name, family.labels.get(i), out);
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Escapes a label value so it can be placed inside quotes
+	 * @param value Label value
+	 * @return Escaped value
+	 */
+	public static String escapeLabel(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Appends a single sample line
+	 * @param out Builder to write into
+	 * @param name Name of the sample
+	 * @param labels Labels of the metric, may be empty
+	 * @param extraLabel Additional label such as the bucket boundary, may be null
+	 * @param value Value of the sample
+	 */
+	static void appendSample(StringBuilder out, String name, String labels, String extraLabel, double value) {
+		out.append(name);
+		boolean hasLabels = labels != null && !labels.isEmpty();
+		if(hasLabels || extraLabel != null) {
+			out.append('{');
+			if(hasLabels) {
+				out.append(labels);
+			}
+			if(extraLabel != null) {
+				if(hasLabels) {
+					out.append(',');
+				}
+				out.append(extraLabel);
+			}
+			out.append('}');
+		}
+		out.append(' ');
+		if(value == Math.rint(value) && Math.abs(value) < 1e15) {
+			out.append((long) value);
+		} else {
+			out.append(value);
+		}
+		out.append('\n');
+	}
+}
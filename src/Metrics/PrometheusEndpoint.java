@@ -0,0 +1,64 @@
+package Metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal HTTP endpoint that serves the registry in Prometheus text format from /metrics.
+ * The endpoint only binds to the loopback interface
+ * @author etsubu
+ *
+ */
+public class PrometheusEndpoint {
+	private final MetricsRegistry registry;
+	private HttpServer server;
+
+	/**
+	 * Initializes the endpoint
+	 * @param registry Registry to serve
+	 */
+	public PrometheusEndpoint(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Starts serving the metrics on the given local port
+	 * @param port Port to bind on
+	 * @throws IOException If the port could not be opened
+	 */
+	public void start(int port) throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.server.createContext("/metrics", this::handle);
+		this.server.start();
+	}
+
+	/**
+	 * Serves a single scrape request
+	 * @param exchange The HTTP exchange
+	 * @throws IOException If the response could not be written
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		byte[] body = this.registry.scrape().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Stops the endpoint
+	 */
+	public void stop() {
+		if(this.server != null) {
+			this.server.stop(0);
+			this.server = null;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package Metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Top-K tracker over a sliding time window. The window is split into buckets that each have their own
+ * sketch and heap. The oldest bucket is cleared when time moves on, so memory stays bounded regardless
+ * of how many distinct keys are seen
+ * @author etsubu
+ *
+ */
+public class SlidingTopK implements Metric {
+	private final int k;
+	private final long bucketMillis;
+	private final TopK[] buckets;
+	private final AtomicLongArray epochs;
+	private final String labelName;
+
+	/**
+	 * Initializes the tracker
+	 * @param k Number of heaviest keys to report
+	 * @param width Width of the count-min sketches
+	 * @param depth Depth of the count-min sketches
+	 * @param bucketCount Number of buckets the window is split into
+	 * @param bucketMillis Length of a single bucket in milliseconds
+	 * @param labelName Name of the label that holds the key name when exported, e.g. channel
+	 */
+	public SlidingTopK(int k, int width, int depth, int bucketCount, long bucketMillis, String labelName) {
+		this.k = k;
+		this.bucketMillis = Math.max(1, bucketMillis);
+		this.buckets = new TopK[bucketCount];
+		this.epochs = new AtomicLongArray(bucketCount);
+		for(int i = 0; i < bucketCount; i++) {
+			this.buckets[i] = new TopK(k, width, depth);
+			this.epochs.set(i, -1);
+		}
+		this.labelName = labelName;
+	}
+
+	/**
+	 * Getter for the length of the window
+	 * @return Length of the window in milliseconds
+	 */
+	public long getWindowMillis() {
+		return this.bucketMillis * this.buckets.length;
+	}
+
+	/**
+	 * Gets the bucket for the current time and clears it if it belongs to an old window
+	 * @param epoch Current bucket epoch
+	 * @return The current bucket
+	 */
+	private TopK currentBucket(long epoch) {
+		int index = (int) (epoch % this.buckets.length);
+		TopK bucket = this.buckets[index];
+		if(this.epochs.get(index) != epoch) {
+			synchronized(this) {
+				if(this.epochs.get(index) != epoch) {
+					bucket.clear();
+					this.epochs.set(index, epoch);
+				}
+			}
+		}
+		return bucket;
+	}
+
+	/**
+	 * Adds to the count of the key in the current bucket
+	 * @param key The key
+	 * @param name Display name of the key
+	 * @param amount Amount to add
+	 */
+	public void add(long key, String name, long amount) {
+		currentBucket(System.currentTimeMillis() / this.bucketMillis).add(key, name, amount);
+	}
+
+	/**
+	 * Calculates the heaviest keys over the whole window
+	 * @return At most K entries sorted by descending count
+	 */
+	public List<TopK.Entry> top() {
+		long epoch = System.currentTimeMillis() / this.bucketMillis;
+		List<TopK> live = new ArrayList<>(this.buckets.length);
+		for(int i = 0; i < this.buckets.length; i++) {
+			if(this.epochs.get(i) > epoch - this.buckets.length) {
+				live.add(this.buckets[i]);
+			}
+		}
+		Map<Long, String> candidates = new HashMap<>();
+		for(TopK bucket : live) {
+			bucket.collectKeys(candidates);
+		}
+		List<TopK.Entry> entries = new ArrayList<>(candidates.size());
+		for(Map.Entry<Long, String> candidate : candidates.entrySet()) {
+			long count = 0;
+			for(TopK bucket : live) {
+				count += bucket.estimate(candidate.getKey());
+			}
+			entries.add(new TopK.Entry(candidate.getKey(), candidate.getValue(), count));
+		}
+		entries.sort((a, b) -> Long.compare(b.getCount(), a.getCount()));
+		return entries.size() > this.k ? new ArrayList<>(entries.subList(0, this.k)) : entries;
+	}
+
+	@Override
+	public String getType() {
+		return "gauge";
+	}
+
+	@Override
+	public void writePrometheus(String name, String labels, StringBuilder out) {
+		String prefix = (labels == null || labels.isEmpty()) ? "" : labels + ",";
+		List<TopK.Entry> entries = top();
+		for(int i = 0; i < entries.size(); i++) {
+			TopK.Entry entry = entries.get(i);
+			MetricsRegistry.appendSample(out, name, prefix + "rank=\"" + (i + 1) + "\"",
+					this.labelName + "=\"" + MetricsRegistry.escapeLabel(entry.getName()) + "\"", entry.getCount());
+		}
+	}
+}
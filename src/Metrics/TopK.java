@@ -0,0 +1,183 @@
+package Metrics;
+
+import java.util.Map;
+
+/**
+ * Streaming top-K tracker. Counts are estimated with a count-min sketch and the K heaviest keys are kept
+ * in a min-heap. Keys whose estimate is below the smallest tracked count only touch the sketch, so the
+ * common case is lock free and allocation free
+ * @author etsubu
+ *
+ */
+public class TopK {
+	private final CountMinSketch sketch;
+	private final Entry[] heap;
+	private int size;
+	private volatile long threshold;
+
+	/**
+	 * Single tracked key
+	 */
+	public static class Entry {
+		private final long key;
+		private final String name;
+		private long count;
+
+		/**
+		 * Initializes the entry
+		 * @param key The key
+		 * @param name Display name of the key
+		 * @param count Estimated count
+		 */
+		public Entry(long key, String name, long count) {
+			this.key = key;
+			this.name = name;
+			this.count = count;
+		}
+
+		/**
+		 * @return The key
+		 */
+		public long getKey() {
+			return this.key;
+		}
+
+		/**
+		 * @return Display name of the key
+		 */
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * @return Estimated count
+		 */
+		public long getCount() {
+			return this.count;
+		}
+
+		@Override
+		public String toString() {
+			return this.name + "=" + this.count;
+		}
+	}
+
+	/**
+	 * Initializes the tracker
+	 * @param k Number of heaviest keys to track
+	 * @param width Width of the count-min sketch
+	 * @param depth Depth of the count-min sketch
+	 */
+	public TopK(int k, int width, int depth) {
+		this.sketch = new CountMinSketch(width, depth);
+		this.heap = new Entry[k];
+		this.size = 0;
+		this.threshold = 0;
+	}
+
+	/**
+	 * Adds to the count of the key
+	 * @param key The key
+	 * @param name Display name of the key
+	 * @param amount Amount to add
+	 */
+	public void add(long key, String name, long amount) {
+		long estimate = this.sketch.add(key, amount);
+		if(estimate <= this.threshold) {
+			return;
+		}
+		synchronized(this) {
+			for(int i = 0; i < this.size; i++) {
+				if(this.heap[i].key == key) {
+					this.heap[i].count = estimate;
+					siftDown(i);
+					updateThreshold();
+					return;
+				}
+			}
+			if(this.size < this.heap.length) {
+				this.heap[this.size] = new Entry(key, name, estimate);
+				siftUp(this.size);
+				this.size++;
+			} else if(estimate > this.heap[0].count) {
+				this.heap[0] = new Entry(key, name, estimate);
+				siftDown(0);
+			}
+			updateThreshold();
+		}
+	}
+
+	/**
+	 * Estimates the count of the key
+	 * @param key The key
+	 * @return Estimated count
+	 */
+	public long estimate(long key) {
+		return this.sketch.estimate(key);
+	}
+
+	/**
+	 * Resets the tracker
+	 */
+	public synchronized void clear() {
+		this.sketch.clear();
+		for(int i = 0; i < this.size; i++) {
+			this.heap[i] = null;
+		}
+		this.size = 0;
+		this.threshold = 0;
+	}
+
+	/**
+	 * Collects the currently tracked keys
+	 * @param out Map where the keys and their names are put
+	 */
+	public synchronized void collectKeys(Map<Long, String> out) {
+		for(int i = 0; i < this.size; i++) {
+			out.put(this.heap[i].key, this.heap[i].name);
+		}
+	}
+
+	/**
+	 * Updates the count below which keys can skip the heap. Only when the heap is full
+	 */
+	private void updateThreshold() {
+		this.threshold = this.size < this.heap.length ? 0 : this.heap[0].count;
+	}
+
+	private void siftUp(int index) {
+		while(index > 0) {
+			int parent = (index - 1) / 2;
+			if(this.heap[parent].count <= this.heap[index].count) {
+				return;
+			}
+			swap(parent, index);
+			index = parent;
+		}
+	}
+
+	private void siftDown(int index) {
+		while(true) {
+			int smallest = index;
+			int left = index * 2 + 1;
+			int right = left + 1;
+			if(left < this.size && this.heap[left].count < this.heap[smallest].count) {
+				smallest = left;
+			}
+			if(right < this.size && this.heap[right].count < this.heap[smallest].count) {
+				smallest = right;
+			}
+			if(smallest == index) {
+				return;
+			}
+			swap(smallest, index);
+			index = smallest;
+		}
+	}
+
+	private void swap(int a, int b) {
+		Entry tmp = this.heap[a];
+		this.heap[a] = this.heap[b];
+		this.heap[b] = tmp;
+	}
+}
@@ -0,0 +1,86 @@
+package ProtocolSocket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs several frames into BATCH frames and unpacks them. The payload of a BATCH packet is a sequence of packets in
+ * their usual wire format, header included, so the frames keep their types and flags and can be for different
+ * channels. A BATCH packet is never larger than Packet.MAX_SIZE, frames that do not fit are passed through as they are.
+ * BATCH frames are only sent to peers that announced support with Header.FLAG_BATCH
+ * @author etsubu
+ *
+ */
+public class Batch {
+
+	/**
+	 * Groups consecutive frames into BATCH frames. A group of one frame is not wrapped
+	 * @param frames Frames in the order they are written
+	 * @return Frames to write in the same order
+	 */
+	public static List<Frame> pack(List<Frame> frames) {
+		List<Frame> packed = new ArrayList<>(frames.size());
+		int start = 0;
+		int size = 0;
+		for(int i = 0; i < frames.size(); i++) {
+			int frameSize = frames.get(i).getSize();
+			if(size + frameSize > Packet.MAX_SIZE) {
+				addGroup(packed, frames, start, i, size);
+				start = i;
+				size = 0;
+			}
+			size += frameSize;
+		}
+		addGroup(packed, frames, start, frames.size(), size);
+		return packed;
+	}
+
+	/**
+	 * Adds a group of frames, wrapped in a BATCH frame if it has more than one frame
+	 * @param packed List to add to
+	 * @param frames All the frames
+	 * @param from Index of the first frame of the group
+	 * @param to Index after the last frame of the group
+	 * @param size Size of the frames of the group in bytes
+	 */
+	private static void addGroup(List<Frame> packed, List<Frame> frames, int from, int to, int size) {
+		if(to - from == 1) {
+			packed.add(frames.get(from));
+		} else if(to - from > 1) {
+			byte[] payload = new byte[size];
+			int position = 0;
+			for(int i = from; i < to; i++) {
+				byte[] bytes = frames.get(i).getBytes();
+				System.arraycopy(bytes, 0, payload, position, bytes.length);
+				position += bytes.length;
+			}
+			packed.add(new Frame(payload, ProtocolID.BATCH));
+		}
+	}
+
+	/**
+	 * Unpacks the packets of a BATCH packet. They get the receive time of the BATCH packet
+	 * @param batch The BATCH packet
+	 * @return Packets in the order they were packed
+	 * @throws IllegalHeaderException If the payload is not a sequence of whole packets
+	 */
+	public static List<Packet> unpack(Packet batch) throws IllegalHeaderException {
+		byte[] data = batch.getData();
+		List<Packet> packets = new ArrayList<>();
+		int position = 0;
+		while(data != null && position < data.length) {
+			if(data.length - position < Header.HEADER_SIZE) {
+				throw new IllegalHeaderException();
+			}
+			Header header = new Header(data, position);
+			position += Header.HEADER_SIZE;
+			int size = header.getSize();
+			if(size > data.length - position || header.getType() == ProtocolID.BATCH.ordinal()) {
+				throw new IllegalHeaderException();
+			}
+			packets.add(new Packet(header, data, position, size, batch.getReceiveTime()));
+			position += size;
+		}
+		return packets;
+	}
+}
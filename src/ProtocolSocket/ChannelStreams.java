@@ -0,0 +1,72 @@
+package ProtocolSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Streams over a blocking SocketChannel. Unlike the streams of java.nio.channels.Channels they do not share a lock,
+ * so one thread can block in a read while another thread writes
+ * @author etsubu
+ *
+ */
+class ChannelStreams {
+    private final SocketChannel channel;
+    private final InputStream input;
+    private final OutputStream output;
+    
+    /**
+     * Initializes the streams
+     * @param channel Connected channel in blocking mode
+     */
+    ChannelStreams(SocketChannel channel) {
+        this.channel = channel;
+        this.input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(len == 0) {
+                    return 0;
+                }
+                return ChannelStreams.this.channel.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+        this.output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while(buffer.hasRemaining()) {
+                    ChannelStreams.this.channel.write(buffer);
+                }
+            }
+        };
+    }
+    
+    /**
+     * Getter for the input stream
+     * @return Stream that reads from the channel
+     */
+    InputStream getInputStream() {
+        return this.input;
+    }
+    
+    /**
+     * Getter for the output stream
+     * @return Stream that writes to the channel
+     */
+    OutputStream getOutputStream() {
+        return this.output;
+    }
+}
@@ -0,0 +1,29 @@
+package ProtocolSocket;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a connection accepted by ProtocolServerSocket. The duration covers setting up the
+ * accepted socket, including the TLS handshake, but not the time spent waiting for the connection
+ * @author etsubu
+ *
+ */
+@Name("javachat.ConnectionAccept")
+@Label("Connection Accept")
+@Category({"JavaChat", "Protocol"})
+@Description("Connection accepted by a ProtocolServerSocket")
+@StackTrace(false)
+public class ConnectionAcceptEvent extends jdk.jfr.Event {
+	@Label("Remote Address")
+	public String remoteAddress;
+
+	@Label("Local Port")
+	public int localPort;
+
+	@Label("TLS")
+	public boolean tls;
+}
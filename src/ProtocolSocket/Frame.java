@@ -0,0 +1,115 @@
+package ProtocolSocket;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Packet that has already been encoded to its wire format, header included. Frames are immutable
+ * so the same frame can be queued to any number of sockets without copying or re-encoding it.
+ * Payloads larger than Packet.MAX_SIZE are split into several packets of the same type. The receivers do not join
+ * them back together, so payloads that have to arrive whole must fit in one packet
+ * @author etsubu
+ *
+ */
+public class Frame {
+	private final byte[] bytes;
+	private final int type;
+	private final int flags;
+
+	/**
+	 * Encodes the frame
+	 * @param data Payload of the frame, may be null
+	 * @param type Type of the frame
+	 * @param flags Header flags of the frame
+	 */
+	public Frame(byte[] data, ProtocolID type, int flags) {
+		this(data, type.ordinal(), flags);
+	}
+
+	/**
+	 * Encodes a frame of a protocol other than the client protocol
+	 * @param data Payload of the frame, may be null
+	 * @param type Type ID of the frame, between 0 and 255
+	 * @param flags Header flags of the frame
+	 */
+	public Frame(byte[] data, int type, int flags) {
+		this.type = type;
+		this.flags = flags;
+		this.bytes = encode(data, type, flags);
+	}
+
+	/**
+	 * Encodes the frame without flags
+	 * @param data Payload of the frame, may be null
+	 * @param type Type of the frame
+	 */
+	public Frame(byte[] data, ProtocolID type) {
+		this(data, type, 0);
+	}
+
+	/**
+	 * Encodes the frame from an UTF-8 string
+	 * @param message Payload of the frame
+	 * @param type Type of the frame
+	 */
+	public Frame(String message, ProtocolID type) {
+		this(message.getBytes(StandardCharsets.UTF_8), type, 0);
+	}
+
+	/**
+	 * Encodes the payload into packets
+	 * @param data Payload, may be null
+	 * @param type Type ID of the packets
+	 * @param flags Header flags of the packets
+	 * @return Encoded packets
+	 */
+	private static byte[] encode(byte[] data, int type, int flags) {
+		if(data == null || data.length == 0) {
+			return Header.toBytes(0, type, flags);
+		}
+		int packets = (data.length + Packet.MAX_SIZE - 1) / Packet.MAX_SIZE;
+		byte[] encoded = new byte[data.length + packets * Header.HEADER_SIZE];
+		int offset = 0;
+		int position = 0;
+		while(offset < data.length) {
+			int size = Math.min(Packet.MAX_SIZE, data.length - offset);
+			System.arraycopy(Header.toBytes(size, type, flags), 0, encoded, position, Header.HEADER_SIZE);
+			position += Header.HEADER_SIZE;
+			System.arraycopy(data, offset, encoded, position, size);
+			position += size;
+			offset += size;
+		}
+		return encoded;
+	}
+
+	/**
+	 * Getter for the encoded bytes. The returned array must not be modified
+	 * @return Frame in its wire format
+	 */
+	byte[] getBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Getter for the type of the frame
+	 * @return Type ID of the frame
+	 */
+	public int getType() {
+		return this.type;
+	}
+
+	/**
+	 * Getter for the flags of the frame
+	 * @return Header flags of the frame
+	 */
+	public int getFlags() {
+		return this.flags;
+	}
+
+	/**
+	 * Getter for the size of the frame on the wire
+	 * @return Size in bytes including the headers
+	 */
+	public int getSize() {
+		return this.bytes.length;
+	}
+}
@@ -0,0 +1,28 @@
+package ProtocolSocket;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a TLS handshake of an accepted connection
+ * @author etsubu
+ *
+ */
+@Name("javachat.Handshake")
+@Label("TLS Handshake")
+@Category({"JavaChat", "Protocol"})
+@Description("TLS handshake of an accepted connection")
+@StackTrace(false)
+public class HandshakeEvent extends jdk.jfr.Event {
+	@Label("Remote Address")
+	public String remoteAddress;
+
+	@Label("Success")
+	public boolean success;
+
+	@Label("Cipher Suite")
+	public String cipherSuite;
+}
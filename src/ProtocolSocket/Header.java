@@ -1,21 +1,48 @@
 package ProtocolSocket;
 
 /**
- * The packet header contains the size of the packet and the type of its content
+ * The packet header contains the size of the packet, the type of its content and optional flags.
+ * The flags byte is ignored by older peers so new flags must never change the meaning of the payload
  * @author etsubu
  *
  */
 public class Header {
 	public static final int HEADER_SIZE = Short.BYTES + Short.BYTES;
-	private int packetSize, packetType;
+	/**
+	 * The packet was sampled for latency tracing
+	 */
+	public static final int FLAG_TRACE = 0x01;
+	/**
+	 * Set by the client on its nickname or session resume packet when it can unpack BATCH packets
+	 */
+	public static final int FLAG_BATCH = 0x02;
+	/**
+	 * Set by the client on its nickname or session resume packet when it answers PING packets
+	 */
+	public static final int FLAG_PING = 0x04;
+	/**
+	 * Set by the client on its nickname or session resume packet when it understands MEMBERSHIP_CHANGES packets
+	 */
+	public static final int FLAG_MEMBERSHIP_CHANGES = 0x08;
+	private int packetSize, packetType, flags;
 	
 	/**
 	 * Initializes the header by the raw bytes
 	 * @param bytes Raw byte buffer to construct the header from
 	 */
 	public Header(byte[] bytes){
-		this.packetSize=(((bytes[1]) & 0xFF) << 8) | (bytes[0] & 0xFF);
-		this.packetType=bytes[2];
+		this(bytes, 0);
+	}
+	
+	/**
+	 * Initializes the header from raw bytes inside a larger buffer
+	 * @param bytes Buffer that contains the header
+	 * @param offset Index of the first byte of the header
+	 */
+	Header(byte[] bytes, int offset){
+		this.packetSize=(((bytes[offset + 1]) & 0xFF) << 8) | (bytes[offset] & 0xFF);
+		this.packetType=bytes[offset + 2];
+		this.flags=bytes[offset + 3] & 0xFF;
 	}
 	
 	/**
@@ -34,6 +61,14 @@ public class Header {
 		return this.packetType;
 	}
 	
+	/**
+	 * Getter for the flags of the packet
+	 * @return Flags of the packet
+	 */
+	public int getFlags(){
+		return this.flags;
+	}
+	
 	/**
 	 * Transforms the header into a byte array
 	 * @param packetSize Size of the packet
@@ -41,10 +76,22 @@ public class Header {
 	 * @return Packet header as byte array
 	 */
 	public static byte[] toBytes(int packetSize, int packetType){
+		return toBytes(packetSize, packetType, 0);
+	}
+	
+	/**
+	 * Transforms the header into a byte array
+	 * @param packetSize Size of the packet
+	 * @param packetType Type of the packet
+	 * @param flags Flags of the packet
+	 * @return Packet header as byte array
+	 */
+	public static byte[] toBytes(int packetSize, int packetType, int flags){
 		byte[] bytes=new byte[HEADER_SIZE];
 		bytes[0]=(byte) (packetSize & 0xFF);
 		bytes[1]=(byte) (packetSize >> 8);
 		bytes[2]=(byte) packetType;
+		bytes[3]=(byte) flags;
 		return bytes;
 	}
 }
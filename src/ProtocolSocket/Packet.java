@@ -1,5 +1,6 @@
 package ProtocolSocket;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 /**
@@ -11,6 +12,7 @@ public class Packet {
 	public static final int MAX_SIZE=8096;
 	private Header header;
 	private byte[] data;
+	private long receiveTime;
 	
 	/**
 	 * Initializes the packet 
@@ -18,7 +20,18 @@ public class Packet {
 	 * @param data the actual content of the packet
 	 */
 	public Packet(Header header, byte[] data) {
+		this(header, data, 0);
+	}
+	
+	/**
+	 * Initializes the packet 
+	 * @param header The header of the packet
+	 * @param data the actual content of the packet
+	 * @param receiveTime System.nanoTime() when the packet was received, 0 if unknown
+	 */
+	public Packet(Header header, byte[] data, long receiveTime) {
 		this.header=header;
+		this.receiveTime=receiveTime;
 		if(data == null) {
 			this.data = null;
 		}
@@ -27,6 +40,20 @@ public class Packet {
 		}
 	}
 	
+	/**
+	 * Initializes the packet from a part of a larger buffer, e.g. one of the packets of a BATCH packet
+	 * @param header The header of the packet
+	 * @param buffer Buffer that contains the content
+	 * @param offset Index of the first byte of the content
+	 * @param size Size of the content
+	 * @param receiveTime System.nanoTime() when the packet was received, 0 if unknown
+	 */
+	Packet(Header header, byte[] buffer, int offset, int size, long receiveTime) {
+		this.header=header;
+		this.receiveTime=receiveTime;
+		this.data = size == 0 ? null : Arrays.copyOfRange(buffer, offset, offset + size);
+	}
+	
 	/**
 	 * Getter for the data
 	 * @return the data
@@ -35,6 +62,21 @@ public class Packet {
 		return this.data;
 	}
 	
+	/**
+	 * Calculates the UTF-8 size of a payload made of text fields separated by ':'. Payloads larger than MAX_SIZE are
+	 * split into several packets that the receivers handle one by one, so a payload that has to arrive whole, such as
+	 * a relayed chat message, must not be larger than MAX_SIZE
+	 * @param fields Fields of the payload
+	 * @return Size of the payload in bytes
+	 */
+	public static int payloadSize(String... fields) {
+		int size = fields.length - 1;
+		for(String field : fields) {
+			size += field.getBytes(StandardCharsets.UTF_8).length;
+		}
+		return size;
+	}
+	
 	/**
 	 * Getter for the packet header
 	 * @return Packet header
@@ -42,4 +84,12 @@ public class Packet {
 	public Header getHeader(){
 		return this.header;
 	}
+	
+	/**
+	 * Getter for the time the packet was received
+	 * @return System.nanoTime() when the packet was received, 0 if unknown
+	 */
+	public long getReceiveTime(){
+		return this.receiveTime;
+	}
 }
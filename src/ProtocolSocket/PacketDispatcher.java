@@ -0,0 +1,190 @@
+package ProtocolSocket;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import Metrics.Counter;
+import Metrics.Histogram;
+import Metrics.MetricsRegistry;
+
+/**
+ * Dispatches received packets to the handler registered for their type. The handlers are kept in a table indexed by
+ * the type byte so the lookup costs the same for every type, and a new packet type is added by registering a handler
+ * instead of growing a chain of comparisons. Every handler has its own counters of handled packets and failures, a
+ * latency histogram and a policy for what happens when it throws. Packets of a type without a handler are ignored
+ * @author etsubu
+ *
+ * @param <C> Context the handlers are called with, e.g. the connection the packet was received from
+ */
+public class PacketDispatcher<C> {
+	private static final int TYPES = 256;
+
+	/**
+	 * Processes the packets of one type
+	 * @param <C> Context the handler is called with
+	 */
+	@FunctionalInterface
+	public interface Handler<C> {
+
+		/**
+		 * Processes a received packet
+		 * @param context Context of the dispatcher
+		 * @param packet The packet
+		 * @throws Exception If the packet cannot be processed, handled according to the error policy of the handler
+		 */
+		public void handle(C context, Packet packet) throws Exception;
+	}
+
+	/**
+	 * What is done when a handler throws
+	 */
+	public enum ErrorPolicy {
+		/** The packet is a protocol violation and the connection is closed */
+		DISCONNECT,
+		/** Only the packet is dropped, the connection stays open */
+		IGNORE
+	}
+
+	/**
+	 * Handler of one type with its policy and metrics
+	 */
+	private static final class Entry<C> {
+		private final Handler<C> handler;
+		private final ErrorPolicy policy;
+		private final Counter packets;
+		private final Counter errors;
+		private final Histogram latency;
+
+		private Entry(Handler<C> handler, ErrorPolicy policy) {
+			this.handler = handler;
+			this.policy = policy;
+			this.packets = new Counter();
+			this.errors = new Counter();
+			this.latency = Histogram.latencyNanos();
+		}
+	}
+
+	private final Consumer<C> disconnect;
+	private final MetricsRegistry registry;
+	private final Counter unhandled;
+	private volatile Entry<C>[] entries;
+
+	/**
+	 * Initializes the dispatcher without handlers
+	 * @param disconnect Closes the connection of a context whose handler failed with the DISCONNECT policy
+	 * @param registry Registry where the handler metrics are exported or null to only keep them in the dispatcher
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public PacketDispatcher(Consumer<C> disconnect, MetricsRegistry registry) {
+		this.disconnect = disconnect;
+		this.registry = registry;
+		this.unhandled = new Counter();
+		this.entries = new Entry[TYPES];
+		if(registry != null) {
+			registry.register("javachat_handler_unhandled_total", "Received packets of a type without a handler", this.unhandled);
+		}
+	}
+
+	/**
+	 * Registers the handler of a type, which closes the connection if it fails
+	 * @param type Type of the packets
+	 * @param handler The handler
+	 * @return This dispatcher
+	 */
+	public PacketDispatcher<C> register(ProtocolID type, Handler<C> handler) {
+		return register(type, handler, ErrorPolicy.DISCONNECT);
+	}
+
+	/**
+	 * Registers the handler of a type, replacing the previous one. Can be called while packets are dispatched
+	 * @param type Type of the packets
+	 * @param handler The handler
+	 * @param policy What is done when the handler fails
+	 * @return This dispatcher
+	 */
+	public synchronized PacketDispatcher<C> register(ProtocolID type, Handler<C> handler, ErrorPolicy policy) {
+		Entry<C> entry = new Entry<>(handler, policy);
+		if(this.registry != null) {
+			String labels = "type=\"" + type.name() + "\"";
+			if(this.entries[type.ordinal()] != null) {
+				this.registry.unregister("javachat_handler_packets_total", labels);
+				this.registry.unregister("javachat_handler_errors_total", labels);
+				this.registry.unregister("javachat_handler_seconds", labels);
+			}
+			this.registry.register("javachat_handler_packets_total", "Packets processed by the handler of the type", labels, entry.packets);
+			this.registry.register("javachat_handler_errors_total", "Packets whose handler failed", labels, entry.errors);
+			this.registry.register("javachat_handler_seconds", "Time spent in the handler of the type", labels, entry.latency);
+		}
+		Entry<C>[] copy = Arrays.copyOf(this.entries, TYPES);
+		copy[type.ordinal()] = entry;
+		this.entries = copy;
+		return this;
+	}
+
+	/**
+	 * Passes a packet to the handler of its type
+	 * @param context Context the handler is called with
+	 * @param packet The packet
+	 * @return False if the handler failed and the connection was closed
+	 */
+	public boolean dispatch(C context, Packet packet) {
+		Entry<C> entry = this.entries[packet.getHeader().getType() & (TYPES - 1)];
+		if(entry == null) {
+			this.unhandled.inc();
+			return true;
+		}
+		long start = System.nanoTime();
+		try {
+			entry.handler.handle(context, packet);
+			return true;
+		} catch(Exception e) {
+			entry.errors.inc();
+			if(entry.policy == ErrorPolicy.DISCONNECT) {
+				this.disconnect.accept(context);
+				return false;
+			}
+			return true;
+		} finally {
+			entry.packets.inc();
+			entry.latency.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Getter for the number of packets a handler has processed
+	 * @param type Type of the handler
+	 * @return Packets processed, 0 if the type has no handler
+	 */
+	public long getPackets(ProtocolID type) {
+		Entry<C> entry = this.entries[type.ordinal()];
+		return entry == null ? 0 : entry.packets.get();
+	}
+
+	/**
+	 * Getter for the number of packets whose handler failed
+	 * @param type Type of the handler
+	 * @return Failed packets, 0 if the type has no handler
+	 */
+	public long getErrors(ProtocolID type) {
+		Entry<C> entry = this.entries[type.ordinal()];
+		return entry == null ? 0 : entry.errors.get();
+	}
+
+	/**
+	 * Getter for the latency histogram of a handler
+	 * @param type Type of the handler
+	 * @return Time spent in the handler in nanoseconds or null if the type has no handler
+	 */
+	public Histogram getLatency(ProtocolID type) {
+		Entry<C> entry = this.entries[type.ordinal()];
+		return entry == null ? null : entry.latency;
+	}
+
+	/**
+	 * Getter for the number of packets that had no handler
+	 * @return Unhandled packets
+	 */
+	public long getUnhandled() {
+		return this.unhandled.get();
+	}
+}
@@ -0,0 +1,30 @@
+package ProtocolSocket;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a packet read by ProtocolSocket. The duration covers reading the payload after the header has arrived
+ * @author etsubu
+ *
+ */
+@Name("javachat.PacketRead")
+@Label("Packet Read")
+@Category({"JavaChat", "Protocol"})
+@Description("Packet read from a ProtocolSocket")
+@StackTrace(false)
+public class PacketReadEvent extends jdk.jfr.Event {
+	@Label("Type")
+	public String type;
+
+	@Label("Size")
+	@DataAmount
+	public int size;
+
+	@Label("Remote Address")
+	public String remoteAddress;
+}
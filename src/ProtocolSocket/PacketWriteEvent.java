@@ -0,0 +1,38 @@
+package ProtocolSocket;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a write of ProtocolSocket. Frames coalesced into one write share one event
+ * @author etsubu
+ *
+ */
+@Name("javachat.PacketWrite")
+@Label("Packet Write")
+@Category({"JavaChat", "Protocol"})
+@Description("Packets written and flushed to a ProtocolSocket with one write")
+@StackTrace(false)
+public class PacketWriteEvent extends jdk.jfr.Event {
+	@Label("Type")
+	@Description("Type of the frames, missing if they have different types")
+	public String type;
+
+	@Label("Frames")
+	public int frames;
+
+	@Label("Size")
+	@DataAmount
+	public int size;
+
+	@Label("Flags")
+	@Description("Header flags set on any of the frames")
+	public int flags;
+
+	@Label("Remote Address")
+	public String remoteAddress;
+}
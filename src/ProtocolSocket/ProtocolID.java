@@ -12,5 +12,28 @@ public enum ProtocolID {
 	LIST_USERS,
 	JOIN_CHANNEL,
 	LEAVE_CHANNEL,
-
+	TRACE,
+	ADMIN_HEAVY_HITTERS,
+	SESSION_TOKEN,
+	SESSION_RESUME,
+	PING,
+	PONG,
+	CHANNEL_SEQUENCE,
+	USER_LIST_SUBSCRIBE,
+	USER_LIST_UNSUBSCRIBE,
+	USER_PRESENCE,
+	USER_PAGE,
+	MEMBERSHIP_CHANGES,
+	BATCH;
+	
+	private static final ProtocolID[] VALUES = values();
+	
+	/**
+	 * Maps a type ID of a packet to its name
+	 * @param type Type ID of the packet
+	 * @return Name of the ProtocolID or UNKNOWN if there is no such ID
+	 */
+	public static String nameOf(int type) {
+		return (type >= 0 && type < VALUES.length) ? VALUES[type].name() : "UNKNOWN";
+	}
 }
@@ -0,0 +1,29 @@
+package ProtocolSocket;
+
+import java.io.IOException;
+
+/**
+ * Listener that accepts connections as ProtocolSockets
+ * @author etsubu
+ *
+ */
+public interface ProtocolListener {
+
+    /**
+     * Accepts incoming connection and completes its handshake if the transport has one
+     * @return New connection wrapped in ProtocolSocket
+     * @throws IOException If there was an error accepting connection
+     */
+    public ProtocolSocket accept() throws IOException;
+    
+    /**
+     * Sets the monitor that is notified about handshakes and passed on to the accepted sockets
+     * @param monitor SocketMonitor to notify or null to disable
+     */
+    public void setMonitor(SocketMonitor monitor);
+    
+    /**
+     * Closes the listener
+     */
+    public void close();
+}
@@ -1,8 +1,11 @@
 package ProtocolSocket;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
@@ -14,8 +17,10 @@ import javax.net.ssl.SSLSocket;
  * @version 19 Apr 2019
  *
  */
-public class ProtocolServerSocket {
+public class ProtocolServerSocket implements ProtocolListener {
+    private static final int CLOSE_LINGER_SECONDS = 1;
     private ServerSocket server;
+    private SocketMonitor monitor;
     
     /**
      * Static SSLServerSocketFactory
@@ -46,26 +51,154 @@ public class ProtocolServerSocket {
         }
     }
     
+    /**
+     * Initializes ProtocolServerSocket on the given address and port. With reusePort several ProtocolServerSockets
+     * can bind the same port and the kernel spreads the incoming connections between them
+     * @param address Local address to bind on or null for every address
+     * @param port Port to bind on
+     * @param SSL True if SSL is to be enabled
+     * @param reusePort True to set SO_REUSEPORT before binding
+     * @param backlog Length of the queue of connections waiting to be accepted, 0 for the default
+     * @throws IOException If the port could not be opened or SO_REUSEPORT is not supported
+     */
+    public ProtocolServerSocket(InetAddress address, int port, boolean SSL, boolean reusePort, int backlog) throws IOException {
+        if(SSL) {
+            server = sslServerSocketFactory.createServerSocket();
+        }
+        else {
+            server = new ServerSocket();
+        }
+        try {
+            if(reusePort) {
+                if(!server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new IOException("SO_REUSEPORT is not supported on this platform");
+                }
+                server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            server.bind(new InetSocketAddress(address, port), backlog);
+        } catch(IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Checks whether several ProtocolServerSockets can bind the same port with SO_REUSEPORT
+     * @return True if SO_REUSEPORT is supported
+     */
+    public static boolean isReusePortSupported() {
+        try(ServerSocket probe = new ServerSocket()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch(IOException e) {
+            return false;
+        }
+    }
+    
+    @Override
+    public void setMonitor(SocketMonitor monitor) {
+        this.monitor = monitor;
+    }
+    
     /**
      * Accepts incoming connection and configures SSL settings if SSL is enabled
      * @return New connection wrapped in ProtocolSocket and SSL if enabled
      * @throws IOException If there was an error accepting connection
      */
-    @SuppressWarnings("resource")
+    @Override
     public ProtocolSocket accept() throws IOException {
+        return handshake(acceptSocket());
+    }
+    
+    /**
+     * Accepts incoming connection without handshaking. The socket has to be passed to handshake(). Nagle's algorithm
+     * is disabled since the outbound queues already coalesce the frames into as few writes as possible. SO_LINGER
+     * bounds how long closing waits for a write that is stuck on a peer that does not read, otherwise closing a TLS
+     * socket waits for that write to finish
+     * @return The accepted socket
+     * @throws IOException If there was an error accepting connection
+     */
+    public Socket acceptSocket() throws IOException {
         Socket socket = this.server.accept();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoLinger(true, CLOSE_LINGER_SECONDS);
+        } catch(IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+    
+    /**
+     * Completes the TLS handshake of an accepted socket if SSL is enabled and wraps it in a ProtocolSocket.
+     * The socket is closed if the handshake fails
+     * @param socket Socket from acceptSocket()
+     * @return The connection wrapped in ProtocolSocket
+     * @throws IOException If the handshake failed
+     */
+    public ProtocolSocket handshake(Socket socket) throws IOException {
+        ConnectionAcceptEvent acceptEvent = new ConnectionAcceptEvent();
+        acceptEvent.begin();
         if(socket instanceof SSLSocket) {
             SSLSocket ssl = (SSLSocket)socket;
             ProtocolSocket.configureSSLSocket(ssl);
-            ssl.startHandshake();
+            HandshakeEvent handshakeEvent = new HandshakeEvent();
+            handshakeEvent.begin();
+            long start = System.nanoTime();
+            try {
+                ssl.startHandshake();
+            } catch(IOException e) {
+                if(this.monitor != null) {
+                    this.monitor.handshakeCompleted(System.nanoTime() - start, false);
+                }
+                commitHandshakeEvent(handshakeEvent, ssl, false);
+                socket.close();
+                throw e;
+            }
+            if(this.monitor != null) {
+                this.monitor.handshakeCompleted(System.nanoTime() - start, true);
+            }
+            commitHandshakeEvent(handshakeEvent, ssl, true);
         }
-        return new ProtocolSocket(socket);
+        ProtocolSocket protoSocket = new ProtocolSocket(socket);
+        protoSocket.setMonitor(this.monitor);
+        if(acceptEvent.shouldCommit()) {
+            acceptEvent.remoteAddress = protoSocket.getIP();
+            acceptEvent.localPort = socket.getLocalPort();
+            acceptEvent.tls = socket instanceof SSLSocket;
+            acceptEvent.commit();
+        }
+        return protoSocket;
 
     }
     
+    /**
+     * Commits the Flight Recorder event of a handshake if it is being recorded
+     * @param event Event that was started before the handshake
+     * @param ssl The handshaking socket
+     * @param success True if the handshake succeeded
+     */
+    private static void commitHandshakeEvent(HandshakeEvent event, SSLSocket ssl, boolean success) {
+        if(event.shouldCommit()) {
+            event.remoteAddress = ssl.getInetAddress().getHostAddress();
+            event.success = success;
+            event.cipherSuite = success ? ssl.getSession().getCipherSuite() : null;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Getter for the port the socket is bound on
+     * @return Local port
+     */
+    public int getLocalPort() {
+        return this.server.getLocalPort();
+    }
+    
     /**
      * Closes the ServerSocket
      */
+    @Override
     public void close() {
         try {
             this.server.close();
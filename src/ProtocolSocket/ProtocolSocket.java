@@ -1,13 +1,19 @@
 package ProtocolSocket;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.List;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -16,6 +22,7 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 
 import Client.CertificateStorage;
+import jdk.jfr.EventType;
 
 /**
  * Reads and writes the incoming packets. Uses simple packet header to keep track of the packet sizes and types
@@ -27,8 +34,16 @@ import Client.CertificateStorage;
  */
 public class ProtocolSocket {
     private Socket socket;
+    private SocketChannel channel;
+    private ChannelStreams streams;
     private SSLContext context;
     private CertificateStorage tm;
+    private SocketMonitor monitor;
+    
+    /**
+     * Flight Recorder type of the write events, checked before an event is allocated
+     */
+    private static final EventType WRITE_EVENT = EventType.getEventType(PacketWriteEvent.class);
     
     /**
      * Static SSLSocketFactory
@@ -95,12 +110,15 @@ public class ProtocolSocket {
             this.tm = new CertificateStorage(password);
             configureContext();
             SSLSocket ssl = (SSLSocket) context.getSocketFactory().createSocket(address, port);
+            // The client's sender thread coalesces the frames itself
+            ssl.setTcpNoDelay(true);
             configureSSLSocket(ssl);
             ssl.startHandshake();
             this.tm.verifyHostname(ssl.getSession());
             this.socket = ssl;
         } else {
             this.socket = new Socket(address, port);
+            this.socket.setTcpNoDelay(true);
         }
     }
     
@@ -112,6 +130,24 @@ public class ProtocolSocket {
         this.socket = socket;
     }
     
+    /**
+     * Initializes ProtocolSocket and connects to the Unix domain socket at the given path. The connection is not encrypted
+     * @param path Path of the socket file
+     * @throws IOException If the socket could not be connected
+     */
+    public ProtocolSocket(Path path) throws IOException {
+        this(SocketChannel.open(UnixDomainSocketAddress.of(path)));
+    }
+    
+    /**
+     * Initializes ProtocolSocket with a connected blocking SocketChannel to wrap in, e.g. a Unix domain socket connection
+     * @param channel SocketChannel to wrap in
+     */
+    public ProtocolSocket(SocketChannel channel) {
+        this.channel = channel;
+        this.streams = new ChannelStreams(channel);
+    }
+    
     /**
      * Configures the SSLSocket to utilize the predefined cipher suites and protocols
      * @param ssl SSLSocket to configure
@@ -133,14 +169,43 @@ public class ProtocolSocket {
         context.init(null, new TrustManager[] {tm}, new SecureRandom());
     }
 	
+	/**
+	 * Sets the monitor that is notified about the traffic on this socket
+	 * @param monitor SocketMonitor to notify or null to disable
+	 */
+	public void setMonitor(SocketMonitor monitor) {
+		this.monitor = monitor;
+	}
+	
 	/**
 	 * Getter for the sockets IP
 	 * @return IP of the client
 	 */
 	public String getIP(){
+		if(this.socket == null) {
+			return "local";
+		}
 		return this.socket.getInetAddress().getHostAddress();
 	}
 	
+	/**
+	 * Getter for the stream the packets are read from
+	 * @return Input stream of the connection
+	 * @throws IOException If the socket is closed
+	 */
+	private InputStream getInputStream() throws IOException {
+		return this.socket == null ? this.streams.getInputStream() : this.socket.getInputStream();
+	}
+	
+	/**
+	 * Getter for the stream the packets are written to
+	 * @return Output stream of the connection
+	 * @throws IOException If the socket is closed
+	 */
+	private OutputStream getOutputStream() throws IOException {
+		return this.socket == null ? this.streams.getOutputStream() : this.socket.getOutputStream();
+	}
+	
 	/**
 	 * Reads a whole packet from the socket
 	 * @return Packet object
@@ -152,13 +217,15 @@ public class ProtocolSocket {
 		int headerRead = 0;
 		//Read until header is received
 		while(headerRead < headerSize.length){
-			int read = this.socket.getInputStream().read(headerSize, headerRead, headerSize.length - headerRead);
+			int read = getInputStream().read(headerSize, headerRead, headerSize.length - headerRead);
 			if(read == -1){
 				throw new IOException();
 			}
 			headerRead += read;
 		}
 		Header header = new Header(headerSize);
+		PacketReadEvent event = new PacketReadEvent();
+		event.begin();
 		//Check if the header is valid
 		if(header.getSize() > Packet.MAX_SIZE || header.getSize() < 0)
 			throw new IllegalHeaderException();
@@ -166,18 +233,63 @@ public class ProtocolSocket {
 		int packetRead = 0;
 		int packetSize = header.getSize();
 		if(packetSize == 0){
-			return new Packet(header, null);
+			if(this.monitor != null) {
+				this.monitor.packetRead(header.getType(), Header.HEADER_SIZE);
+			}
+			commitReadEvent(event, header);
+			return new Packet(header, null, System.nanoTime());
 		}
 		byte[] data = new byte[packetSize];
 		//Read until whole data has arrived
 		while(packetRead < packetSize){
-			int read = this.socket.getInputStream().read(data, packetRead, packetSize - packetRead);
+			int read = getInputStream().read(data, packetRead, packetSize - packetRead);
 			if(read == -1){
 				throw new IOException();
 			}
 			packetRead += read;
 		}
-		return new Packet(header, data);
+		if(this.monitor != null) {
+			this.monitor.packetRead(header.getType(), Header.HEADER_SIZE + packetSize);
+		}
+		commitReadEvent(event, header);
+		return new Packet(header, data, System.nanoTime());
+	}
+	
+	/**
+	 * Commits the Flight Recorder event of a read packet if it is being recorded
+	 * @param event Event that was started when the header arrived
+	 * @param header Header of the packet
+	 */
+	private void commitReadEvent(PacketReadEvent event, Header header) {
+		if(event.shouldCommit()) {
+			event.type = ProtocolID.nameOf(header.getType());
+			event.size = Header.HEADER_SIZE + header.getSize();
+			event.remoteAddress = getIP();
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Commits the Flight Recorder event of a write if it is being recorded
+	 * @param event Event that was started before writing
+	 * @param frames The frames written with the write
+	 * @param size Size of the write in bytes
+	 */
+	private void commitWriteEvent(PacketWriteEvent event, List<Frame> frames, int size) {
+		if(event.shouldCommit()) {
+			int type = frames.get(0).getType();
+			int flags = 0;
+			for(Frame frame : frames) {
+				type = frame.getType() == type ? type : -1;
+				flags |= frame.getFlags();
+			}
+			event.type = type == -1 ? null : ProtocolID.nameOf(type);
+			event.frames = frames.size();
+			event.size = size;
+			event.flags = flags;
+			event.remoteAddress = getIP();
+			event.commit();
+		}
 	}
 	
 	/**
@@ -197,26 +309,98 @@ public class ProtocolSocket {
 	 * @throws IOException If there is an socket error
 	 */
 	public void write(byte[] data, ProtocolID type) throws IOException{
-		//If data is null only write the header
-		if(data == null){
-			byte[] header = Header.toBytes(0, type.ordinal());
-			this.socket.getOutputStream().write(header);
-			this.socket.getOutputStream().flush();
-			return;
-		}
-		int totalSent = 0;
-		int offset = 0;
-		//Loop until the whole packet is sent
-		while(totalSent < data.length){
-			int toSendSize = Math.min(Packet.MAX_SIZE, data.length - totalSent);
-			byte[] header = Header.toBytes(toSendSize, type.ordinal());
-			byte[] fullPacket = new byte[header.length + toSendSize];
-			System.arraycopy(header, 0, fullPacket, 0, header.length);
-			System.arraycopy(data, offset, fullPacket, header.length, toSendSize);
-			this.socket.getOutputStream().write(fullPacket);
-			this.socket.getOutputStream().flush();
-			totalSent += toSendSize;
+		write(data, type, 0);
+	}
+	
+	/**
+	 * Writes the data to the client as a structured packet with the given header flags
+	 * @param data data to write
+	 * @param type Type ID for the packet
+	 * @param flags Header flags for the packet
+	 * @throws IOException If there is an socket error
+	 */
+	public void write(byte[] data, ProtocolID type, int flags) throws IOException{
+		writeFrame(new Frame(data, type, flags));
+	}
+	
+	/**
+	 * Writes an already encoded frame and flushes it
+	 * @param frame Frame to write
+	 * @throws IOException If there is an socket error
+	 */
+	public synchronized void writeFrame(Frame frame) throws IOException{
+		PacketWriteEvent event = WRITE_EVENT.isEnabled() ? new PacketWriteEvent() : null;
+		if(event != null) {
+			event.begin();
+		}
+		long start = System.nanoTime();
+		OutputStream output = getOutputStream();
+		output.write(frame.getBytes());
+		output.flush();
+		if(this.monitor != null) {
+			this.monitor.packetWritten(frame.getType(), frame.getSize());
+			this.monitor.writeFlushed(System.nanoTime() - start);
+		}
+		if(event != null) {
+			commitWriteEvent(event, List.of(frame), frame.getSize());
+		}
+	}
+	
+	/**
+	 * Writes several encoded frames with a single write and flush, so they share TLS records and TCP segments
+	 * instead of costing one of each per frame
+	 * @param frames Frames to write in order
+	 * @throws IOException If there is an socket error
+	 */
+	public synchronized void writeFrames(List<Frame> frames) throws IOException{
+		writeFrames(frames, false);
+	}
+	
+	/**
+	 * Writes several encoded frames with a single write and flush, packed into BATCH frames if batch is set. Only
+	 * peers that announced Header.FLAG_BATCH understand those. The monitor counts the frames by their own types
+	 * either way
+	 * @param frames Frames to write in order
+	 * @param batch True to pack the frames into BATCH frames
+	 * @return Number of packets written
+	 * @throws IOException If there is an socket error
+	 */
+	public synchronized int writeFrames(List<Frame> frames, boolean batch) throws IOException{
+		if(frames.size() == 1) {
+			writeFrame(frames.get(0));
+			return 1;
+		}
+		List<Frame> packets = batch ? Batch.pack(frames) : frames;
+		int size = 0;
+		for(Frame packet : packets) {
+			size += packet.getSize();
+		}
+		byte[] bytes = new byte[size];
+		int position = 0;
+		for(Frame packet : packets) {
+			System.arraycopy(packet.getBytes(), 0, bytes, position, packet.getSize());
+			position += packet.getSize();
+		}
+		// One event covers the whole write, so it is not multiplied by the number of frames
+		PacketWriteEvent event = WRITE_EVENT.isEnabled() ? new PacketWriteEvent() : null;
+		if(event != null) {
+			event.begin();
+		}
+		long start = System.nanoTime();
+		OutputStream output = getOutputStream();
+		output.write(bytes);
+		output.flush();
+		long nanos = System.nanoTime() - start;
+		if(this.monitor != null) {
+			for(int i = 0; i < frames.size(); i++) {
+				this.monitor.packetWritten(frames.get(i).getType(), frames.get(i).getSize());
+			}
+			this.monitor.writeFlushed(nanos);
+		}
+		if(event != null) {
+			commitWriteEvent(event, frames, size);
 		}
+		return packets.size();
 	}
 	
 	/**
@@ -224,7 +408,11 @@ public class ProtocolSocket {
 	 */
 	public void close() {
 	    try {
-            this.socket.close();
+	        if(this.socket == null) {
+	            this.channel.close();
+	        } else {
+	            this.socket.close();
+	        }
         } catch (IOException e) {
             //
         }
@@ -0,0 +1,38 @@
+package ProtocolSocket;
+
+/**
+ * Receives notifications about the traffic of ProtocolSockets. Implementations are called on the
+ * I/O threads so they must be cheap and must not allocate
+ * @author etsubu
+ *
+ */
+public interface SocketMonitor {
+
+	/**
+	 * Called when a whole packet has been read
+	 * @param type Type ID of the packet
+	 * @param size Size of the packet including the header
+	 */
+	public void packetRead(int type, int size);
+
+	/**
+	 * Called for each packet of a write once it has been flushed. Packets packed into a BATCH packet are reported
+	 * one by one with their own types
+	 * @param type Type ID of the packet
+	 * @param size Size of the packet including the header
+	 */
+	public void packetWritten(int type, int size);
+
+	/**
+	 * Called once per write and flush, after its packets have been reported
+	 * @param nanos Time it took to write and flush in nanoseconds
+	 */
+	public void writeFlushed(long nanos);
+
+	/**
+	 * Called when a TLS handshake of an accepted connection has completed
+	 * @param nanos Duration of the handshake in nanoseconds
+	 * @param success True if the handshake succeeded
+	 */
+	public void handshakeCompleted(long nanos, boolean success);
+}
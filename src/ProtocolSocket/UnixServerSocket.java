@@ -0,0 +1,64 @@
+package ProtocolSocket;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Accepts connections on a Unix domain socket. The connections are plaintext, access to them is controlled by the
+ * file permissions of the socket
+ * @author etsubu
+ *
+ */
+public class UnixServerSocket implements ProtocolListener {
+    private final ServerSocketChannel server;
+    private final Path path;
+    private SocketMonitor monitor;
+    
+    /**
+     * Initializes UnixServerSocket on the given path. A socket file left behind by a previous server is replaced
+     * @param path Path of the socket file
+     * @throws IOException If the socket could not be bound
+     */
+    public UnixServerSocket(Path path) throws IOException {
+        this.path = path;
+        Files.deleteIfExists(path);
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            this.server.bind(UnixDomainSocketAddress.of(path));
+        } catch(IOException e) {
+            this.server.close();
+            throw e;
+        }
+    }
+    
+    @Override
+    public void setMonitor(SocketMonitor monitor) {
+        this.monitor = monitor;
+    }
+    
+    @Override
+    public ProtocolSocket accept() throws IOException {
+        SocketChannel channel = this.server.accept();
+        ProtocolSocket protoSocket = new ProtocolSocket(channel);
+        protoSocket.setMonitor(this.monitor);
+        return protoSocket;
+    }
+    
+    /**
+     * Closes the socket and removes the socket file
+     */
+    @Override
+    public void close() {
+        try {
+            this.server.close();
+            Files.deleteIfExists(this.path);
+        } catch (IOException e) {
+            //
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package Server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import Metrics.Counter;
+import Metrics.Gauge;
+import Metrics.MetricsRegistry;
+
+/**
+ * Decides at accept time whether a new connection is let in, before any thread or TLS state is spent on it.
+ * A connection is rejected when the server is at admission.maxConnections, when its address already has
+ * admission.maxPerIp connections or has connected faster than admission.ipRate per second, when
+ * admission.maxPendingHandshakes handshakes are already running, or when the heap occupancy after the last
+ * collection or the queued outbound bytes are above their limits. Shedding new connections under pressure
+ * keeps the existing sessions healthy. A zero limit disables the check. Every acceptor thread admits through
+ * the same instance
+ * @author etsubu
+ *
+ */
+public class AdmissionControl {
+	private static final long PRESSURE_SAMPLE_MILLIS = 100;
+	private static final long MILLI = 1000;
+
+	/**
+	 * Admission of a single connection. Releasing the ticket frees its slot of the connection limits
+	 */
+	public final class Ticket {
+		private final long key;
+		private final AtomicBoolean handshaking;
+		private final AtomicBoolean released;
+
+		private Ticket(long key) {
+			this.key = key;
+			this.handshaking = new AtomicBoolean(true);
+			this.released = new AtomicBoolean();
+		}
+
+		/**
+		 * Called when the handshake of the connection has finished or failed. Only the first call has an effect
+		 */
+		public void handshakeFinished() {
+			if(this.handshaking.compareAndSet(true, false)) {
+				pendingHandshakes.dec();
+			}
+		}
+
+		/**
+		 * Called when the connection has been closed. Only the first call has an effect
+		 */
+		public void release() {
+			handshakeFinished();
+			if(this.released.compareAndSet(false, true)) {
+				connections.dec();
+				if(this.key != 0) {
+					releaseAddress(this.key);
+				}
+			}
+		}
+	}
+
+	private final int maxConnections;
+	private final int maxPerIp;
+	private final long ipRatePerSecond;
+	private final long ipBurst;
+	private final int maxPendingHandshakes;
+	private final double maxHeapFraction;
+	private final long maxPendingBytes;
+	private final OutboundService outbound;
+	private final List<MemoryPoolMXBean> heapPools;
+	private final Gauge connections;
+	private final Gauge pendingHandshakes;
+	private final Counter rejectedConnections;
+	private final Counter rejectedIpConcurrent;
+	private final Counter rejectedIpRate;
+	private final Counter rejectedIpTable;
+	private final Counter rejectedHandshakes;
+	private final Counter rejectedPressure;
+	private final int maxAddresses;
+	private long[] keys;
+	private int[] open;
+	private long[] tokens;
+	private long[] refilled;
+	private int size;
+	private volatile boolean underPressure;
+	private volatile long pressureSampled;
+
+	/**
+	 * Initializes the admission limits
+	 * @param config Configuration of the server
+	 * @param outbound Outbound service whose queued bytes are a pressure signal
+	 * @param registry Registry where the admission counters are registered
+	 */
+	public AdmissionControl(ServerConfig config, OutboundService outbound, MetricsRegistry registry) {
+		this.maxConnections = Math.max(0, config.getInt("admission.maxConnections", 10000));
+		this.maxPerIp = Math.max(0, config.getInt("admission.maxPerIp", 64));
+		// Kept in milli connections per second like the bucket, so rates below one connection per second work
+		double ipRate = config.getDouble("admission.ipRate", 20);
+		this.ipRatePerSecond = Math.max(0, Math.min(Integer.MAX_VALUE, Math.round(ipRate * MILLI)));
+		if(ipRate > 0 && this.ipRatePerSecond == 0) {
+			throw new IllegalArgumentException("admission.ipRate must be 0 or at least 0.001");
+		}
+		this.ipBurst = Math.max(1, config.getLong("admission.ipBurst", 40)) * MILLI;
+		this.maxPendingHandshakes = Math.max(0, config.getInt("admission.maxPendingHandshakes", 256));
+		this.maxHeapFraction = config.getDouble("admission.maxHeapFraction", 0.9);
+		this.maxPendingBytes = Math.max(0, config.getLong("admission.maxPendingBytes", 256L << 20));
+		this.maxAddresses = Math.max(16, config.getInt("admission.ipTableSize", 65536));
+		this.outbound = outbound;
+		this.heapPools = new ArrayList<>();
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+				this.heapPools.add(pool);
+			}
+		}
+		this.connections = registry.register("javachat_admitted_connections", "Connections holding an admission ticket", new Gauge());
+		this.pendingHandshakes = registry.register("javachat_pending_handshakes", "Admitted connections that have not finished the handshake", new Gauge());
+		String help = "Connections rejected at accept time";
+		this.rejectedConnections = registry.register("javachat_admission_rejected_total", help, "reason=\"connections\"", new Counter());
+		this.rejectedIpConcurrent = registry.register("javachat_admission_rejected_total", help, "reason=\"ip_concurrent\"", new Counter());
+		this.rejectedIpRate = registry.register("javachat_admission_rejected_total", help, "reason=\"ip_rate\"", new Counter());
+		this.rejectedIpTable = registry.register("javachat_admission_rejected_total", help, "reason=\"ip_table\"", new Counter());
+		this.rejectedHandshakes = registry.register("javachat_admission_rejected_total", help, "reason=\"handshakes\"", new Counter());
+		this.rejectedPressure = registry.register("javachat_admission_rejected_total", help, "reason=\"pressure\"", new Counter());
+		allocate(Integer.highestOneBit(this.maxAddresses - 1) << 2);
+	}
+
+	/**
+	 * Decides whether a new connection is admitted
+	 * @param address Remote address of the connection or null for a trusted local connection, which is only subject to
+	 * the server wide limits
+	 * @return Ticket to release when the connection closes or null if the connection has to be closed right away
+	 */
+	public synchronized Ticket admit(InetAddress address) {
+		if(this.maxConnections > 0 && this.connections.get() >= this.maxConnections) {
+			this.rejectedConnections.inc();
+			return null;
+		}
+		if(this.maxPendingHandshakes > 0 && this.pendingHandshakes.get() >= this.maxPendingHandshakes) {
+			this.rejectedHandshakes.inc();
+			return null;
+		}
+		if(isUnderPressure()) {
+			this.rejectedPressure.inc();
+			return null;
+		}
+		long key = address == null ? 0 : keyOf(address);
+		if(key != 0 && !admitAddress(key)) {
+			return null;
+		}
+		this.connections.inc();
+		this.pendingHandshakes.inc();
+		return new Ticket(key);
+	}
+
+	/**
+	 * Checks the heap occupancy after the last collection and the queued outbound bytes. Sampled at most every 100 ms
+	 * @return True if new connections should be shed
+	 */
+	private boolean isUnderPressure() {
+		long now = System.currentTimeMillis();
+		if(now - this.pressureSampled < PRESSURE_SAMPLE_MILLIS) {
+			return this.underPressure;
+		}
+		boolean pressure = this.maxPendingBytes > 0 && this.outbound.getPendingBytes() > this.maxPendingBytes;
+		if(!pressure && this.maxHeapFraction > 0 && this.maxHeapFraction < 1) {
+			for(MemoryPoolMXBean pool : this.heapPools) {
+				MemoryUsage usage = pool.getCollectionUsage();
+				if(usage != null && usage.getMax() > 0 && usage.getUsed() > usage.getMax() * this.maxHeapFraction) {
+					pressure = true;
+					break;
+				}
+			}
+		}
+		this.underPressure = pressure;
+		this.pressureSampled = now;
+		return pressure;
+	}
+
+	/**
+	 * Maps an address to a non-zero table key. IPv4 addresses map one to one, IPv6 addresses are hashed
+	 * @param address The address
+	 * @return Key of the address
+	 */
+	private static long keyOf(InetAddress address) {
+		byte[] bytes = address.getAddress();
+		if(bytes.length == 4) {
+			return (1L << 32) | ((bytes[0] & 0xFFL) << 24) | ((bytes[1] & 0xFFL) << 16) | ((bytes[2] & 0xFFL) << 8) | (bytes[3] & 0xFFL);
+		}
+		long hash = 0xCBF29CE484222325L;
+		for(byte b : bytes) {
+			hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+		}
+		return hash | Long.MIN_VALUE;
+	}
+
+	/**
+	 * Applies the per address limits and counts the connection to its address
+	 * @param key Key of the address
+	 * @return True if the address is within its limits
+	 */
+	private boolean admitAddress(long key) {
+		int slot = find(key);
+		if(slot < 0) {
+			if(this.size >= this.maxAddresses) {
+				sweep();
+			}
+			if(this.size >= this.maxAddresses) {
+				this.rejectedIpTable.inc();
+				return false;
+			}
+			slot = ~slot;
+			this.keys[slot] = key;
+			this.open[slot] = 0;
+			this.tokens[slot] = this.ipBurst;
+			this.refilled[slot] = System.currentTimeMillis();
+			this.size++;
+		}
+		if(this.maxPerIp > 0 && this.open[slot] >= this.maxPerIp) {
+			this.rejectedIpConcurrent.inc();
+			return false;
+		}
+		if(this.ipRatePerSecond > 0) {
+			long now = System.currentTimeMillis();
+			long available = available(slot, now);
+			if(available < MILLI) {
+				this.rejectedIpRate.inc();
+				return false;
+			}
+			// The refill time only moves when tokens are taken, so slow rates are not truncated away by rejected attempts
+			this.tokens[slot] = available - MILLI;
+			this.refilled[slot] = now;
+		}
+		this.open[slot]++;
+		return true;
+	}
+
+	/**
+	 * Frees the slot of a closed connection
+	 * @param key Key of the address
+	 */
+	private synchronized void releaseAddress(long key) {
+		int slot = find(key);
+		if(slot >= 0 && this.open[slot] > 0) {
+			this.open[slot]--;
+		}
+	}
+
+	/**
+	 * Calculates the tokens in the connection rate bucket of an address
+	 * @param slot Slot of the address
+	 * @param now Current time in milliseconds
+	 * @return Tokens in the bucket, one connection costs 1000
+	 */
+	private long available(int slot, long now) {
+		return available(this.tokens[slot], this.refilled[slot], now);
+	}
+
+	/**
+	 * Calculates the tokens in a connection rate bucket
+	 * @param tokens Tokens when the bucket was last refilled
+	 * @param refilled Time of the last refill in milliseconds
+	 * @param now Current time in milliseconds
+	 * @return Tokens in the bucket, one connection costs 1000
+	 */
+	private long available(long tokens, long refilled, long now) {
+		long elapsed = Math.max(0, now - refilled);
+		return Math.min(this.ipBurst, tokens + elapsed * this.ipRatePerSecond / MILLI);
+	}
+
+	/**
+	 * Finds the slot of a key with linear probing
+	 * @param key Key of the address
+	 * @return Slot of the key or the bitwise complement of the free slot where it would be added
+	 */
+	private int find(long key) {
+		int mask = this.keys.length - 1;
+		int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		while(this.keys[slot] != 0) {
+			if(this.keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return ~slot;
+	}
+
+	/**
+	 * Drops the addresses that have no connections and a full rate bucket, they are indistinguishable from new ones
+	 */
+	private void sweep() {
+		long[] oldKeys = this.keys;
+		int[] oldOpen = this.open;
+		long[] oldTokens = this.tokens;
+		long[] oldRefilled = this.refilled;
+		long now = System.currentTimeMillis();
+		allocate(oldKeys.length);
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] == 0) {
+				continue;
+			}
+			long available = available(oldTokens[i], oldRefilled[i], now);
+			if(oldOpen[i] == 0 && available >= this.ipBurst) {
+				continue;
+			}
+			int slot = ~find(oldKeys[i]);
+			this.keys[slot] = oldKeys[i];
+			this.open[slot] = oldOpen[i];
+			this.tokens[slot] = oldTokens[i];
+			this.refilled[slot] = oldRefilled[i];
+			this.size++;
+		}
+	}
+
+	/**
+	 * Replaces the table with an empty one
+	 * @param capacity Number of slots, a power of two
+	 */
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.open = new int[capacity];
+		this.tokens = new long[capacity];
+		this.refilled = new long[capacity];
+		this.size = 0;
+	}
+}
@@ -1,22 +1,61 @@
 package Server;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
+import ProtocolSocket.Frame;
+import ProtocolSocket.Header;
+import ProtocolSocket.Packet;
 import ProtocolSocket.ProtocolID;
 import Server.ServerManager;
 import Server.User;
 
 /**
- * Contains the joined users and allows to broadcast messages to them
+ * Contains the joined users and allows to broadcast messages to them. Every channel is owned by one shard
+ * of the ShardPool: joins, leaves and broadcasts are submitted to the shard and run on its thread in order,
+ * so the members and the cached frames are only touched by that thread and need no locking. The latest messages
+ * are kept with their sequence numbers so a resuming user is sent the ones it missed. A channel with at least
+ * presence.largeChannelThreshold members on the cluster sends its members only the member count and the recently
+ * active members, and the full list is requested a page at a time. Joins and leaves are collected for
+ * presence.batchMillis and the members are sent one notification and one user list for all of them, and channels
+ * with at least presence.quietThreshold members send no join and leave lines at all. A joining user is sent the
+ * user list right away, only the notifications to the other members wait for the batch
  * @author etsubu
  *
  */
 public class Channel {
+	/**
+	 * Nicknames kept per batch of joins or leaves, the rest are only counted
+	 */
+	private static final int MAX_BATCH_NAMES = 1000;
+	/**
+	 * Length of the longest channel ID in text
+	 */
+	private static final int MAX_ID_LENGTH = Integer.toString(Integer.MIN_VALUE).length();
 	private List<User> joinedUsers;
 	private String channelName;
 	private int channelID;
 	private ServerManager manager;
+	private ChannelTrace trace;
+	private Frame userListFrame;
+	private final Frame joinFrame;
+	private final byte[] messagePrefix;
+	private final int relayPrefixSize;
+	private final ShardPool.Shard shard;
+	private volatile int memberCount;
+	private boolean removed;
+	private final MessageHistory history;
+	private final ChannelRoster roster;
+	private final int largeThreshold;
+	private final int pageSize;
+	private final long batchMillis;
+	private final int quietThreshold;
+	private final List<String> pendingJoins;
+	private final List<String> pendingLeaves;
+	private int pendingJoinCount;
+	private int pendingLeaveCount;
+	private boolean flushScheduled;
 	
 	/**
 	 * Initializes the channel
@@ -33,6 +72,31 @@ public class Channel {
 		this.joinedUsers = new ArrayList<>();
 		this.channelName = channelName;
 		this.channelID = channelID;
+		this.joinFrame = new Frame(channelID + ":" + channelName, ProtocolID.JOIN_CHANNEL);
+		this.messagePrefix = (channelID + ":").getBytes(StandardCharsets.UTF_8);
+		this.relayPrefixSize = Math.max(MAX_ID_LENGTH, channelName.getBytes(StandardCharsets.UTF_8).length) + 1;
+		this.trace = manager.getTracer().createChannelTrace(channelName);
+		this.shard = manager.getShards().shardFor(channelID);
+		this.history = new MessageHistory(manager.getConfig().getInt("history.size", 100));
+		this.roster = new ChannelRoster(manager.getConfig().getInt("presence.recentSize", 20));
+		this.largeThreshold = Math.max(0, manager.getConfig().getInt("presence.largeChannelThreshold", 256));
+		this.pageSize = Math.max(1, manager.getConfig().getInt("presence.pageSize", 100));
+		this.batchMillis = Math.max(0, manager.getConfig().getLong("presence.batchMillis", 250));
+		int quietThreshold = manager.getConfig().getInt("presence.quietThreshold", 1000);
+		this.quietThreshold = Math.max(0, manager.getConfig().getInt("presence.quietThreshold." + channelName.toLowerCase(), quietThreshold));
+		this.pendingJoins = new ArrayList<>();
+		this.pendingLeaves = new ArrayList<>();
+		for (String name : manager.getCluster().getRemoteMembers(channelName)) {
+			this.roster.add(name);
+		}
+	}
+	
+	/**
+	 * Runs a task on the shard of the channel after the operations submitted before it
+	 * @param task Task to run
+	 */
+	public void execute(Runnable task) {
+		this.shard.execute(task);
 	}
 	
 	/**
@@ -52,13 +116,69 @@ public class Channel {
 	}
 	
 	/**
-	 * Getter for the currently joined users
+	 * Getter for the JOIN_CHANNEL frame of the channel, which is the same for every user who joins
+	 * @return JOIN_CHANNEL frame of the channel
+	 */
+	public Frame getJoinFrame() {
+		return this.joinFrame;
+	}
+	
+	/**
+	 * Getter for the currently joined users. Must only be used on the shard of the channel
 	 * @return List of users on the channel
 	 */
 	public List<User> getJoinedUsers() {
 		return this.joinedUsers;
 	}
 	
+	/**
+	 * Getter for the number of joined users. Can be read from any thread
+	 * @return Number of users on the channel
+	 */
+	public int getMemberCount() {
+		return this.memberCount;
+	}
+	
+	/**
+	 * Checks whether the channel is large enough to send only the member count and the recently active members.
+	 * Must only be used on the shard of the channel
+	 * @return True if the channel is in the large channel mode
+	 */
+	private boolean isLarge() {
+		return this.largeThreshold > 0 && this.roster.size() >= this.largeThreshold;
+	}
+	
+	/**
+	 * Getter for the encoded user list of the channel. The frame is built once per membership change
+	 * and shared by every user it is sent to. Must only be used on the shard of the channel
+	 * @return LIST_USERS frame of the channel, or USER_PRESENCE frame if the channel is large
+	 */
+	public Frame getUserListFrame() {
+		if (this.userListFrame == null && isLarge()) {
+			this.userListFrame = new Frame(this.roster.presence(this.channelID), ProtocolID.USER_PRESENCE);
+		} else if (this.userListFrame == null) {
+			StringBuilder userList = new StringBuilder();
+			userList.append(this.channelID + ":");
+			for (User u : this.joinedUsers) {
+				userList.append(u.getName() + "\n");
+			}
+			for (String name : this.manager.getCluster().getRemoteMembers(this.channelName)) {
+				userList.append(name + "\n");
+			}
+			String listStr = userList.toString().substring(0, userList.length() - 1);
+			this.userListFrame = new Frame(listStr, ProtocolID.LIST_USERS);
+		}
+		return this.userListFrame;
+	}
+	
+	/**
+	 * Getter for the latency histograms of the channel
+	 * @return Trace of the channel or null if tracing is disabled
+	 */
+	public ChannelTrace getTrace() {
+		return this.trace;
+	}
+	
 	   /**
      * Checks the validity of the given name. A name can only contain letters and digits
      * @param name The name to check
@@ -75,46 +195,268 @@ public class Channel {
     }
 	
 	/**
-	 * Adds user to the channel
+	 * Sends the user list of the channel to the user once the operations submitted before have run
+	 * @param user User who requested the list
+	 */
+	public void requestUserList(User user) {
+		this.shard.execute(() -> user.sendListUsers(this, true));
+	}
+	
+	/**
+	 * Sends the user a page of the members sorted by their nickname once the operations submitted before have run
+	 * @param user User who requested the page
+	 * @param prefix Only the nicknames starting with the prefix are listed, case insensitive
+	 * @param after The page starts after this nickname, empty for the first page
+	 */
+	public void requestUserPage(User user, String prefix, String after) {
+		this.shard.execute(() -> user.send(new Frame(this.roster.page(this.channelID, prefix, after, this.pageSize), ProtocolID.USER_PAGE)));
+	}
+	
+	/**
+	 * Adds user to the channel. The user is told about the join with JOIN_CHANNEL. If the channel was
+	 * removed before the join ran the user joins the channel that replaced it
 	 * @param user to join
-	 * @return Was the user added
 	 */
-	public synchronized boolean userJoin(User user) {
-		for (User u:this.joinedUsers) {
-			if (u.equals(user)) {
-				return false;
+	public void userJoin(User user) {
+		userJoin(user, -1);
+	}
+	
+	/**
+	 * Adds user to the channel and sends the user the kept messages after the given sequence number, followed by
+	 * CHANNEL_SEQUENCE with the sequence number of the latest message. If the channel was removed before the join
+	 * ran the user joins the channel that replaced it without the history
+	 * @param user to join
+	 * @param since Sequence number of the last message the user has seen on this channel, -1 to send no history
+	 */
+	public void userJoin(User user, long since) {
+		this.shard.execute(() -> {
+			addUser(user, since);
+			user.joinHandled(this);
+		});
+	}
+	
+	/**
+	 * Adds user to the channel on the shard
+	 * @param user to join
+	 * @param since Sequence number of the last message the user has seen, -1 to send no history
+	 */
+	private void addUser(User user, long since) {
+		if (this.removed) {
+			Channel replacement = this.manager.getChannel(this.channelName);
+			if (replacement != null && replacement != this) {
+				replacement.userJoin(user);
 			}
+			return;
 		}
+		if (!user.isAlive() || this.joinedUsers.contains(user)) {
+			return;
+		}
+		ChannelMembershipEvent event = new ChannelMembershipEvent();
+		event.begin();
 		this.joinedUsers.add(user);
-		for (User u : this.joinedUsers) {
-			u.sendMessage(channelID, ProtocolID.CLIENT_JOINED, user.getName() + " joined the channel");
-			u.sendListUsers(this);
+		this.roster.add(user.getName());
+		this.memberCount = this.joinedUsers.size();
+		this.userListFrame = null;
+		user.channelJoined(this);
+		if (since != -1) {
+			this.history.replay(since, user::send);
 		}
-		return true;
+		user.send(new Frame(this.channelID + ":" + this.history.getSequence(), ProtocolID.CHANNEL_SEQUENCE));
+		user.sendListUsers(this);
+		membershipChanged(user.getName(), true);
+		this.manager.getCluster().memberJoined(this, user);
+		commitMembershipEvent(event, user, "join");
 	}
 	
 	/**
-	 * Removes the user from the channel
-	 * @param user user to remove
-	 * @return Was the user removed
-	 */
-	public synchronized boolean userLeave(User user) {
-		boolean removed = false;
-		for (int i = 0; i < this.joinedUsers.size(); i++) {
-			if(this.joinedUsers.get(i).equals(user)) {
-				this.joinedUsers.remove(i);
-				removed = true;
+	 * Collects a join or leave on the shard. The members are notified of the collected changes when the batch window
+	 * closes, or right away if batching is disabled
+	 * @param nickname Nickname of the user who joined or left
+	 * @param joined True if the user joined, false if the user left
+	 */
+	private void membershipChanged(String nickname, boolean joined) {
+		if (joined) {
+			this.pendingJoinCount++;
+			if (this.pendingJoins.size() < MAX_BATCH_NAMES) {
+				this.pendingJoins.add(nickname);
+			}
+		} else {
+			this.pendingLeaveCount++;
+			if (this.pendingLeaves.size() < MAX_BATCH_NAMES) {
+				this.pendingLeaves.add(nickname);
+			}
+		}
+		if (this.batchMillis == 0) {
+			flushMembershipChanges();
+		} else if (!this.flushScheduled) {
+			this.flushScheduled = true;
+			this.manager.getTimeouts().getWheel().schedule(() -> this.shard.execute(this::flushMembershipChanges), this.batchMillis);
+		}
+	}
+	
+	/**
+	 * Sends the collected joins and leaves and the new user list to every member on the shard. A single change is sent
+	 * as a CLIENT_JOINED or CLIENT_LEFT line, several as one MEMBERSHIP_CHANGES frame. Clients that do not understand
+	 * MEMBERSHIP_CHANGES get one CLIENT_JOINED and one CLIENT_LEFT line that summarize the changes instead. Quiet
+	 * channels only get the list
+	 */
+	private void flushMembershipChanges() {
+		this.flushScheduled = false;
+		if (this.pendingJoinCount + this.pendingLeaveCount == 0) {
+			return;
+		}
+		Frame notification;
+		Frame[] fallback = null;
+		if (this.quietThreshold > 0 && this.roster.size() >= this.quietThreshold) {
+			notification = null;
+		} else if (this.pendingJoinCount + this.pendingLeaveCount == 1) {
+			notification = this.pendingJoinCount == 1
+					? new Frame(this.channelID + ":" + this.pendingJoins.get(0) + " joined the channel", ProtocolID.CLIENT_JOINED)
+					: new Frame(this.channelID + ":" + this.pendingLeaves.get(0) + " left the channel", ProtocolID.CLIENT_LEFT);
+		} else {
+			notification = new Frame(encodeMembershipChanges(), ProtocolID.MEMBERSHIP_CHANGES);
+			fallback = summarizeMembershipChanges();
+		}
+		this.pendingJoins.clear();
+		this.pendingLeaves.clear();
+		this.pendingJoinCount = 0;
+		this.pendingLeaveCount = 0;
+		notifyMembers(notification, fallback);
+	}
+	
+	/**
+	 * Encodes the collected joins and leaves. The nicknames that do not fit in one packet are only counted
+	 * @return CHANNEL_ID:JOINED:LEFT followed by +NICKNAME and -NICKNAME lines
+	 */
+	private String encodeMembershipChanges() {
+		StringBuilder changes = new StringBuilder();
+		changes.append(this.channelID).append(':').append(this.pendingJoinCount).append(':').append(this.pendingLeaveCount);
+		appendNames(changes, this.pendingJoins, '+');
+		appendNames(changes, this.pendingLeaves, '-');
+		return changes.toString();
+	}
+	
+	/**
+	 * Summarizes the collected joins and leaves for clients that do not understand MEMBERSHIP_CHANGES
+	 * @return CLIENT_JOINED and CLIENT_LEFT lines, e.g. 3 users joined the channel: alice, bob and 1 more
+	 */
+	private Frame[] summarizeMembershipChanges() {
+		List<Frame> lines = new ArrayList<>(2);
+		if (this.pendingJoinCount > 0) {
+			lines.add(new Frame(summarize(this.pendingJoinCount, this.pendingJoins, "joined"), ProtocolID.CLIENT_JOINED));
+		}
+		if (this.pendingLeaveCount > 0) {
+			lines.add(new Frame(summarize(this.pendingLeaveCount, this.pendingLeaves, "left"), ProtocolID.CLIENT_LEFT));
+		}
+		return lines.toArray(new Frame[0]);
+	}
+	
+	/**
+	 * Formats a line of collected joins or leaves. The nicknames that do not fit in one packet are only counted
+	 * @param count Number of users who joined or left
+	 * @param names Nicknames that were kept, at most count
+	 * @param action joined or left
+	 * @return CHANNEL_ID:LINE
+	 */
+	private String summarize(int count, List<String> names, String action) {
+		StringBuilder line = new StringBuilder();
+		line.append(this.channelID).append(':').append(count).append(count == 1 ? " user " : " users ").append(action).append(" the channel");
+		int listed = 0;
+		for (String name : names) {
+			// UTF-8 takes at most 3 bytes per char, room is left for the count of the rest
+			if ((line.length() + name.length() + 32) * 3 > Packet.MAX_SIZE) {
 				break;
 			}
+			line.append(listed == 0 ? ": " : ", ").append(name);
+			listed++;
 		}
-		for (User u : this.joinedUsers) {
-			u.sendMessage(channelID, ProtocolID.CLIENT_LEFT, user.getName() + " left the channel");
+		if (listed > 0 && count > listed) {
+			line.append(" and ").append(count - listed).append(" more");
+		}
+		return line.toString();
+	}
+	
+	/**
+	 * Appends nicknames on their own lines while they fit in one packet
+	 * @param changes The encoded changes
+	 * @param names Nicknames to append
+	 * @param marker + for joins and - for leaves
+	 */
+	private static void appendNames(StringBuilder changes, List<String> names, char marker) {
+		for (String name : names) {
+			// UTF-8 takes at most 3 bytes per char
+			if ((changes.length() + name.length() + 2) * 3 > Packet.MAX_SIZE) {
+				return;
+			}
+			changes.append('\n').append(marker).append(name);
+		}
+	}
+	
+	/**
+	 * Sends a membership notification and the new user list to every member on the shard
+	 * @param notification CLIENT_JOINED, CLIENT_LEFT or MEMBERSHIP_CHANGES frame, or null to send only the list
+	 * @param fallback Lines sent instead of a MEMBERSHIP_CHANGES frame to clients that do not understand it, or null
+	 */
+	private void notifyMembers(Frame notification, Frame[] fallback) {
+		// Built once here so the fan-out partitions only read the cached frame
+		getUserListFrame();
+		this.manager.getFanout().forEach(this.joinedUsers, u -> {
+			if (fallback != null && !u.acceptsMembershipChanges()) {
+				for (Frame line : fallback) {
+					u.send(line);
+				}
+			} else if (notification != null) {
+				u.send(notification);
+			}
 			u.sendListUsers(this);
+		});
+	}
+	
+	/**
+	 * Commits the Flight Recorder event of a membership change if it is being recorded
+	 * @param event Event that was started before the change
+	 * @param user User who joined or left
+	 * @param action join or leave
+	 */
+	private void commitMembershipEvent(ChannelMembershipEvent event, User user, String action) {
+		if (event.shouldCommit()) {
+			event.channelID = this.channelID;
+			event.channelName = this.channelName;
+			event.action = action;
+			event.user = user.getName();
+			event.members = this.joinedUsers.size();
+			event.commit();
 		}
+	}
+	
+	/**
+	 * Removes the user from the channel. A connected user is told about the leave with LEAVE_CHANNEL
+	 * @param user user to remove
+	 */
+	public void userLeave(User user) {
+		this.shard.execute(() -> removeUser(user));
+	}
+	
+	/**
+	 * Removes the user from the channel on the shard. The channel is removed when its last user leaves
+	 * @param user user to remove
+	 */
+	private void removeUser(User user) {
+		ChannelMembershipEvent event = new ChannelMembershipEvent();
+		event.begin();
+		if (!this.joinedUsers.remove(user)) {
+			return;
+		}
+		this.roster.remove(user.getName());
+		this.memberCount = this.joinedUsers.size();
+		this.userListFrame = null;
+		user.channelLeft(this);
+		membershipChanged(user.getName(), false);
+		this.manager.getCluster().memberLeft(this, user);
+		commitMembershipEvent(event, user, "leave");
 		if (this.joinedUsers.isEmpty()) {
-			this.manager.removeChannel(this);
+			this.removed = this.manager.removeChannel(this);
 		}
-		return removed;
 	}
 	
 	/**
@@ -122,9 +464,115 @@ public class Channel {
 	 * @param fromUser The user who sent the message
 	 * @param message The sent message
 	 */
-	public synchronized void broadcastMessage(User fromUser, String message) {
-		for (User u : this.joinedUsers) {
-			u.sendMessage(this.channelID, fromUser.getName(), ProtocolID.CHANNEL_BROADCAST, message);
+	public void broadcastMessage(User fromUser, String message) {
+		broadcastMessage(fromUser, message, 0);
+	}
+	
+	/**
+	 * Broadcasts a message to the connected clients. The message is encoded once and the same frame is queued to every member,
+	 * in parallel partitions for very large channels.
+	 * If the message is sampled for tracing the latency of every copy is recorded when it has been written
+	 * @param fromUser The user who sent the message
+	 * @param message The sent message
+	 * @param receiveTime System.nanoTime() when the message was received, 0 if unknown
+	 */
+	public void broadcastMessage(User fromUser, String message, long receiveTime) {
+		this.shard.execute(() -> deliverBroadcast(fromUser, message, receiveTime));
+	}
+	
+	/**
+	 * Queues the message to every member on the shard. A message that would not fit in one packet on any node of the
+	 * cluster is dropped, since the receivers do not join split packets
+	 * @param fromUser The user who sent the message
+	 * @param message The sent message
+	 * @param receiveTime System.nanoTime() when the message was received, 0 if unknown
+	 */
+	private void deliverBroadcast(User fromUser, String message, long receiveTime) {
+		byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		// Checked against the longest prefix, so every node relays the message with the same result
+		if (this.relayPrefixSize + fromUser.getNameBytes().length + 1 + text.length > Packet.MAX_SIZE) {
+			this.manager.getMetrics().messageTooLong();
+			return;
+		}
+		ChannelBroadcastEvent event = new ChannelBroadcastEvent();
+		event.begin();
+		this.manager.getMetrics().broadcast(this.joinedUsers.size());
+		byte[] data = encodeMessage(fromUser.getNameBytes(), text);
+		this.manager.getHeavyHitters().channelBroadcast(this, fromUser, data.length, this.joinedUsers.size());
+		Frame untraced = new Frame(data, ProtocolID.CHANNEL_BROADCAST);
+		this.history.add(untraced);
+		touch(fromUser.getName());
+		if (this.trace == null || receiveTime == 0 || !this.manager.getTracer().sample()) {
+			this.manager.getFanout().forEach(this.joinedUsers, u -> u.send(untraced));
+		} else {
+			Frame frame = new Frame(data, ProtocolID.CHANNEL_BROADCAST, Header.FLAG_TRACE);
+			this.manager.getFanout().forEach(this.joinedUsers, u -> u.sendTraced(frame, receiveTime, this.trace, this.channelID));
+		}
+		this.manager.getCluster().forwardBroadcast(this, fromUser.getName(), message);
+		if (event.shouldCommit()) {
+			event.channelID = this.channelID;
+			event.channelName = this.channelName;
+			event.members = this.joinedUsers.size();
+			event.messageSize = message.length();
+			event.sender = fromUser.getName();
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Encodes a channel message as CHANNEL_ID:NICKNAME:MESSAGE from the encoded prefix and nickname
+	 * @param nickname Nickname of the sender in UTF-8
+	 * @param text The sent message in UTF-8
+	 * @return Payload of the CHANNEL_BROADCAST frame
+	 */
+	private byte[] encodeMessage(byte[] nickname, byte[] text) {
+		byte[] data = new byte[this.messagePrefix.length + nickname.length + 1 + text.length];
+		System.arraycopy(this.messagePrefix, 0, data, 0, this.messagePrefix.length);
+		System.arraycopy(nickname, 0, data, this.messagePrefix.length, nickname.length);
+		data[this.messagePrefix.length + nickname.length] = ':';
+		System.arraycopy(text, 0, data, this.messagePrefix.length + nickname.length + 1, text.length);
+		return data;
+	}
+	
+	/**
+	 * Delivers a message that was sent to the channel on another cluster node to the members on this node
+	 * @param sender Nickname of the sender
+	 * @param message The sent message
+	 */
+	public void deliverRemoteBroadcast(String sender, String message) {
+		Frame frame = new Frame(this.channelID + ":" + sender + ":" + message, ProtocolID.CHANNEL_BROADCAST);
+		this.shard.execute(() -> {
+			this.history.add(frame);
+			touch(sender);
+			this.manager.getFanout().forEach(this.joinedUsers, u -> u.send(frame));
+		});
+	}
+	
+	/**
+	 * Notifies the members on this node that a user of another cluster node joined or left the channel
+	 * @param nickname Nickname of the user
+	 * @param joined True if the user joined, false if the user left
+	 */
+	public void remoteMembershipChanged(String nickname, boolean joined) {
+		this.shard.execute(() -> {
+			if (joined) {
+				this.roster.add(nickname);
+			} else {
+				this.roster.remove(nickname);
+			}
+			this.userListFrame = null;
+			membershipChanged(nickname, joined);
+		});
+	}
+	
+	/**
+	 * Moves the sender of a message to the front of the recently active members. The presence frame of a large
+	 * channel is rebuilt the next time it is sent, a small channel is not affected
+	 * @param nickname Nickname of the sender
+	 */
+	private void touch(String nickname) {
+		if (this.roster.touch(nickname) && isLarge()) {
+			this.userListFrame = null;
 		}
 	}
 	
@@ -0,0 +1,36 @@
+package Server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a message broadcast to the members of a channel. The duration covers the whole fan-out
+ * @author etsubu
+ *
+ */
+@Name("javachat.ChannelBroadcast")
+@Label("Channel Broadcast")
+@Category({"JavaChat", "Channel"})
+@Description("Message broadcast to the members of a channel")
+@StackTrace(false)
+public class ChannelBroadcastEvent extends jdk.jfr.Event {
+	@Label("Channel ID")
+	public int channelID;
+
+	@Label("Channel Name")
+	public String channelName;
+
+	@Label("Members")
+	public int members;
+
+	@Label("Message Size")
+	@DataAmount
+	public int messageSize;
+
+	@Label("Sender")
+	public String sender;
+}
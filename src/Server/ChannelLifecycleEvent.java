@@ -0,0 +1,29 @@
+package Server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for a channel being created or removed. The duration covers updating the registry and notifying the users
+ * @author etsubu
+ *
+ */
+@Name("javachat.ChannelLifecycle")
+@Label("Channel Lifecycle")
+@Category({"JavaChat", "Channel"})
+@Description("Channel created or removed")
+public class ChannelLifecycleEvent extends jdk.jfr.Event {
+	@Label("Channel ID")
+	public int channelID;
+
+	@Label("Channel Name")
+	public String channelName;
+
+	@Label("Action")
+	public String action;
+
+	@Label("Success")
+	public boolean success;
+}
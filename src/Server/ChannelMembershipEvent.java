@@ -0,0 +1,33 @@
+package Server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for a user joining or leaving a channel. The duration covers notifying the other members
+ * @author etsubu
+ *
+ */
+@Name("javachat.ChannelMembership")
+@Label("Channel Membership")
+@Category({"JavaChat", "Channel"})
+@Description("User joined or left a channel")
+public class ChannelMembershipEvent extends jdk.jfr.Event {
+	@Label("Channel ID")
+	public int channelID;
+
+	@Label("Channel Name")
+	public String channelName;
+
+	@Label("Action")
+	public String action;
+
+	@Label("User")
+	public String user;
+
+	@Label("Members")
+	@Description("Number of members after the change")
+	public int members;
+}
@@ -0,0 +1,133 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import ProtocolSocket.Packet;
+
+/**
+ * Members of a channel on every cluster node sorted by their nickname, and the members who joined or spoke most
+ * recently. Large channels send their members a count and the recent members instead of the whole list, and the
+ * sorted members are fetched a page at a time. Only used on the shard of the channel
+ * @author etsubu
+ *
+ */
+class ChannelRoster {
+	/**
+	 * UTF-8 takes at most 3 bytes per char of a nickname, which bounds the size of a packet without encoding it
+	 */
+	private static final int MAX_BYTES_PER_CHAR = 3;
+	private final TreeMap<String, String> members;
+	private final LinkedHashSet<String> recent;
+	private final int recentSize;
+
+	/**
+	 * Initializes an empty roster
+	 * @param recentSize Number of recently active members kept
+	 */
+	ChannelRoster(int recentSize) {
+		this.members = new TreeMap<>();
+		this.recent = new LinkedHashSet<>();
+		this.recentSize = Math.max(0, recentSize);
+	}
+
+	/**
+	 * Adds a member, who also becomes the most recently active one
+	 * @param nickname Nickname of the member
+	 */
+	void add(String nickname) {
+		this.members.put(nickname.toLowerCase(), nickname);
+		touch(nickname);
+	}
+
+	/**
+	 * Removes a member
+	 * @param nickname Nickname of the member
+	 */
+	void remove(String nickname) {
+		this.members.remove(nickname.toLowerCase());
+		this.recent.remove(nickname);
+	}
+
+	/**
+	 * Marks a member as the most recently active one
+	 * @param nickname Nickname of the member
+	 * @return True if the list of recent members changed
+	 */
+	boolean touch(String nickname) {
+		if(this.recentSize == 0) {
+			return false;
+		}
+		if(!this.recent.add(nickname)) {
+			this.recent.remove(nickname);
+			this.recent.add(nickname);
+		}
+		if(this.recent.size() > this.recentSize) {
+			this.recent.remove(this.recent.iterator().next());
+		}
+		return true;
+	}
+
+	/**
+	 * Getter for the number of members
+	 * @return Number of members on every node
+	 */
+	int size() {
+		return this.members.size();
+	}
+
+	/**
+	 * Builds the payload of the USER_PRESENCE packet
+	 * @param channelID ID of the channel
+	 * @return CHANNEL_ID:COUNT followed by the recent members, the most recent first
+	 */
+	String presence(int channelID) {
+		StringBuilder presence = new StringBuilder();
+		presence.append(channelID).append(':').append(this.members.size());
+		List<String> names = new ArrayList<>(this.recent);
+		for(int i = names.size() - 1; i >= 0; i--) {
+			String name = names.get(i);
+			if((presence.length() + name.length() + 1) * MAX_BYTES_PER_CHAR > Packet.MAX_SIZE) {
+				break;
+			}
+			presence.append('\n').append(name);
+		}
+		return presence.toString();
+	}
+
+	/**
+	 * Builds the payload of a USER_PAGE packet
+	 * @param channelID ID of the channel
+	 * @param prefix Only nicknames that start with the prefix are listed, case insensitive
+	 * @param after The page starts after this nickname, empty for the first page
+	 * @param pageSize Maximum number of nicknames on the page
+	 * @return CHANNEL_ID:PREFIX:AFTER:MORE followed by the nicknames, where MORE is 1 if there are more nicknames
+	 */
+	String page(int channelID, String prefix, String after, int pageSize) {
+		String lowerPrefix = prefix.toLowerCase();
+		String lowerAfter = after.toLowerCase();
+		NavigableMap<String, String> tail = lowerAfter.compareTo(lowerPrefix) < 0
+				? this.members.tailMap(lowerPrefix, true)
+				: this.members.tailMap(lowerAfter, false);
+		StringBuilder names = new StringBuilder();
+		int header = (Integer.toString(channelID).length() + prefix.length() + after.length() + 5) * MAX_BYTES_PER_CHAR;
+		int count = 0;
+		boolean more = false;
+		for(Map.Entry<String, String> entry : tail.entrySet()) {
+			if(!entry.getKey().startsWith(lowerPrefix)) {
+				break;
+			}
+			if(count == pageSize || header + (names.length() + entry.getValue().length() + 1) * MAX_BYTES_PER_CHAR > Packet.MAX_SIZE) {
+				more = true;
+				break;
+			}
+			names.append('\n').append(entry.getValue());
+			count++;
+		}
+		return channelID + ":" + prefix + ":" + after + ":" + (more ? 1 : 0) + names;
+	}
+}
@@ -0,0 +1,91 @@
+package Server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Channels a user has joined, keyed by their ID. A user is on a handful of channels, so the channels are kept in a
+ * copy-on-write array instead of a hash map: an idle connection holds a single small array. Changes come from the
+ * shards of the channels and are synchronized, lookups from the reader thread of the user need no lock
+ * @author etsubu
+ *
+ */
+final class ChannelSet {
+	private static final Channel[] EMPTY = new Channel[0];
+	private volatile Channel[] channels;
+
+	/**
+	 * Initializes an empty set
+	 */
+	ChannelSet() {
+		this.channels = EMPTY;
+	}
+
+	/**
+	 * Finds a channel by its ID
+	 * @param channelID ID of the channel
+	 * @return The channel or null if it is not in the set
+	 */
+	Channel get(int channelID) {
+		for(Channel channel : this.channels) {
+			if(channel.getID() == channelID) {
+				return channel;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks if a channel with the ID is in the set
+	 * @param channelID ID of the channel
+	 * @return True if the channel is in the set
+	 */
+	boolean contains(int channelID) {
+		return get(channelID) != null;
+	}
+
+	/**
+	 * Adds a channel, replacing a channel with the same ID
+	 * @param channel The channel
+	 */
+	synchronized void put(Channel channel) {
+		Channel[] current = this.channels;
+		for(int i = 0; i < current.length; i++) {
+			if(current[i].getID() == channel.getID()) {
+				Channel[] replaced = current.clone();
+				replaced[i] = channel;
+				this.channels = replaced;
+				return;
+			}
+		}
+		Channel[] added = Arrays.copyOf(current, current.length + 1);
+		added[current.length] = channel;
+		this.channels = added;
+	}
+
+	/**
+	 * Removes a channel if it is still the one in the set with its ID
+	 * @param channel The channel
+	 */
+	synchronized void remove(Channel channel) {
+		Channel[] current = this.channels;
+		for(int i = 0; i < current.length; i++) {
+			if(current[i] == channel) {
+				Channel[] removed = current.length == 1 ? EMPTY : new Channel[current.length - 1];
+				System.arraycopy(current, 0, removed, 0, i);
+				System.arraycopy(current, i + 1, removed, i, current.length - i - 1);
+				this.channels = removed;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Getter for the channels in the set
+	 * @return Snapshot of the channels that does not change
+	 */
+	Collection<Channel> values() {
+		return Collections.unmodifiableList(Arrays.asList(this.channels));
+	}
+}
@@ -0,0 +1,62 @@
+package Server;
+
+import Metrics.LogLinearHistogram;
+import Metrics.MetricsRegistry;
+
+/**
+ * Per channel latency histograms of the traced messages
+ * @author etsubu
+ *
+ */
+public class ChannelTrace {
+	private static final String HELP = "Latency of traced channel messages per stage";
+	private final String channelLabel;
+	private final LogLinearHistogram receiveToEnqueue;
+	private final LogLinearHistogram enqueueToWrite;
+	private final LogLinearHistogram receiveToWrite;
+
+	/**
+	 * Initializes the histograms
+	 * @param channelName Name of the channel
+	 */
+	public ChannelTrace(String channelName) {
+		this.channelLabel = "channel=\"" + MetricsRegistry.escapeLabel(channelName) + "\"";
+		this.receiveToEnqueue = LogLinearHistogram.latencyNanos();
+		this.enqueueToWrite = LogLinearHistogram.latencyNanos();
+		this.receiveToWrite = LogLinearHistogram.latencyNanos();
+	}
+
+	/**
+	 * Registers the histograms
+	 * @param registry Registry to register to
+	 * @param name Name of the metric family
+	 */
+	void register(MetricsRegistry registry, String name) {
+		registry.register(name, HELP, this.channelLabel + ",stage=\"receive_to_enqueue\"", this.receiveToEnqueue);
+		registry.register(name, HELP, this.channelLabel + ",stage=\"enqueue_to_write\"", this.enqueueToWrite);
+		registry.register(name, HELP, this.channelLabel + ",stage=\"receive_to_write\"", this.receiveToWrite);
+	}
+
+	/**
+	 * Unregisters the histograms
+	 * @param registry Registry to unregister from
+	 * @param name Name of the metric family
+	 */
+	void unregister(MetricsRegistry registry, String name) {
+		registry.unregister(name, this.channelLabel + ",stage=\"receive_to_enqueue\"");
+		registry.unregister(name, this.channelLabel + ",stage=\"enqueue_to_write\"");
+		registry.unregister(name, this.channelLabel + ",stage=\"receive_to_write\"");
+	}
+
+	/**
+	 * Records the stamps of a single delivered copy of a traced message
+	 * @param received System.nanoTime() when the message was received from the sender
+	 * @param enqueued System.nanoTime() when the copy was handed to the recipient
+	 * @param written System.nanoTime() when the write to the recipient completed
+	 */
+	public void record(long received, long enqueued, long written) {
+		this.receiveToEnqueue.record(enqueued - received);
+		this.enqueueToWrite.record(written - enqueued);
+		this.receiveToWrite.record(written - received);
+	}
+}
@@ -0,0 +1,57 @@
+package Server;
+
+/**
+ * Packet types of the node-to-node cluster link. Like ProtocolID the ordinals are the type values on the wire
+ * so new types must only be added at the end. Payloads are UTF-8 text with the fields separated by colons
+ * @author etsubu
+ *
+ */
+public enum ClusterID {
+	/**
+	 * NODE_ID, first packet sent by both ends of a link
+	 */
+	HELLO,
+	/**
+	 * REQUEST_ID:NICKNAME, reserves a nickname for the sending node
+	 */
+	CLAIM,
+	/**
+	 * REQUEST_ID:1 if the claim was accepted or REQUEST_ID:0 if the nickname is taken
+	 */
+	CLAIM_RESULT,
+	/**
+	 * NICKNAME, a user of the sending node
+	 */
+	USER_ADD,
+	/**
+	 * NICKNAME, a user of the sending node disconnected or its claim was cancelled
+	 */
+	USER_REMOVE,
+	/**
+	 * CHANNEL_NAME:NICKNAME, a user of the sending node joined the channel
+	 */
+	JOIN,
+	/**
+	 * CHANNEL_NAME:NICKNAME, a user of the sending node left the channel
+	 */
+	LEAVE,
+	/**
+	 * CHANNEL_NAME:NICKNAME:MESSAGE, a message to the members of the channel on the receiving node
+	 */
+	BROADCAST,
+	/**
+	 * FROM:TO:MESSAGE, a private message to a user of the receiving node
+	 */
+	PRIVATE_MESSAGE;
+	
+	private static final ClusterID[] VALUES = values();
+	
+	/**
+	 * Maps a type ID of a packet to the ClusterID
+	 * @param type Type ID of the packet
+	 * @return The ClusterID or null if there is no such ID
+	 */
+	public static ClusterID of(int type) {
+		return (type >= 0 && type < VALUES.length) ? VALUES[type] : null;
+	}
+}
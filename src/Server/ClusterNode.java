@@ -0,0 +1,685 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Metrics.Counter;
+import Metrics.Gauge;
+import Metrics.MetricsRegistry;
+import ProtocolSocket.Frame;
+import ProtocolSocket.ProtocolID;
+import ProtocolSocket.ProtocolSocket;
+
+/**
+ * Joins the server to a cluster of server processes. Every node keeps a link to every other node, listens for the
+ * links on cluster.port and dials the nodes listed in cluster.peers. Channels are shared by name: a node knows which
+ * users of the other nodes are on each channel and forwards a channel message once to every node that has members
+ * on the channel, which then delivers it to its own members. Nicknames are reserved from every connected node before
+ * they are taken into use, so they stay unique across the cluster. Links carry no authentication and should only be
+ * bound to a trusted network
+ * @author etsubu
+ *
+ */
+public class ClusterNode {
+	/**
+	 * Nickname reservation waiting for the answers of the other nodes
+	 */
+	private static class Claim {
+		private final Set<String> waiting;
+		private boolean rejected;
+
+		private Claim(Set<String> waiting) {
+			this.waiting = waiting;
+		}
+
+		/**
+		 * Records the answer of a node
+		 * @param node ID of the node
+		 * @param accepted True if the node accepted the claim
+		 */
+		private synchronized void resolve(String node, boolean accepted) {
+			if(this.waiting.remove(node)) {
+				this.rejected |= !accepted;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Waits for the answers of the nodes
+		 * @param timeoutMillis Maximum time to wait
+		 * @return True if every node accepted the claim in time
+		 */
+		private synchronized boolean await(long timeoutMillis) {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while(!this.rejected && !this.waiting.isEmpty()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0) {
+					return false;
+				}
+				try {
+					wait(remaining);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return !this.rejected;
+		}
+	}
+
+	private final ServerManager manager;
+	private final String nodeID;
+	private final String bindAddress;
+	private final int port;
+	private final List<InetSocketAddress> peers;
+	private final long reconnectMillis;
+	private final long claimTimeoutMillis;
+	private final int linkQueueSize;
+	private final Map<String, PeerLink> links;
+	private final Map<Integer, Claim> claims;
+	private final AtomicInteger claimIndex;
+	private final Map<String, Boolean> localNicknames;
+	private final Map<String, Set<String>> remoteUsers;
+	private final Map<String, Map<String, Set<String>>> remoteMembers;
+	private final Map<String, String> remoteChannelNames;
+	private final Gauge peerCount;
+	private final Counter forwarded;
+	private final Counter tooLong;
+	private volatile boolean open;
+	private ServerSocket server;
+
+	/**
+	 * Initializes the node. Nothing is opened before start()
+	 * @param manager The ServerManager of this node
+	 * @param config Configuration of the server
+	 * @param registry Registry where the cluster metrics are registered
+	 */
+	public ClusterNode(ServerManager manager, ServerConfig config, MetricsRegistry registry) {
+		this.manager = manager;
+		this.bindAddress = config.getString("cluster.bindAddress", "127.0.0.1");
+		this.port = config.getInt("cluster.port", 0);
+		this.nodeID = config.getString("cluster.nodeId", this.port > 0 ? this.bindAddress + ":" + this.port : UUID.randomUUID().toString());
+		this.peers = new ArrayList<>();
+		for(String peer : config.getString("cluster.peers", "").split(",")) {
+			int index = peer.lastIndexOf(':');
+			if(index > 0) {
+				try {
+					this.peers.add(InetSocketAddress.createUnresolved(peer.substring(0, index).trim(), Integer.parseInt(peer.substring(index + 1).trim())));
+				} catch(NumberFormatException e) {
+					System.out.println("Invalid cluster peer " + peer);
+				}
+			}
+		}
+		this.reconnectMillis = Math.max(100, config.getLong("cluster.reconnectMillis", 2000));
+		this.claimTimeoutMillis = Math.max(100, config.getLong("cluster.claimTimeoutMillis", 2000));
+		this.linkQueueSize = config.getInt("cluster.linkQueueSize", 65536);
+		this.links = new ConcurrentHashMap<>();
+		this.claims = new ConcurrentHashMap<>();
+		this.claimIndex = new AtomicInteger();
+		this.localNicknames = new HashMap<>();
+		this.remoteUsers = new HashMap<>();
+		this.remoteMembers = new HashMap<>();
+		this.remoteChannelNames = new HashMap<>();
+		this.peerCount = registry.register("javachat_cluster_peers", "Nodes connected to this node", new Gauge());
+		this.forwarded = registry.register("javachat_cluster_forwarded_total", "Channel and private messages forwarded to other nodes", new Counter());
+		this.tooLong = registry.register("javachat_cluster_too_long_total", "Messages not forwarded because they do not fit in one cluster packet", new Counter());
+	}
+
+	/**
+	 * Getter for the ID of this node
+	 * @return Unique ID of the node in the cluster
+	 */
+	public String getNodeID() {
+		return this.nodeID;
+	}
+
+	/**
+	 * Checks if the node is configured to be part of a cluster
+	 * @return True if cluster.port or cluster.peers is set
+	 */
+	public boolean isEnabled() {
+		return this.port > 0 || !this.peers.isEmpty();
+	}
+
+	/**
+	 * Starts listening for the links of the other nodes and dialing the configured peers
+	 * @throws IOException If cluster.port could not be opened
+	 */
+	public void start() throws IOException {
+		if(!isEnabled() || this.open) {
+			return;
+		}
+		this.open = true;
+		if(this.port > 0) {
+			this.server = new ServerSocket(this.port, 50, InetAddress.getByName(this.bindAddress));
+			startThread(this::acceptLoop, "cluster-acceptor");
+		}
+		for(InetSocketAddress peer : this.peers) {
+			startThread(() -> dialLoop(peer), "cluster-dialer");
+		}
+		System.out.println("Cluster node " + this.nodeID + " started");
+	}
+
+	private static void startThread(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Accepts the links of the other nodes
+	 */
+	private void acceptLoop() {
+		while(this.open) {
+			try {
+				Socket socket = this.server.accept();
+				socket.setTcpNoDelay(true);
+				new PeerLink(this, new ProtocolSocket(socket), false, this.linkQueueSize).start(this.nodeID);
+			} catch(IOException e) {
+				//
+			}
+		}
+	}
+
+	/**
+	 * Keeps a link open to the given peer
+	 * @param peer Address of the peer's cluster port
+	 */
+	private void dialLoop(InetSocketAddress peer) {
+		PeerLink link = null;
+		String peerID = null;
+		while(this.open) {
+			if(link != null && link.getRemoteID() != null) {
+				peerID = link.getRemoteID();
+			}
+			// The peer may have dialed us first, in which case its link is kept
+			boolean connected = (link != null && link.isOpen()) || (peerID != null && this.links.containsKey(peerID));
+			if(!connected) {
+				try {
+					Socket socket = new Socket();
+					socket.connect(new InetSocketAddress(peer.getHostString(), peer.getPort()), (int) this.reconnectMillis);
+					socket.setTcpNoDelay(true);
+					link = new PeerLink(this, new ProtocolSocket(socket), true, this.linkQueueSize);
+					link.start(this.nodeID);
+				} catch(IOException e) {
+					link = null;
+				}
+			}
+			try {
+				Thread.sleep(this.reconnectMillis);
+			} catch(InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Closes the links and stops listening
+	 */
+	public void stop() {
+		this.open = false;
+		if(this.server != null) {
+			try {
+				this.server.close();
+			} catch(IOException e) {
+				//
+			}
+		}
+		for(PeerLink link : this.links.values()) {
+			link.close();
+		}
+	}
+
+	/**
+	 * Gets the ID of the node that opened the link
+	 * @param link The link
+	 * @return Node ID of the dialing end
+	 */
+	private String dialerOf(PeerLink link) {
+		return link.isDialed() ? this.nodeID : link.getRemoteID();
+	}
+
+	/**
+	 * Called when the HELLO of a peer has been received. If both nodes dialed each other the link opened
+	 * by the node with the lower ID is kept on both ends. The peer is sent the users and memberships of this node
+	 * @param link The link whose peer introduced itself
+	 * @return False if the link is not needed and should be closed
+	 */
+	boolean linkUp(PeerLink link) {
+		String id = link.getRemoteID();
+		if(id.equals(this.nodeID)) {
+			return false;
+		}
+		PeerLink previous;
+		synchronized(this) {
+			previous = this.links.get(id);
+			if(previous != null && previous.isOpen() && dialerOf(previous).compareTo(dialerOf(link)) < 0) {
+				return false;
+			}
+			this.links.put(id, link);
+		}
+		if(previous == null) {
+			this.peerCount.inc();
+		} else {
+			// The peer sends its whole state again over the new link
+			previous.close();
+			dropNode(id);
+		}
+		System.out.println("Cluster node " + id + " connected");
+		for(User user : this.manager.getUsers()) {
+			if(user.getName() != null) {
+				link.send(ClusterID.USER_ADD, user.getName());
+			}
+		}
+		for(Channel channel : this.manager.getChannels()) {
+			channel.execute(() -> {
+				for(User user : channel.getJoinedUsers()) {
+					link.send(ClusterID.JOIN, channel.getName() + ":" + user.getName());
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * Called when a link is closed. If it was the active link of its peer the users of the peer are removed
+	 * @param link The closed link
+	 */
+	void linkDown(PeerLink link) {
+		String id = link.getRemoteID();
+		if(id == null || !this.links.remove(id, link)) {
+			return;
+		}
+		this.peerCount.dec();
+		System.out.println("Cluster node " + id + " disconnected");
+		dropNode(id);
+	}
+
+	/**
+	 * Forgets the users and memberships of a node and notifies the local members of the affected channels
+	 * @param id ID of the node
+	 */
+	private void dropNode(String id) {
+		List<String[]> left = new ArrayList<>();
+		boolean listChanged = false;
+		synchronized(this) {
+			this.remoteUsers.remove(id);
+			for(String key : new ArrayList<>(this.remoteMembers.keySet())) {
+				Map<String, Set<String>> nodes = this.remoteMembers.get(key);
+				Set<String> members = nodes.remove(id);
+				if(members == null) {
+					continue;
+				}
+				for(String nickname : members) {
+					left.add(new String[] {this.remoteChannelNames.get(key), nickname});
+				}
+				if(nodes.isEmpty()) {
+					this.remoteMembers.remove(key);
+					this.remoteChannelNames.remove(key);
+					listChanged = true;
+				}
+			}
+		}
+		// The node can no longer hold the nicknames it was asked about
+		for(Claim claim : this.claims.values()) {
+			claim.resolve(id, true);
+		}
+		for(String[] membership : left) {
+			Channel channel = this.manager.findChannel(membership[0]);
+			if(channel != null) {
+				channel.remoteMembershipChanged(membership[1], false);
+			}
+		}
+		if(listChanged) {
+			this.manager.channelListChanged();
+		}
+	}
+
+	/**
+	 * Queues a packet to every connected node
+	 * @param type Type of the packet
+	 * @param data Payload of the packet
+	 */
+	private void sendAll(ClusterID type, String data) {
+		Frame frame = PeerLink.encode(type, data);
+		for(PeerLink link : this.links.values()) {
+			link.send(frame);
+		}
+	}
+
+	/**
+	 * Checks if another node than the given one holds the nickname. Must be called while synchronized
+	 * @param lower Lower case nickname
+	 * @param except ID of the node to skip or null
+	 * @return True if the nickname is held by another node
+	 */
+	private boolean isRemoteNickname(String lower, String except) {
+		for(Map.Entry<String, Set<String>> entry : this.remoteUsers.entrySet()) {
+			if(!entry.getKey().equals(except) && entry.getValue().contains(lower)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reserves a nickname for a user of this node. Every connected node has to accept the reservation.
+	 * If two nodes claim the same nickname at the same time the node with the lower ID wins
+	 * @param nickname The nickname to reserve
+	 * @return True if the nickname was reserved, false if it is in use anywhere in the cluster
+	 */
+	public boolean claimNickname(String nickname) {
+		String lower = nickname.toLowerCase();
+		synchronized(this) {
+			if(this.localNicknames.containsKey(lower) || isRemoteNickname(lower, null)) {
+				return false;
+			}
+			this.localNicknames.put(lower, false);
+		}
+		boolean accepted = true;
+		Set<String> nodes = new HashSet<>(this.links.keySet());
+		if(!nodes.isEmpty()) {
+			int id = this.claimIndex.incrementAndGet();
+			Claim claim = new Claim(nodes);
+			this.claims.put(id, claim);
+			Frame frame = PeerLink.encode(ClusterID.CLAIM, id + ":" + nickname);
+			for(String node : new ArrayList<>(nodes)) {
+				PeerLink link = this.links.get(node);
+				if(link == null || !link.send(frame)) {
+					claim.resolve(node, true);
+				}
+			}
+			accepted = claim.await(this.claimTimeoutMillis);
+			this.claims.remove(id);
+		}
+		synchronized(this) {
+			if(accepted) {
+				this.localNicknames.put(lower, true);
+			} else {
+				this.localNicknames.remove(lower);
+			}
+		}
+		// Nodes that connected during the claim learn about the user, the others release their reservation
+		sendAll(accepted ? ClusterID.USER_ADD : ClusterID.USER_REMOVE, nickname);
+		return accepted;
+	}
+
+	/**
+	 * Called when a user of this node disconnects
+	 * @param user The user who disconnected
+	 */
+	public void userRemoved(User user) {
+		String nickname = user.getName();
+		if(nickname == null) {
+			return;
+		}
+		synchronized(this) {
+			if(!Boolean.TRUE.equals(this.localNicknames.get(nickname.toLowerCase()))) {
+				return;
+			}
+			this.localNicknames.remove(nickname.toLowerCase());
+		}
+		sendAll(ClusterID.USER_REMOVE, nickname);
+	}
+
+	/**
+	 * Called when a user of this node joins a channel
+	 * @param channel The channel
+	 * @param user The user who joined
+	 */
+	public void memberJoined(Channel channel, User user) {
+		if(!this.links.isEmpty()) {
+			sendAll(ClusterID.JOIN, channel.getName() + ":" + user.getName());
+		}
+	}
+
+	/**
+	 * Called when a user of this node leaves a channel
+	 * @param channel The channel
+	 * @param user The user who left
+	 */
+	public void memberLeft(Channel channel, User user) {
+		if(!this.links.isEmpty()) {
+			sendAll(ClusterID.LEAVE, channel.getName() + ":" + user.getName());
+		}
+	}
+
+	/**
+	 * Forwards a channel message to the nodes that have members on the channel, once per node
+	 * @param channel The channel
+	 * @param sender Nickname of the sender
+	 * @param message The message
+	 */
+	public void forwardBroadcast(Channel channel, String sender, String message) {
+		List<String> nodes;
+		synchronized(this) {
+			Map<String, Set<String>> members = this.remoteMembers.get(channel.getName().toLowerCase());
+			if(members == null) {
+				return;
+			}
+			nodes = new ArrayList<>(members.keySet());
+		}
+		Frame frame = PeerLink.encode(ClusterID.BROADCAST, channel.getName() + ":" + sender + ":" + message);
+		if(frame == null) {
+			// Channel drops these before the local fan-out, a message seen here would only reach this node
+			this.tooLong.inc();
+			System.out.println("Message of " + sender + " on " + channel.getName() + " is too long to forward");
+			return;
+		}
+		for(String node : nodes) {
+			PeerLink link = this.links.get(node);
+			if(link != null && link.send(frame)) {
+				this.forwarded.inc();
+			}
+		}
+	}
+
+	/**
+	 * Forwards a private message to the node of the recipient
+	 * @param from Nickname of the sender
+	 * @param to Nickname of the recipient
+	 * @param message The message
+	 * @return True if the recipient is a user of another node and the message was forwarded
+	 */
+	public boolean forwardPrivateMessage(String from, String to, String message) {
+		String lower = to.toLowerCase();
+		String node = null;
+		synchronized(this) {
+			for(Map.Entry<String, Set<String>> entry : this.remoteUsers.entrySet()) {
+				if(entry.getValue().contains(lower)) {
+					node = entry.getKey();
+					break;
+				}
+			}
+		}
+		PeerLink link = node == null ? null : this.links.get(node);
+		Frame frame = link == null ? null : PeerLink.encode(ClusterID.PRIVATE_MESSAGE, from + ":" + to + ":" + message);
+		if(link != null && frame == null) {
+			this.tooLong.inc();
+			System.out.println("Private message of " + from + " is too long to forward");
+		}
+		if(frame == null || !link.send(frame)) {
+			return false;
+		}
+		this.forwarded.inc();
+		return true;
+	}
+
+	/**
+	 * Getter for the members of a channel on the other nodes
+	 * @param channelName Name of the channel
+	 * @return Nicknames of the remote members
+	 */
+	public synchronized List<String> getRemoteMembers(String channelName) {
+		List<String> names = new ArrayList<>();
+		Map<String, Set<String>> nodes = this.remoteMembers.get(channelName.toLowerCase());
+		if(nodes != null) {
+			for(Set<String> members : nodes.values()) {
+				names.addAll(members);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Getter for the channels that have members on the other nodes
+	 * @return Names of the channels
+	 */
+	public synchronized List<String> getRemoteChannelNames() {
+		return new ArrayList<>(this.remoteChannelNames.values());
+	}
+
+	/**
+	 * Handles a packet received from a peer
+	 * @param link Link the packet arrived from
+	 * @param type Type of the packet
+	 * @param data Payload of the packet
+	 */
+	void handle(PeerLink link, ClusterID type, String data) {
+		String from = link.getRemoteID();
+		int index = data.indexOf(':');
+		switch(type) {
+		case CLAIM:
+			link.send(ClusterID.CLAIM_RESULT, data.substring(0, index) + ":" + (acceptClaim(from, data.substring(index + 1)) ? "1" : "0"));
+			break;
+		case CLAIM_RESULT:
+			Claim claim = this.claims.get(Integer.parseInt(data.substring(0, index)));
+			if(claim != null) {
+				claim.resolve(from, data.endsWith(":1"));
+			}
+			break;
+		case USER_ADD:
+			remoteUserAdded(from, data);
+			break;
+		case USER_REMOVE:
+			synchronized(this) {
+				Set<String> users = this.remoteUsers.get(from);
+				if(users != null) {
+					users.remove(data.toLowerCase());
+				}
+			}
+			break;
+		case JOIN:
+		case LEAVE:
+			remoteMembership(from, data.substring(0, index), data.substring(index + 1), type == ClusterID.JOIN);
+			break;
+		case BROADCAST:
+			int second = data.indexOf(':', index + 1);
+			Channel channel = this.manager.findChannel(data.substring(0, index));
+			if(channel != null && second != -1) {
+				channel.deliverRemoteBroadcast(data.substring(index + 1, second), data.substring(second + 1));
+			}
+			break;
+		case PRIVATE_MESSAGE:
+			int end = data.indexOf(':', index + 1);
+			User user = end == -1 ? null : this.manager.findUser(data.substring(index + 1, end));
+			if(user != null) {
+				user.send(new Frame(data, ProtocolID.PRIVATE_MESSAGE));
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Answers a nickname claim of a peer
+	 * @param from ID of the claiming node
+	 * @param nickname The claimed nickname
+	 * @return True if the claim is accepted
+	 */
+	private synchronized boolean acceptClaim(String from, String nickname) {
+		String lower = nickname.toLowerCase();
+		Boolean confirmed = this.localNicknames.get(lower);
+		if(confirmed != null && (confirmed || this.nodeID.compareTo(from) < 0)) {
+			return false;
+		}
+		if(isRemoteNickname(lower, from)) {
+			return false;
+		}
+		this.remoteUsers.computeIfAbsent(from, x -> new HashSet<>()).add(lower);
+		return true;
+	}
+
+	/**
+	 * Records a user of a peer. If a local user has the same nickname, which can happen when two parts of
+	 * the cluster reconnect, the user on the node with the higher ID is disconnected
+	 * @param from ID of the peer
+	 * @param nickname Nickname of the user
+	 */
+	private void remoteUserAdded(String from, String nickname) {
+		String lower = nickname.toLowerCase();
+		boolean conflict;
+		synchronized(this) {
+			this.remoteUsers.computeIfAbsent(from, x -> new HashSet<>()).add(lower);
+			conflict = Boolean.TRUE.equals(this.localNicknames.get(lower)) && this.nodeID.compareTo(from) > 0;
+		}
+		if(conflict) {
+			User user = this.manager.findUser(nickname);
+			if(user != null) {
+				user.close("Nickname is already in use!");
+			}
+		}
+	}
+
+	/**
+	 * Records a channel membership change on a peer and notifies the local members of the channel
+	 * @param from ID of the peer
+	 * @param channelName Name of the channel
+	 * @param nickname Nickname of the user
+	 * @param joined True if the user joined, false if the user left
+	 */
+	private void remoteMembership(String from, String channelName, String nickname, boolean joined) {
+		String key = channelName.toLowerCase();
+		boolean changed;
+		boolean listChanged = false;
+		synchronized(this) {
+			Map<String, Set<String>> nodes = this.remoteMembers.get(key);
+			if(joined) {
+				if(nodes == null) {
+					nodes = new HashMap<>();
+					this.remoteMembers.put(key, nodes);
+					this.remoteChannelNames.put(key, channelName);
+					listChanged = true;
+				}
+				changed = nodes.computeIfAbsent(from, x -> new LinkedHashSet<>()).add(nickname);
+			} else {
+				Set<String> members = nodes == null ? null : nodes.get(from);
+				if(members == null) {
+					return;
+				}
+				changed = members.remove(nickname);
+				if(members.isEmpty()) {
+					nodes.remove(from);
+				}
+				if(nodes.isEmpty()) {
+					this.remoteMembers.remove(key);
+					this.remoteChannelNames.remove(key);
+					listChanged = true;
+				}
+			}
+		}
+		if(changed) {
+			Channel channel = this.manager.findChannel(channelName);
+			if(channel != null) {
+				channel.remoteMembershipChanged(nickname, joined);
+			}
+		}
+		if(listChanged) {
+			this.manager.channelListChanged();
+		}
+	}
+}
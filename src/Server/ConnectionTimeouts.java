@@ -0,0 +1,211 @@
+package Server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import Metrics.Counter;
+import Metrics.MetricsRegistry;
+import ProtocolSocket.Frame;
+import ProtocolSocket.ProtocolID;
+
+/**
+ * Deadlines of the client connections, all kept on one TimingWheel instead of a timer or a socket timeout per
+ * connection. A connection has timeouts.handshakeMillis to finish the TLS handshake and timeouts.nicknameMillis
+ * to send its nickname. After that a connection that has been silent for timeouts.pingMillis is sent a PING and one
+ * that has been silent for timeouts.idleMillis is closed, which reclaims half-open connections. Only clients that
+ * announced Header.FLAG_PING are pinged, older clients cannot answer so they are not closed for being silent either.
+ * A connection whose socket write has been blocked for timeouts.writeStallMillis is closed as well. A zero value
+ * disables a check
+ * @author etsubu
+ *
+ */
+public class ConnectionTimeouts {
+	private static final long CLOSE_GRACE_MILLIS = 2000;
+	private static final Frame PING = new Frame(new byte[0], ProtocolID.PING);
+	private final TimingWheel wheel;
+	private final OutboundService outbound;
+	private final long handshakeMillis;
+	private final long nicknameMillis;
+	private final long pingNanos;
+	private final long idleNanos;
+	private final long writeStallNanos;
+	private final long tickNanos;
+	private final Counter handshakeTimeouts;
+	private final Counter nicknameTimeouts;
+	private final Counter idleTimeouts;
+	private final Counter writeTimeouts;
+	private final Counter pings;
+
+	/**
+	 * Initializes the timeouts and starts the wheel thread
+	 * @param config Configuration of the server
+	 * @param outbound Service whose closer threads close the expired connections
+	 * @param registry Registry where the timeout counters are registered
+	 */
+	public ConnectionTimeouts(ServerConfig config, OutboundService outbound, MetricsRegistry registry) {
+		long tickMillis = Math.max(1, config.getLong("timeouts.tickMillis", 100));
+		this.wheel = new TimingWheel("connection-timeouts", tickMillis, config.getInt("timeouts.wheelSize", 512));
+		this.outbound = outbound;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.handshakeMillis = Math.max(0, config.getLong("timeouts.handshakeMillis", 10000));
+		this.nicknameMillis = Math.max(0, config.getLong("timeouts.nicknameMillis", 15000));
+		this.pingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getLong("timeouts.pingMillis", 30000)));
+		this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getLong("timeouts.idleMillis", 90000)));
+		this.writeStallNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getLong("timeouts.writeStallMillis", 30000)));
+		String help = "Connections closed because a deadline passed";
+		this.handshakeTimeouts = registry.register("javachat_timeouts_total", help, "reason=\"handshake\"", new Counter());
+		this.nicknameTimeouts = registry.register("javachat_timeouts_total", help, "reason=\"nickname\"", new Counter());
+		this.idleTimeouts = registry.register("javachat_timeouts_total", help, "reason=\"idle\"", new Counter());
+		this.writeTimeouts = registry.register("javachat_timeouts_total", help, "reason=\"write\"", new Counter());
+		this.pings = registry.register("javachat_pings_total", "PING frames sent to silent connections", new Counter());
+	}
+
+	/**
+	 * Getter for the timing wheel the deadlines are kept on
+	 * @return The timing wheel
+	 */
+	public TimingWheel getWheel() {
+		return this.wheel;
+	}
+
+	/**
+	 * Arms the handshake deadline of an accepted socket. The socket is closed unless the deadline is cancelled in time
+	 * @param socket The accepted socket
+	 * @return The deadline or null if the check is disabled
+	 */
+	public TimingWheel.Timeout armHandshake(Socket socket) {
+		if(this.handshakeMillis == 0) {
+			return null;
+		}
+		return this.wheel.schedule(() -> {
+			this.handshakeTimeouts.inc();
+			this.outbound.close(() -> {
+				try {
+					socket.close();
+				} catch(IOException e) {
+					//
+				}
+			});
+		}, this.handshakeMillis);
+	}
+
+	/**
+	 * Arms the nickname deadline of a new connection. The connection is closed unless the deadline is cancelled in time
+	 * @param user The connected user
+	 * @return The deadline or null if the check is disabled
+	 */
+	public TimingWheel.Timeout armNickname(User user) {
+		if(this.nicknameMillis == 0) {
+			return null;
+		}
+		return this.wheel.schedule(() -> {
+			this.nicknameTimeouts.inc();
+			expire(user, "Nickname was not sent in time");
+		}, this.nicknameMillis);
+	}
+
+	/**
+	 * Cancels a deadline returned by this class
+	 * @param timeout The deadline or null
+	 */
+	public static void cancel(TimingWheel.Timeout timeout) {
+		if(timeout != null) {
+			timeout.cancel();
+		}
+	}
+
+	/**
+	 * Starts the liveness checks of a connection that has sent its nickname. The checks stop when the user disconnects
+	 * @param user The connected user
+	 */
+	public void startLiveness(User user) {
+		long delay = nextCheck(0, 0, user.answersPings(), 0);
+		if(delay > 0) {
+			this.wheel.schedule(() -> checkLiveness(user, 0), TimeUnit.NANOSECONDS.toMillis(delay));
+		}
+	}
+
+	/**
+	 * Checks the idle and write stall deadlines of a connection and schedules the next check
+	 * @param user The connected user
+	 * @param lastPing System.nanoTime() when the last PING was sent, 0 if none was sent during this silence
+	 */
+	private void checkLiveness(User user, long lastPing) {
+		if(!user.isAlive()) {
+			return;
+		}
+		long now = System.nanoTime();
+		long silent = now - user.getLastRead();
+		boolean pinged = user.answersPings();
+		long stalled = user.getOutbound().getWriteStallNanos(now);
+		if(this.writeStallNanos > 0 && stalled >= this.writeStallNanos) {
+			this.writeTimeouts.inc();
+			// A closing message could not be written either, so the socket is closed right away
+			this.outbound.close(user::cleanup);
+			return;
+		}
+		if(pinged && this.idleNanos > 0 && silent >= this.idleNanos) {
+			this.idleTimeouts.inc();
+			expire(user, "Connection timed out");
+			return;
+		}
+		if(lastPing != 0 && lastPing - user.getLastRead() < 0) {
+			// The client has answered, so the silence starts over
+			lastPing = 0;
+		}
+		if(pinged && this.pingNanos > 0 && silent >= this.pingNanos && (lastPing == 0 || now - lastPing >= this.pingNanos)) {
+			user.send(PING);
+			this.pings.inc();
+			lastPing = now;
+		}
+		long sincePing = lastPing == 0 ? silent : now - lastPing;
+		long next = lastPing;
+		long delay = nextCheck(silent, sincePing, pinged, stalled);
+		if(delay > 0) {
+			this.wheel.schedule(() -> checkLiveness(user, next), TimeUnit.NANOSECONDS.toMillis(delay));
+		}
+	}
+
+	/**
+	 * Calculates the time until the next liveness check
+	 * @param silent Time the connection has been silent
+	 * @param sincePing Time since the last PING or the time the connection has been silent if no PING was sent
+	 * @param pinged True if the client answers PING packets, otherwise only the write stall is checked
+	 * @param stalled Time the current socket write has been blocked, 0 if no write is in progress
+	 * @return Delay in nanoseconds, 0 if every check is disabled
+	 */
+	private long nextCheck(long silent, long sincePing, boolean pinged, long stalled) {
+		long delay = Long.MAX_VALUE;
+		if(pinged && this.idleNanos > 0) {
+			delay = Math.min(delay, this.idleNanos - silent);
+		}
+		if(pinged && this.pingNanos > 0) {
+			delay = Math.min(delay, this.pingNanos - sincePing);
+		}
+		if(this.writeStallNanos > 0) {
+			// A write that starts right after this check is seen at half the deadline and then checked on time
+			delay = Math.min(delay, stalled > 0 ? this.writeStallNanos - stalled : this.writeStallNanos / 2);
+		}
+		return delay == Long.MAX_VALUE ? 0 : Math.max(this.tickNanos, delay);
+	}
+
+	/**
+	 * Closes a connection whose deadline passed. The socket is closed after a grace period even if the closing
+	 * message could not be written. The close runs on a closer thread since it can wait for a stuck write and the
+	 * wheel thread serves every deadline
+	 * @param user The connected user
+	 * @param reason Message sent to the client
+	 */
+	private void expire(User user, String reason) {
+		user.close(reason);
+		this.wheel.schedule(() -> this.outbound.close(user::cleanup), CLOSE_GRACE_MILLIS);
+	}
+
+	/**
+	 * Stops the wheel thread
+	 */
+	public void stop() {
+		this.wheel.stop();
+	}
+}
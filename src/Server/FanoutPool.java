@@ -0,0 +1,93 @@
+package Server;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+import Metrics.Counter;
+import Metrics.MetricsRegistry;
+
+/**
+ * Spreads the fan-out of very large channels over a fork/join pool. A channel with at least fanout.parallelThreshold
+ * members is split into partitions of fanout.partitionSize members that are delivered in parallel. The calling shard
+ * waits until every partition is done, so a recipient still receives the messages of a channel in the order the
+ * shard handled them and the member list is not modified while the partitions read it
+ * @author etsubu
+ *
+ */
+public class FanoutPool {
+	/**
+	 * Delivers to a range of members, splitting it in half until the range fits in one partition
+	 */
+	private class Partition extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<User> users;
+		private final Consumer<User> action;
+		private final int from;
+		private final int to;
+
+		private Partition(List<User> users, Consumer<User> action, int from, int to) {
+			this.users = users;
+			this.action = action;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(this.to - this.from <= partitionSize) {
+				for(int i = this.from; i < this.to; i++) {
+					this.action.accept(this.users.get(i));
+				}
+				return;
+			}
+			int middle = (this.from + this.to) >>> 1;
+			invokeAll(new Partition(this.users, this.action, this.from, middle),
+					new Partition(this.users, this.action, middle, this.to));
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final int threshold;
+	private final int partitionSize;
+	private final Counter parallel;
+
+	/**
+	 * Initializes the pool
+	 * @param config Configuration of the server
+	 * @param registry Registry where the number of parallel fan-outs is registered
+	 */
+	public FanoutPool(ServerConfig config, MetricsRegistry registry) {
+		int threads = Math.max(1, config.getInt("fanout.threads", Runtime.getRuntime().availableProcessors()));
+		this.pool = new ForkJoinPool(threads);
+		this.threshold = config.getInt("fanout.parallelThreshold", 4096);
+		this.partitionSize = Math.max(1, config.getInt("fanout.partitionSize", 1024));
+		this.parallel = registry.register("javachat_fanout_parallel_total", "Channel fan-outs split into parallel partitions", new Counter());
+	}
+
+	/**
+	 * Runs the action for every user and returns when it has run for all of them. Lists shorter than
+	 * fanout.parallelThreshold are handled on the calling thread
+	 * @param users Users to deliver to, must not be modified before this returns
+	 * @param action Action to run for each user
+	 */
+	public void forEach(List<User> users, Consumer<User> action) {
+		int size = users.size();
+		if(this.threshold <= 0 || size < this.threshold || size <= this.partitionSize) {
+			for(int i = 0; i < size; i++) {
+				action.accept(users.get(i));
+			}
+			return;
+		}
+		this.parallel.inc();
+		this.pool.invoke(new Partition(users, action, 0, size));
+	}
+
+	/**
+	 * Stops the worker threads
+	 */
+	public void shutdown() {
+		this.pool.shutdown();
+	}
+}
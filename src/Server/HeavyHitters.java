@@ -0,0 +1,161 @@
+package Server;
+
+import java.util.List;
+
+import Metrics.MetricsRegistry;
+import Metrics.SlidingTopK;
+import Metrics.TopK;
+
+/**
+ * Tracks the channels and users that drive the most traffic over a sliding window. Memory is bounded by the
+ * sketch dimensions regardless of the number of channels and users. Configured with hotspots.enabled, hotspots.k,
+ * hotspots.windowSeconds, hotspots.buckets, hotspots.sketchWidth and hotspots.sketchDepth
+ * @author etsubu
+ *
+ */
+public class HeavyHitters implements HeavyHittersMBean {
+	public static final String OBJECT_NAME = "JavaChat:type=HeavyHitters";
+	public static final String KIND_CHANNELS = "channels";
+	public static final String KIND_USERS = "users";
+	private final boolean enabled;
+	private final SlidingTopK channelMessages;
+	private final SlidingTopK channelFanoutBytes;
+	private final SlidingTopK userMessages;
+	private final SlidingTopK userFanoutBytes;
+
+	/**
+	 * Initializes the trackers and registers them to the metrics
+	 * @param config Configuration of the server
+	 * @param registry Registry to export the top entries through
+	 */
+	public HeavyHitters(ServerConfig config, MetricsRegistry registry) {
+		this.enabled = config.getBoolean("hotspots.enabled", true);
+		int k = Math.max(1, config.getInt("hotspots.k", 10));
+		int buckets = Math.max(1, config.getInt("hotspots.buckets", 6));
+		long bucketMillis = Math.max(1, config.getLong("hotspots.windowSeconds", 60)) * 1000 / buckets;
+		int width = Math.max(64, config.getInt("hotspots.sketchWidth", 4096));
+		int depth = Math.max(1, Math.min(8, config.getInt("hotspots.sketchDepth", 4)));
+		this.channelMessages = new SlidingTopK(k, width, depth, buckets, bucketMillis, "channel");
+		this.channelFanoutBytes = new SlidingTopK(k, width, depth, buckets, bucketMillis, "channel");
+		this.userMessages = new SlidingTopK(k, width, depth, buckets, bucketMillis, "user");
+		this.userFanoutBytes = new SlidingTopK(k, width, depth, buckets, bucketMillis, "user");
+		if(this.enabled) {
+			registry.register("javachat_hot_channel_messages", "Channels with the most messages in the window", this.channelMessages);
+			registry.register("javachat_hot_channel_fanout_bytes", "Channels with the most fan-out bytes in the window", this.channelFanoutBytes);
+			registry.register("javachat_hot_user_messages", "Users with the most packets in the window", this.userMessages);
+			registry.register("javachat_hot_user_fanout_bytes", "Users causing the most fan-out bytes in the window", this.userFanoutBytes);
+		}
+	}
+
+	/**
+	 * Checks if the tracking is enabled
+	 * @return True if the traffic is being tracked
+	 */
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/**
+	 * Records a message broadcast to a channel
+	 * @param channel Channel the message was sent to
+	 * @param sender User who sent the message
+	 * @param messageLength Size of the encoded message in bytes
+	 * @param recipients Number of users the message was sent to
+	 */
+	public void channelBroadcast(Channel channel, User sender, int messageLength, int recipients) {
+		if(!this.enabled) {
+			return;
+		}
+		long fanoutBytes = (long) messageLength * recipients;
+		this.channelMessages.add(channel.getID(), channel.getName(), 1);
+		this.channelFanoutBytes.add(channel.getID(), channel.getName(), fanoutBytes);
+		this.userFanoutBytes.add(sender.getID(), sender.getName(), fanoutBytes);
+	}
+
+	/**
+	 * Records a packet received from a user
+	 * @param user User who sent the packet
+	 */
+	public void userPacket(User user) {
+		if(!this.enabled) {
+			return;
+		}
+		this.userMessages.add(user.getID(), user.getName(), 1);
+	}
+
+	/**
+	 * Builds a text report of the heaviest channels and/or users
+	 * @param kind channels, users or anything else for both
+	 * @return The report, one entry per line
+	 */
+	public String report(String kind) {
+		if(!this.enabled) {
+			return "Heavy hitter tracking is disabled";
+		}
+		StringBuilder report = new StringBuilder();
+		report.append("Top traffic over the last ").append(getWindowSeconds()).append(" seconds\n");
+		boolean channels = !KIND_USERS.equalsIgnoreCase(kind);
+		boolean users = !KIND_CHANNELS.equalsIgnoreCase(kind);
+		if(channels) {
+			appendReport(report, "Channels by messages", this.channelMessages.top());
+			appendReport(report, "Channels by fan-out bytes", this.channelFanoutBytes.top());
+		}
+		if(users) {
+			appendReport(report, "Users by messages", this.userMessages.top());
+			appendReport(report, "Users by fan-out bytes", this.userFanoutBytes.top());
+		}
+		return report.toString().trim();
+	}
+
+	/**
+	 * Appends a single section to the report
+	 * @param report Builder to append to
+	 * @param title Title of the section
+	 * @param entries Entries of the section
+	 */
+	private static void appendReport(StringBuilder report, String title, List<TopK.Entry> entries) {
+		report.append(title).append(":\n");
+		for(int i = 0; i < entries.size(); i++) {
+			report.append("  ").append(i + 1).append(". ").append(entries.get(i).getName())
+				.append(' ').append(entries.get(i).getCount()).append('\n');
+		}
+	}
+
+	/**
+	 * Formats the entries for JMX
+	 * @param entries Entries to format
+	 * @return name=count entries
+	 */
+	private static String[] toStrings(List<TopK.Entry> entries) {
+		String[] strings = new String[entries.size()];
+		for(int i = 0; i < strings.length; i++) {
+			strings[i] = entries.get(i).toString();
+		}
+		return strings;
+	}
+
+	@Override
+	public String[] getTopChannelsByMessages() {
+		return toStrings(this.channelMessages.top());
+	}
+
+	@Override
+	public String[] getTopChannelsByFanoutBytes() {
+		return toStrings(this.channelFanoutBytes.top());
+	}
+
+	@Override
+	public String[] getTopUsersByMessages() {
+		return toStrings(this.userMessages.top());
+	}
+
+	@Override
+	public String[] getTopUsersByFanoutBytes() {
+		return toStrings(this.userFanoutBytes.top());
+	}
+
+	@Override
+	public long getWindowSeconds() {
+		return this.channelMessages.getWindowMillis() / 1000;
+	}
+}
@@ -0,0 +1,34 @@
+package Server;
+
+/**
+ * JMX management interface of the heavy hitter tracker
+ * @author etsubu
+ *
+ */
+public interface HeavyHittersMBean {
+
+	/**
+	 * @return Channels with the most messages in the window as name=count entries
+	 */
+	public String[] getTopChannelsByMessages();
+
+	/**
+	 * @return Channels with the most fan-out bytes in the window as name=count entries
+	 */
+	public String[] getTopChannelsByFanoutBytes();
+
+	/**
+	 * @return Users with the most packets in the window as name=count entries
+	 */
+	public String[] getTopUsersByMessages();
+
+	/**
+	 * @return Users whose messages caused the most fan-out bytes in the window as name=count entries
+	 */
+	public String[] getTopUsersByFanoutBytes();
+
+	/**
+	 * @return Length of the window in seconds
+	 */
+	public long getWindowSeconds();
+}
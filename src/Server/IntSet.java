@@ -0,0 +1,76 @@
+package Server;
+
+import java.util.Arrays;
+
+/**
+ * Small set of ints kept in a sorted copy-on-write array. Changes are synchronized and lookups need no lock. An empty
+ * set holds no array of its own
+ * @author etsubu
+ *
+ */
+final class IntSet {
+	private static final int[] EMPTY = new int[0];
+	private volatile int[] values;
+
+	/**
+	 * Initializes an empty set
+	 */
+	IntSet() {
+		this.values = EMPTY;
+	}
+
+	/**
+	 * Checks if the value is in the set
+	 * @param value The value
+	 * @return True if the value is in the set
+	 */
+	boolean contains(int value) {
+		return Arrays.binarySearch(this.values, value) >= 0;
+	}
+
+	/**
+	 * Getter for the number of values
+	 * @return Number of values in the set
+	 */
+	int size() {
+		return this.values.length;
+	}
+
+	/**
+	 * Adds a value
+	 * @param value The value
+	 */
+	synchronized void add(int value) {
+		int[] current = this.values;
+		int index = Arrays.binarySearch(current, value);
+		if(index >= 0) {
+			return;
+		}
+		index = ~index;
+		int[] added = new int[current.length + 1];
+		System.arraycopy(current, 0, added, 0, index);
+		added[index] = value;
+		System.arraycopy(current, index, added, index + 1, current.length - index);
+		this.values = added;
+	}
+
+	/**
+	 * Removes a value
+	 * @param value The value
+	 */
+	synchronized void remove(int value) {
+		int[] current = this.values;
+		int index = Arrays.binarySearch(current, value);
+		if(index < 0) {
+			return;
+		}
+		if(current.length == 1) {
+			this.values = EMPTY;
+			return;
+		}
+		int[] removed = new int[current.length - 1];
+		System.arraycopy(current, 0, removed, 0, index);
+		System.arraycopy(current, index + 1, removed, index, current.length - index - 1);
+		this.values = removed;
+	}
+}
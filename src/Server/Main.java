@@ -32,8 +32,21 @@ public class Main {
     }
 	public static void main(String[] args){
 	    loadKeystore();
-		Server server = new Server(7777);
-		System.out.println("Hosting the server on port " + 7777 + "...");
+	    ServerConfig config;
+	    try {
+	        config = ServerConfig.load();
+	    } catch (IOException e) {
+	        System.out.println("Failed to read " + ServerConfig.FILE_NAME + ": " + e.getMessage());
+	        return;
+	    }
+		int port = config.getInt("server.port", 7777);
+		Server server;
+		if(config.getString("replication.primary", "").isEmpty()) {
+		    server = new Server(port, config);
+		} else {
+		    server = new Server(port, config, new StandbyServer(config).awaitFailover());
+		}
+		System.out.println("Hosting the server on port " + port + "...");
 		try {
 			server.startServer();
 		} catch (IOException e) {
@@ -0,0 +1,66 @@
+package Server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+import ProtocolSocket.Frame;
+
+/**
+ * Ring of the latest messages of a channel. Every message gets the next sequence number of the channel and a resuming
+ * client is sent the messages after the last sequence number it has seen. The numbering starts from a random base
+ * so a sequence number of another channel or server is not mistaken for one of this channel. Only used on the shard
+ * of the channel
+ * @author etsubu
+ *
+ */
+class MessageHistory {
+	private final Frame[] frames;
+	private final long base;
+	private long sequence;
+
+	/**
+	 * Initializes an empty history
+	 * @param capacity Number of messages kept, 0 keeps only the sequence number
+	 */
+	MessageHistory(int capacity) {
+		this.frames = new Frame[Math.max(0, capacity)];
+		this.base = ThreadLocalRandom.current().nextLong(1L << 62);
+		this.sequence = this.base;
+	}
+
+	/**
+	 * Getter for the sequence number of the latest message
+	 * @return The sequence number
+	 */
+	long getSequence() {
+		return this.sequence;
+	}
+
+	/**
+	 * Adds a message, overwriting the oldest one when the ring is full
+	 * @param frame CHANNEL_BROADCAST frame of the message
+	 */
+	void add(Frame frame) {
+		this.sequence++;
+		if(this.frames.length > 0) {
+			this.frames[(int) Math.floorMod(this.sequence, (long) this.frames.length)] = frame;
+		}
+	}
+
+	/**
+	 * Passes the kept messages after the given sequence number to the consumer in order
+	 * @param since Sequence number of the last message the client has seen
+	 * @param consumer Consumer of the messages
+	 * @return Number of messages replayed, 0 if the sequence number is not of this history
+	 */
+	int replay(long since, Consumer<Frame> consumer) {
+		if(since < this.base || since >= this.sequence) {
+			return 0;
+		}
+		long first = Math.max(since, this.sequence - this.frames.length) + 1;
+		for(long i = first; i <= this.sequence; i++) {
+			consumer.accept(this.frames[(int) Math.floorMod(i, (long) this.frames.length)]);
+		}
+		return (int) (this.sequence - first + 1);
+	}
+}
@@ -0,0 +1,82 @@
+package Server;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import Metrics.MetricsRegistry;
+
+/**
+ * Samples channel broadcasts for end-to-end latency tracing. A sampled message is stamped when it is
+ * received, when a copy is handed to a recipient and when the write to the recipient completes.
+ * The stage latencies are aggregated per channel. Configured with trace.sampleRate (trace 1 in N messages, 0 disables)
+ * and trace.echo (send the stamps to the recipients in TRACE frames)
+ * @author etsubu
+ *
+ */
+public class MessageTracer {
+	public static final String METRIC_NAME = "javachat_trace_stage_seconds";
+	private final int sampleRate;
+	private final boolean echo;
+	private final MetricsRegistry registry;
+
+	/**
+	 * Initializes the MessageTracer
+	 * @param config Configuration of the server
+	 * @param registry Registry where the per channel histograms are registered
+	 */
+	public MessageTracer(ServerConfig config, MetricsRegistry registry) {
+		this.sampleRate = Math.max(0, config.getInt("trace.sampleRate", 0));
+		this.echo = config.getBoolean("trace.echo", false);
+		this.registry = registry;
+	}
+
+	/**
+	 * Checks if tracing is enabled
+	 * @return True if messages are being sampled
+	 */
+	public boolean isEnabled() {
+		return this.sampleRate > 0;
+	}
+
+	/**
+	 * Checks if the stamps are sent to the recipients
+	 * @return True if TRACE frames are sent after the traced messages
+	 */
+	public boolean isEchoEnabled() {
+		return this.echo;
+	}
+
+	/**
+	 * Decides if the next message should be traced
+	 * @return True if the message is sampled
+	 */
+	public boolean sample() {
+		if(this.sampleRate <= 1) {
+			return this.sampleRate == 1;
+		}
+		return ThreadLocalRandom.current().nextInt(this.sampleRate) == 0;
+	}
+
+	/**
+	 * Creates and registers the latency histograms for a channel
+	 * @param channelName Name of the channel
+	 * @return The channel trace or null if tracing is disabled
+	 */
+	public ChannelTrace createChannelTrace(String channelName) {
+		if(!isEnabled()) {
+			return null;
+		}
+		ChannelTrace trace = new ChannelTrace(channelName);
+		trace.register(this.registry, METRIC_NAME);
+		return trace;
+	}
+
+	/**
+	 * Unregisters the histograms of a removed channel
+	 * @param trace Trace of the channel, may be null
+	 */
+	public void removeChannelTrace(ChannelTrace trace) {
+		if(trace != null) {
+			trace.unregister(this.registry, METRIC_NAME);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free queue for many producers and a single consumer. Producers append with a single atomic
+ * swap and never wait for each other or for the consumer. Only the owning consumer thread may call poll() and isEmpty()
+ * @author etsubu
+ *
+ * @param <E> Type of the elements
+ */
+public class MpscQueue<E> {
+	private static final class Node<E> {
+		private E value;
+		private volatile Node<E> next;
+
+		private Node(E value) {
+			this.value = value;
+		}
+	}
+
+	private final AtomicReference<Node<E>> head;
+	private Node<E> tail;
+
+	/**
+	 * Initializes an empty queue
+	 */
+	public MpscQueue() {
+		Node<E> stub = new Node<>(null);
+		this.head = new AtomicReference<>(stub);
+		this.tail = stub;
+	}
+
+	/**
+	 * Appends an element. Can be called from any thread
+	 * @param element Element to append, not null
+	 */
+	public void offer(E element) {
+		Node<E> node = new Node<>(element);
+		Node<E> previous = this.head.getAndSet(node);
+		previous.next = node;
+	}
+
+	/**
+	 * Removes the oldest element. An element whose producer has not finished offering it is not yet visible
+	 * @return The oldest element or null if there is none
+	 */
+	public E poll() {
+		Node<E> next = this.tail.next;
+		if(next == null) {
+			return null;
+		}
+		E value = next.value;
+		next.value = null;
+		this.tail = next;
+		return value;
+	}
+
+	/**
+	 * Checks if there is an element to poll
+	 * @return True if poll() would return null
+	 */
+	public boolean isEmpty() {
+		return this.tail.next == null;
+	}
+}
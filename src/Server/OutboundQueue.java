@@ -0,0 +1,382 @@
+package Server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ProtocolSocket.Frame;
+import ProtocolSocket.ProtocolID;
+import ProtocolSocket.ProtocolSocket;
+
+/**
+ * Outbound queue of a single connection. Frames are written by the shared writer threads of the OutboundService
+ * so a sender never blocks on the socket of a recipient. State frames such as user and channel lists are queued
+ * with a conflation key: a newer frame with the same key replaces the queued one in place, so only the newest
+ * state is written no matter how far behind the client is. Most connections are idle most of the time, so the queue
+ * and the conflation map are allocated when a frame is queued and released once they have been drained.
+ * Frames are queued in two lanes. The control lane is drained first, but after outbound.controlWeight control frames
+ * in a row one chat frame is written so a flood of control frames cannot stall the chat. The frames that are queued
+ * when a writer gets to the connection are written with one write, up to 16 KB, so they share TLS records. Clients
+ * that announced support get them packed into BATCH frames
+ * @author etsubu
+ *
+ */
+public class OutboundQueue implements Runnable {
+	public static final long NO_CONFLATION = -1;
+	private static final int DRAIN_BATCH = 64;
+	private static final int MAX_WRITE_BYTES = 16384;
+
+	/**
+	 * Priority lane of a frame
+	 */
+	public enum Lane {
+		/** Replies to the user's own requests and connection control */
+		CONTROL,
+		/** Channel traffic and everything ordered with it */
+		CHAT
+	}
+
+	/**
+	 * Queued frame together with its tracing stamps
+	 */
+	private static class Entry {
+		private Frame frame;
+		private Lane lane;
+		private final long key;
+		private final long enqueued;
+		private final long received;
+		private final ChannelTrace trace;
+		private final int channelID;
+		private final boolean last;
+
+		private Entry(Frame frame, long key, long enqueued, long received, ChannelTrace trace, int channelID, boolean last) {
+			this.frame = frame;
+			this.key = key;
+			this.enqueued = enqueued;
+			this.received = received;
+			this.trace = trace;
+			this.channelID = channelID;
+			this.last = last;
+		}
+	}
+
+	private final User user;
+	private final ProtocolSocket socket;
+	private final OutboundService service;
+	private ArrayDeque<Entry> control;
+	private ArrayDeque<Entry> chat;
+	private int controlStreak;
+	private Map<Long, Entry> conflatable;
+	private long pendingBytes;
+	private long lastWrite;
+	private volatile long writeStarted;
+	private boolean scheduled;
+	private boolean closing;
+	private boolean slow;
+
+	/**
+	 * Initializes the queue
+	 * @param user User whose frames are queued
+	 * @param socket Socket the frames are written to
+	 * @param service Service that drains the queue
+	 */
+	public OutboundQueue(User user, ProtocolSocket socket, OutboundService service) {
+		this.user = user;
+		this.socket = socket;
+		this.service = service;
+	}
+
+	/**
+	 * Creates a conflation key for a state frame
+	 * @param type Type of the frame
+	 * @param channelID Channel the state belongs to, 0 if it is not channel specific
+	 * @return The conflation key
+	 */
+	public static long conflationKey(ProtocolID type, int channelID) {
+		return ((long) type.ordinal() << 32) | (channelID & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Queues a frame
+	 * @param frame Frame to send
+	 * @return True if the frame was queued
+	 */
+	public boolean enqueue(Frame frame) {
+		return enqueue(new Entry(frame, NO_CONFLATION, System.nanoTime(), 0, null, 0, false));
+	}
+
+	/**
+	 * Queues a state frame that replaces any queued frame with the same key
+	 * @param frame Frame to send
+	 * @param key Conflation key from conflationKey()
+	 * @return True if the frame was queued or it replaced a queued frame
+	 */
+	public boolean enqueue(Frame frame, long key) {
+		return enqueue(new Entry(frame, key, System.nanoTime(), 0, null, 0, false));
+	}
+
+	/**
+	 * Queues a traced channel message. The latency is recorded to the trace when the write completes
+	 * @param frame Frame to send
+	 * @param received System.nanoTime() when the message was received from its sender
+	 * @param trace Trace of the channel
+	 * @param channelID ID of the channel
+	 * @return True if the frame was queued
+	 */
+	public boolean enqueueTraced(Frame frame, long received, ChannelTrace trace, int channelID) {
+		return enqueue(new Entry(frame, NO_CONFLATION, System.nanoTime(), received, trace, channelID, false));
+	}
+
+	/**
+	 * Drops everything that is queued, sends the given frame and closes the connection after it has been written
+	 * @param frame Last frame to send
+	 */
+	public synchronized void closeWith(Frame frame) {
+		if(this.closing) {
+			return;
+		}
+		clear();
+		enqueue(new Entry(frame, NO_CONFLATION, System.nanoTime(), 0, null, 0, true));
+		this.closing = true;
+	}
+
+	/**
+	 * Drops everything that is queued and stops accepting new frames
+	 */
+	public synchronized void discard() {
+		this.closing = true;
+		clear();
+		setSlow(false);
+	}
+
+	/**
+	 * Removes all queued frames
+	 */
+	private void clear() {
+		this.service.pendingBytesChanged(-this.pendingBytes);
+		this.pendingBytes = 0;
+		if(this.control != null) {
+			this.service.laneFramesChanged(Lane.CONTROL, -this.control.size());
+			this.control = null;
+		}
+		if(this.chat != null) {
+			this.service.laneFramesChanged(Lane.CHAT, -this.chat.size());
+			this.chat = null;
+		}
+		this.conflatable = null;
+	}
+
+	/**
+	 * Adds the entry to the queue and schedules the queue to be drained
+	 * @param entry Entry to add
+	 * @return True if the entry was queued or conflated
+	 */
+	private synchronized boolean enqueue(Entry entry) {
+		if(this.closing) {
+			return false;
+		}
+		int size = entry.frame.getSize();
+		if(this.slow && this.service.isDroppableWhenSlow(entry.frame.getType())) {
+			this.service.frameDropped();
+			return false;
+		}
+		if(entry.key != NO_CONFLATION) {
+			if(this.conflatable == null) {
+				this.conflatable = new HashMap<>();
+			}
+			Entry queued = this.conflatable.get(entry.key);
+			if(queued != null) {
+				long delta = size - queued.frame.getSize();
+				queued.frame = entry.frame;
+				this.pendingBytes += delta;
+				this.service.pendingBytesChanged(delta);
+				this.service.frameConflated();
+				return true;
+			}
+			this.conflatable.put(entry.key, entry);
+		}
+		entry.lane = this.service.laneOf(entry.frame.getType());
+		if(entry.lane == Lane.CONTROL) {
+			if(this.control == null) {
+				this.control = new ArrayDeque<>();
+			}
+			this.control.add(entry);
+		} else {
+			if(this.chat == null) {
+				this.chat = new ArrayDeque<>();
+			}
+			this.chat.add(entry);
+		}
+		this.service.laneFramesChanged(entry.lane, 1);
+		this.pendingBytes += size;
+		this.service.pendingBytesChanged(size);
+		if(!this.scheduled) {
+			this.scheduled = true;
+			this.service.execute(this);
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the next entry to write. The control lane goes first unless it has had its turn outbound.controlWeight
+	 * times in a row while chat frames were waiting. Its bytes no longer count as pending once it has been taken
+	 * @param room Largest frame that can be taken in bytes
+	 * @param first True if the writer has nothing to write yet, an empty queue then stops the draining
+	 * @return The next entry or null if the queue is empty or the next frame is larger than the room
+	 */
+	private synchronized Entry poll(int room, boolean first) {
+		boolean hasControl = this.control != null && !this.control.isEmpty();
+		boolean hasChat = this.chat != null && !this.chat.isEmpty();
+		if(!hasControl && !hasChat) {
+			if(first) {
+				this.scheduled = false;
+				this.control = null;
+				this.chat = null;
+				this.controlStreak = 0;
+			}
+			return null;
+		}
+		boolean fromControl = hasControl && (!hasChat || this.controlStreak < this.service.getControlWeight());
+		ArrayDeque<Entry> lane = fromControl ? this.control : this.chat;
+		if(lane.peek().frame.getSize() > room) {
+			return null;
+		}
+		Entry entry = lane.poll();
+		// Only control frames that went ahead of waiting chat frames count towards the streak
+		this.controlStreak = fromControl && hasChat ? this.controlStreak + 1 : 0;
+		this.service.laneFramesChanged(entry.lane, -1);
+		this.service.frameWaited(entry.lane, System.nanoTime() - entry.enqueued);
+		if(entry.key != NO_CONFLATION) {
+			this.conflatable.remove(entry.key);
+			if(this.conflatable.isEmpty()) {
+				this.conflatable = null;
+			}
+		}
+		int size = entry.frame.getSize();
+		this.pendingBytes -= size;
+		this.service.pendingBytesChanged(-size);
+		return entry;
+	}
+
+	/**
+	 * Getter for the number of bytes that are queued but not written
+	 * @return Number of unflushed bytes
+	 */
+	public synchronized long getPendingBytes() {
+		return this.pendingBytes;
+	}
+
+	/**
+	 * Calculates how long the queue has had frames waiting without a successful write
+	 * @param now Current System.nanoTime()
+	 * @return Time in nanoseconds since the last write or since the oldest frame was queued, 0 if the queue is empty
+	 */
+	public synchronized long getLagNanos(long now) {
+		long oldest = Math.min(oldestEnqueued(this.control), oldestEnqueued(this.chat));
+		return oldest == Long.MAX_VALUE ? 0 : now - Math.max(oldest, this.lastWrite);
+	}
+
+	/**
+	 * Finds when the oldest frame of a lane was queued
+	 * @param lane Frames of the lane, may be null
+	 * @return System.nanoTime() when the oldest frame was queued or Long.MAX_VALUE if the lane is empty
+	 */
+	private static long oldestEnqueued(ArrayDeque<Entry> lane) {
+		Entry oldest = lane == null ? null : lane.peek();
+		return oldest == null ? Long.MAX_VALUE : oldest.enqueued;
+	}
+	
+	/**
+	 * Calculates how long the current socket write has been blocked
+	 * @param now Current System.nanoTime()
+	 * @return Time in nanoseconds since the current write started, 0 if no write is in progress
+	 */
+	public long getWriteStallNanos(long now) {
+		long started = this.writeStarted;
+		return started == 0 ? 0 : now - started;
+	}
+	
+	/**
+	 * Called when a frame has been written
+	 */
+	private synchronized void written() {
+		this.lastWrite = System.nanoTime();
+	}
+
+	/**
+	 * Checks if the connection is marked slow
+	 * @return True if the connection is slow
+	 */
+	public synchronized boolean isSlow() {
+		return this.slow;
+	}
+
+	/**
+	 * Marks the connection slow or recovered. Slow connections do not get frames that are redundant with the state frames
+	 * @param slow True if the connection is slow
+	 */
+	public synchronized void setSlow(boolean slow) {
+		if(this.slow != slow) {
+			this.slow = slow;
+			this.service.slowChanged(slow);
+		}
+	}
+
+	@Override
+	public void run() {
+		List<Entry> entries = new ArrayList<>();
+		List<Frame> frames = new ArrayList<>();
+		int drained = 0;
+		while(drained < DRAIN_BATCH) {
+			Entry entry = poll(Integer.MAX_VALUE, true);
+			if(entry == null) {
+				return;
+			}
+			entries.add(entry);
+			frames.add(entry.frame);
+			int size = entry.frame.getSize();
+			drained++;
+			// Whatever else is queued already goes out with the same write, nothing waits for more frames
+			while(!entry.last && drained < DRAIN_BATCH && (entry = poll(MAX_WRITE_BYTES - size, false)) != null) {
+				entries.add(entry);
+				frames.add(entry.frame);
+				size += entry.frame.getSize();
+				drained++;
+			}
+			boolean batch = frames.size() > 1 && this.user.acceptsBatches();
+			try {
+				this.writeStarted = System.nanoTime();
+				int packets = this.socket.writeFrames(frames, batch);
+				if(batch) {
+					this.service.framesBatched(frames.size(), packets);
+				}
+			} catch(IOException e) {
+				this.user.cleanup();
+				return;
+			} finally {
+				this.writeStarted = 0;
+			}
+			written();
+			for(Entry written : entries) {
+				if(written.trace != null) {
+					long now = System.nanoTime();
+					written.trace.record(written.received, written.enqueued, now);
+					if(this.service.isTraceEchoEnabled()) {
+						this.user.sendTrace(written.channelID, written.enqueued - written.received, now - written.enqueued);
+					}
+				}
+				if(written.last) {
+					this.user.cleanup();
+					return;
+				}
+			}
+			entries.clear();
+			frames.clear();
+		}
+		// Give the other connections a turn before writing more
+		this.service.execute(this);
+	}
+}
@@ -0,0 +1,339 @@
+package Server;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Metrics.Counter;
+import Metrics.Gauge;
+import Metrics.Histogram;
+import Metrics.MetricsRegistry;
+import ProtocolSocket.ProtocolID;
+
+/**
+ * Shared part of the users' outbound queues. Owns the writer threads that drain the queues and periodically
+ * checks every connection's backlog to detect slow consumers. A connection is slow when its unflushed bytes exceed
+ * slowconsumer.maxBacklogBytes or when its queue has not moved for slowconsumer.maxLagMillis. Depending on
+ * slowconsumer.action slow connections get reduced updates or are disconnected. Connections whose backlog exceeds
+ * slowconsumer.disconnectBacklogBytes are always disconnected. Replies to the user's own actions are queued in a
+ * control lane that is written before the channel traffic in the chat lane, so they are not delayed by busy channels.
+ * A write that has been blocked for outbound.writeBudgetMillis no longer counts as a writer thread, the pool gets an
+ * extra thread for it so connections that do read keep being written to
+ * @author etsubu
+ *
+ */
+public class OutboundService {
+	/**
+	 * What to do with a slow consumer
+	 */
+	public enum SlowConsumerAction {
+		REDUCE,
+		DISCONNECT
+	}
+
+	private final ServerManager manager;
+	private final ThreadPoolExecutor writers;
+	private final int writerThreads;
+	private final int maxExtraWriters;
+	private final long writeBudgetNanos;
+	private final ScheduledExecutorService checker;
+	private final ExecutorService closer;
+	private final long maxBacklogBytes;
+	private final long disconnectBacklogBytes;
+	private final long maxLagNanos;
+	private final long checkMillis;
+	private final SlowConsumerAction action;
+	private final int controlWeight;
+	private final boolean batching;
+	private final Counter batches;
+	private final Counter batchedFrames;
+	private final boolean[] controlTypes;
+	private final Gauge[] laneFrames;
+	private final Histogram[] laneWait;
+	private final Gauge pendingBytes;
+	private final Gauge slowConsumers;
+	private final Gauge stalledWrites;
+	private final Counter conflated;
+	private final Counter dropped;
+	private final Counter slowDisconnects;
+
+	/**
+	 * Initializes the writer threads. The backlogs are checked once start() is called
+	 * @param manager The ServerManager whose users are checked
+	 * @param config Configuration of the server
+	 * @param registry Registry where the outbound metrics are registered
+	 */
+	public OutboundService(ServerManager manager, ServerConfig config, MetricsRegistry registry) {
+		this.manager = manager;
+		this.writerThreads = Math.max(1, config.getInt("outbound.writerThreads", Math.max(4, Runtime.getRuntime().availableProcessors() * 4)));
+		this.maxExtraWriters = Math.max(0, config.getInt("outbound.maxExtraWriters", this.writerThreads * 4));
+		this.writeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getLong("outbound.writeBudgetMillis", 1000)));
+		this.writers = new ThreadPoolExecutor(this.writerThreads, this.writerThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), daemonThreads("writer"));
+		this.checker = Executors.newSingleThreadScheduledExecutor(daemonThreads("slow-consumer-checker"));
+		this.closer = Executors.newCachedThreadPool(daemonThreads("closer"));
+		this.maxBacklogBytes = config.getLong("slowconsumer.maxBacklogBytes", 1L << 20);
+		this.disconnectBacklogBytes = config.getLong("slowconsumer.disconnectBacklogBytes", 8L << 20);
+		this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("slowconsumer.maxLagMillis", 10000));
+		SlowConsumerAction configured;
+		try {
+			configured = SlowConsumerAction.valueOf(config.getString("slowconsumer.action", "reduce").toUpperCase());
+		} catch(IllegalArgumentException e) {
+			configured = SlowConsumerAction.REDUCE;
+		}
+		this.action = configured;
+		this.controlWeight = Math.max(1, config.getInt("outbound.controlWeight", 8));
+		this.batching = config.getBoolean("outbound.batch", true);
+		this.batches = registry.register("javachat_outbound_batch_packets_total", "Packets the coalesced writes to clients that accept BATCH frames were packed into", new Counter());
+		this.batchedFrames = registry.register("javachat_outbound_batched_frames_total", "Frames written in coalesced writes to connections that accept BATCH frames", new Counter());
+		this.controlTypes = new boolean[256];
+		for(ProtocolID type : new ProtocolID[] {ProtocolID.JOIN_CHANNEL, ProtocolID.LEAVE_CHANNEL, ProtocolID.LIST_CHANNELS,
+				ProtocolID.USER_PAGE, ProtocolID.PING, ProtocolID.PONG, ProtocolID.SESSION_TOKEN, ProtocolID.CONNECTION_CLOSED,
+				ProtocolID.NICKNAME_NOT_VALID, ProtocolID.ADMIN_HEAVY_HITTERS}) {
+			this.controlTypes[type.ordinal()] = true;
+		}
+		OutboundQueue.Lane[] lanes = OutboundQueue.Lane.values();
+		this.laneFrames = new Gauge[lanes.length];
+		this.laneWait = new Histogram[lanes.length];
+		for(OutboundQueue.Lane lane : lanes) {
+			String labels = "lane=\"" + lane.name().toLowerCase() + "\"";
+			this.laneFrames[lane.ordinal()] = registry.register("javachat_outbound_queued_frames", "Frames queued but not yet written", labels, new Gauge());
+			this.laneWait[lane.ordinal()] = registry.register("javachat_outbound_wait_seconds", "Time frames spend queued before they are written", labels, Histogram.latencyNanos());
+		}
+		this.pendingBytes = registry.register("javachat_outbound_pending_bytes", "Bytes queued but not yet written", new Gauge());
+		this.slowConsumers = registry.register("javachat_slow_consumers", "Connections currently marked as slow", new Gauge());
+		this.stalledWrites = registry.register("javachat_outbound_stalled_writes", "Socket writes blocked for longer than outbound.writeBudgetMillis", new Gauge());
+		this.conflated = registry.register("javachat_outbound_conflated_total", "State frames replaced by a newer one before being written", new Counter());
+		this.dropped = registry.register("javachat_outbound_dropped_total", "Notifications not sent to slow consumers", new Counter());
+		this.slowDisconnects = registry.register("javachat_slow_consumer_disconnects_total", "Connections disconnected for being too slow", new Counter());
+		this.checkMillis = Math.max(10, config.getLong("slowconsumer.checkMillis", 500));
+	}
+
+	/**
+	 * Starts checking the backlogs. Called by the ServerManager once it has been constructed, an earlier check
+	 * would fail and stop the checks for good
+	 */
+	void start() {
+		this.checker.scheduleWithFixedDelay(this::checkConsumers, this.checkMillis, this.checkMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates a factory for named daemon threads
+	 * @param name Prefix of the thread names
+	 * @return The thread factory
+	 */
+	static ThreadFactory daemonThreads(String name) {
+		AtomicInteger index = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + index.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Schedules a queue to be drained by a writer thread
+	 * @param queue The queue to drain
+	 */
+	void execute(OutboundQueue queue) {
+		this.writers.execute(queue);
+	}
+
+	/**
+	 * Runs a close on a closer thread. Closing a TLS socket waits for a write that is stuck on the same connection,
+	 * so threads that serve every connection, such as the backlog checker, never close a socket themselves
+	 * @param close Closes the connection
+	 */
+	void close(Runnable close) {
+		this.closer.execute(close);
+	}
+
+	/**
+	 * Checks if the latency stamps of traced messages are echoed to their recipients
+	 * @return True if trace.echo is enabled
+	 */
+	boolean isTraceEchoEnabled() {
+		return this.manager.getTracer().isEchoEnabled();
+	}
+
+	/**
+	 * Checks if a frame can be left out when the connection is slow. Join and leave lines are redundant
+	 * because the conflated user lists carry the same information
+	 * @param type Type ID of the frame
+	 * @return True if the frame is not sent to slow consumers
+	 */
+	boolean isDroppableWhenSlow(int type) {
+		return type == ProtocolID.CLIENT_JOINED.ordinal() || type == ProtocolID.CLIENT_LEFT.ordinal()
+				|| type == ProtocolID.MEMBERSHIP_CHANGES.ordinal();
+	}
+
+	/**
+	 * Picks the lane of a frame. Replies to the user's own requests and connection control go to the control lane.
+	 * Frames whose order relative to the channel messages matters, such as user lists, join and leave lines and
+	 * sequence numbers, stay in the chat lane
+	 * @param type Type ID of the frame
+	 * @return Lane of the frame
+	 */
+	OutboundQueue.Lane laneOf(int type) {
+		return this.controlTypes[type & 0xFF] ? OutboundQueue.Lane.CONTROL : OutboundQueue.Lane.CHAT;
+	}
+
+	/**
+	 * Getter for the number of control frames written in a row while chat frames are waiting
+	 * @return outbound.controlWeight
+	 */
+	int getControlWeight() {
+		return this.controlWeight;
+	}
+
+	/**
+	 * Checks if the frames to the clients that support it are packed into BATCH frames
+	 * @return outbound.batch
+	 */
+	boolean isBatchingEnabled() {
+		return this.batching;
+	}
+
+	/**
+	 * Called when the frames of a write were packed for a client that accepts BATCH frames
+	 * @param frames Frames that were packed
+	 * @param packets Packets they were packed into
+	 */
+	void framesBatched(int frames, int packets) {
+		this.batchedFrames.add(frames);
+		this.batches.add(packets);
+	}
+
+	/**
+	 * Called when frames are added to or taken from a lane
+	 * @param lane The lane
+	 * @param delta Change in frames
+	 */
+	void laneFramesChanged(OutboundQueue.Lane lane, int delta) {
+		this.laneFrames[lane.ordinal()].add(delta);
+	}
+
+	/**
+	 * Called when a frame is taken to be written
+	 * @param lane Lane of the frame
+	 * @param nanos Time the frame was queued in nanoseconds
+	 */
+	void frameWaited(OutboundQueue.Lane lane, long nanos) {
+		this.laneWait[lane.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Getter for the bytes queued to all connections
+	 * @return Number of queued bytes
+	 */
+	public long getPendingBytes() {
+		return this.pendingBytes.get();
+	}
+
+	/**
+	 * Called when the number of queued bytes changes
+	 * @param delta Change in bytes
+	 */
+	void pendingBytesChanged(long delta) {
+		this.pendingBytes.add(delta);
+	}
+
+	/**
+	 * Called when a queued state frame was replaced by a newer one
+	 */
+	void frameConflated() {
+		this.conflated.inc();
+	}
+
+	/**
+	 * Called when a frame was not sent because the connection is slow
+	 */
+	void frameDropped() {
+		this.dropped.inc();
+	}
+
+	/**
+	 * Called when a connection is marked slow or recovers
+	 * @param slow True if the connection became slow
+	 */
+	void slowChanged(boolean slow) {
+		if(slow) {
+			this.slowConsumers.inc();
+		} else {
+			this.slowConsumers.dec();
+		}
+	}
+
+	/**
+	 * Checks the backlog of every connected user and sizes the writer pool for the writes that are stalled
+	 */
+	private void checkConsumers() {
+		long now = System.nanoTime();
+		List<User> users = this.manager.getUsers();
+		int stalled = 0;
+		for(User user : users) {
+			try {
+				checkConsumer(user, now);
+				if(user.getOutbound().getWriteStallNanos(now) >= this.writeBudgetNanos) {
+					stalled++;
+				}
+			} catch(RuntimeException e) {
+				// Checking must go on for the other users
+			}
+		}
+		this.stalledWrites.add(stalled - this.stalledWrites.get());
+		resizeWriters(this.writerThreads + Math.min(stalled, this.maxExtraWriters));
+	}
+
+	/**
+	 * Changes the number of writer threads. Extra threads that are no longer needed exit once they are idle
+	 * @param threads New number of threads
+	 */
+	private void resizeWriters(int threads) {
+		if(threads > this.writers.getMaximumPoolSize()) {
+			this.writers.setMaximumPoolSize(threads);
+			this.writers.setCorePoolSize(threads);
+		} else if(threads < this.writers.getCorePoolSize()) {
+			this.writers.setCorePoolSize(threads);
+			this.writers.setMaximumPoolSize(threads);
+		}
+	}
+
+	/**
+	 * Checks the backlog of a single user and applies the slow consumer policy
+	 * @param user User to check
+	 * @param now Current System.nanoTime()
+	 */
+	private void checkConsumer(User user, long now) {
+		OutboundQueue queue = user.getOutbound();
+		long backlog = queue.getPendingBytes();
+		long lag = queue.getLagNanos(now);
+		boolean overLimit = backlog > this.maxBacklogBytes || lag > this.maxLagNanos;
+		if(backlog > this.disconnectBacklogBytes || (overLimit && this.action == SlowConsumerAction.DISCONNECT)) {
+			this.slowDisconnects.inc();
+			System.out.println(user.toString() + " is too slow, backlog " + backlog + " bytes. Disconnecting.");
+			// The backlog is dropped right away so the next check does not count the connection again
+			queue.discard();
+			close(user::cleanup);
+		} else if(overLimit) {
+			queue.setSlow(true);
+		} else if(backlog < this.maxBacklogBytes / 2 && lag < this.maxLagNanos / 2) {
+			queue.setSlow(false);
+		}
+	}
+
+	/**
+	 * Stops the writer threads and the backlog checks
+	 */
+	public void shutdown() {
+		this.checker.shutdownNow();
+		this.writers.shutdown();
+		this.closer.shutdown();
+	}
+}
@@ -0,0 +1,177 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ProtocolSocket.Frame;
+import ProtocolSocket.Packet;
+import ProtocolSocket.ProtocolSocket;
+
+/**
+ * Connection to another node of the cluster. Packets are read by a thread of the link and handed to the ClusterNode.
+ * Outgoing packets are queued and written by a second thread so forwarding never blocks a channel. A link whose
+ * queue overflows is closed, the peer then rebuilds its view of this node when it reconnects
+ * @author etsubu
+ *
+ */
+public class PeerLink {
+	private final ClusterNode node;
+	private final ProtocolSocket socket;
+	private final boolean dialed;
+	private final BlockingQueue<Frame> outbox;
+	private volatile String remoteID;
+	private volatile boolean open;
+	private Thread writer;
+
+	/**
+	 * Initializes the link
+	 * @param node The local node
+	 * @param socket Connection to the peer
+	 * @param dialed True if the local node opened the connection
+	 * @param queueSize Maximum number of packets waiting to be written
+	 */
+	public PeerLink(ClusterNode node, ProtocolSocket socket, boolean dialed, int queueSize) {
+		this.node = node;
+		this.socket = socket;
+		this.dialed = dialed;
+		this.outbox = new ArrayBlockingQueue<>(Math.max(16, queueSize));
+		this.open = true;
+	}
+
+	/**
+	 * Sends the HELLO packet and starts the reading and writing threads
+	 * @param localID ID of the local node
+	 */
+	public void start(String localID) {
+		send(ClusterID.HELLO, localID);
+		Thread reader = new Thread(this::readLoop, "cluster-reader");
+		reader.setDaemon(true);
+		this.writer = new Thread(this::writeLoop, "cluster-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+		reader.start();
+	}
+
+	/**
+	 * Getter for the ID of the peer
+	 * @return Node ID of the peer or null if its HELLO has not been received
+	 */
+	public String getRemoteID() {
+		return this.remoteID;
+	}
+
+	/**
+	 * Checks which end opened the connection
+	 * @return True if the local node opened the connection
+	 */
+	public boolean isDialed() {
+		return this.dialed;
+	}
+
+	/**
+	 * Checks if the link is still open
+	 * @return True if the link is open
+	 */
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	/**
+	 * Queues a packet to the peer
+	 * @param type Type of the packet
+	 * @param data Payload of the packet
+	 * @return True if the packet was queued, false if the link is closed or too far behind
+	 */
+	public boolean send(ClusterID type, String data) {
+		return send(encode(type, data));
+	}
+
+	/**
+	 * Encodes a packet of the cluster protocol
+	 * @param type Type of the packet
+	 * @param data Payload of the packet
+	 * @return The encoded packet or null if the payload does not fit in a single packet
+	 */
+	public static Frame encode(ClusterID type, String data) {
+		byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+		return bytes.length > Packet.MAX_SIZE ? null : new Frame(bytes, type.ordinal(), 0);
+	}
+
+	/**
+	 * Queues an encoded packet to the peer. The same frame can be queued to any number of links
+	 * @param frame Packet from encode()
+	 * @return True if the packet was queued, false if the link is closed or too far behind
+	 */
+	public boolean send(Frame frame) {
+		if(!this.open || frame == null) {
+			return false;
+		}
+		if(!this.outbox.offer(frame)) {
+			System.out.println("Cluster link to " + this.remoteID + " is too far behind. Disconnecting.");
+			// The reader thread notices the closed socket and closes the link without the caller's locks
+			this.socket.close();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the packets of the peer until the link is closed
+	 */
+	private void readLoop() {
+		try {
+			while(this.open) {
+				Packet packet = this.socket.readPacket();
+				ClusterID type = ClusterID.of(packet.getHeader().getType());
+				String data = packet.getData() == null ? "" : new String(packet.getData(), StandardCharsets.UTF_8);
+				if(this.remoteID == null) {
+					if(type != ClusterID.HELLO || data.isEmpty()) {
+						break;
+					}
+					this.remoteID = data;
+					if(!this.node.linkUp(this)) {
+						break;
+					}
+				} else if(type != null) {
+					this.node.handle(this, type, data);
+				}
+			}
+		} catch(Exception e) {
+			//
+		}
+		close();
+	}
+
+	/**
+	 * Writes the queued packets until the link is closed
+	 */
+	private void writeLoop() {
+		try {
+			while(this.open) {
+				this.socket.writeFrame(this.outbox.take());
+			}
+		} catch(IOException | InterruptedException e) {
+			//
+		}
+		close();
+	}
+
+	/**
+	 * Closes the link. The node drops the state of the peer if this was its active link
+	 */
+	public void close() {
+		synchronized(this) {
+			if(!this.open) {
+				return;
+			}
+			this.open = false;
+		}
+		this.socket.close();
+		if(this.writer != null) {
+			this.writer.interrupt();
+		}
+		this.node.linkDown(this);
+	}
+}
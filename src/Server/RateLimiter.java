@@ -0,0 +1,179 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import Metrics.Counter;
+import Metrics.MetricsRegistry;
+
+/**
+ * Token bucket rate limiting for the packets of the users. The state of a user's bucket is packed into a single
+ * long on the User, tokens in the high half and the time of the last refill in the low half, and it is updated
+ * with compare-and-set so checking the limit never locks or allocates. Every packet costs one token when it is
+ * received, and broadcasts cost more the more members the target channel has once the channel is known. Configured with ratelimit.enabled, ratelimit.rate (tokens per second), ratelimit.burst,
+ * ratelimit.fanoutWeight (tokens per recipient), ratelimit.action (delay, drop or disconnect) and ratelimit.maxDelayMillis
+ * @author etsubu
+ *
+ */
+public class RateLimiter {
+	/**
+	 * What to do with a packet that exceeds the limit
+	 */
+	public enum Action {
+		DELAY,
+		DROP,
+		DISCONNECT
+	}
+
+	private static final long MILLI = 1000;
+	private static final AtomicLongFieldUpdater<User> STATE = AtomicLongFieldUpdater.newUpdater(User.class, "rateLimitState");
+	private final boolean enabled;
+	private final long ratePerSecond;
+	private final long capacity;
+	private final long fanoutCost;
+	private final Action action;
+	private final long maxDelayMillis;
+	private final long startNanos;
+	private final Counter delayed;
+	private final Counter dropped;
+	private final Counter disconnected;
+
+	/**
+	 * Initializes the rate limiter
+	 * @param config Configuration of the server
+	 * @param registry Registry where the limit counters are registered
+	 */
+	public RateLimiter(ServerConfig config, MetricsRegistry registry) {
+		this.enabled = config.getBoolean("ratelimit.enabled", true);
+		// Tokens and the rate are stored in milli tokens, so fractional rates such as one packet every two seconds work
+		this.ratePerSecond = Math.max(1, Math.min(Integer.MAX_VALUE, Math.round(config.getDouble("ratelimit.rate", 20) * MILLI)));
+		this.capacity = Math.max(1, Math.min(Integer.MAX_VALUE / MILLI, config.getLong("ratelimit.burst", 60))) * MILLI;
+		this.fanoutCost = Math.max(0, Math.round(config.getDouble("ratelimit.fanoutWeight", 0.001) * MILLI));
+		Action configured;
+		try {
+			configured = Action.valueOf(config.getString("ratelimit.action", "delay").toUpperCase());
+		} catch(IllegalArgumentException e) {
+			configured = Action.DELAY;
+		}
+		this.action = configured;
+		this.maxDelayMillis = Math.max(1, config.getLong("ratelimit.maxDelayMillis", 5000));
+		this.startNanos = System.nanoTime();
+		String help = "Packets that exceeded the rate limit";
+		this.delayed = registry.register("javachat_rate_limited_total", help, "action=\"delay\"", new Counter());
+		this.dropped = registry.register("javachat_rate_limited_total", help, "action=\"drop\"", new Counter());
+		this.disconnected = registry.register("javachat_rate_limited_total", help, "action=\"disconnect\"", new Counter());
+	}
+
+	/**
+	 * Getter for the configured action
+	 * @return Action taken when a user exceeds the limit
+	 */
+	public Action getAction() {
+		return this.action;
+	}
+
+	/**
+	 * Current time in milliseconds truncated to 32 bits
+	 * @return Current time
+	 */
+	private int now() {
+		return (int) ((System.nanoTime() - this.startNanos) / 1_000_000L);
+	}
+
+	/**
+	 * Creates the state of a full bucket
+	 * @return Initial state for a new user
+	 */
+	public long initialState() {
+		return pack(this.capacity, now());
+	}
+
+	private static long pack(long tokens, int time) {
+		return (tokens << 32) | (time & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Tries to take tokens from the user's bucket
+	 * @param user User who sent the packet
+	 * @param cost Cost in milli tokens, at most the capacity
+	 * @return 0 if the packet is allowed, otherwise the number of milliseconds until it would be
+	 */
+	private long tryAcquire(User user, long cost) {
+		while(true) {
+			long state = STATE.get(user);
+			long tokens = state >>> 32;
+			int last = (int) state;
+			int now = now();
+			long elapsed = (now - last) & 0xFFFFFFFFL;
+			long available = Math.min(this.capacity, tokens + elapsed * this.ratePerSecond / MILLI);
+			if(available < cost) {
+				return ((cost - available) * MILLI + this.ratePerSecond - 1) / this.ratePerSecond;
+			}
+			if(STATE.compareAndSet(user, state, pack(available - cost, now))) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Charges a received packet, whatever its type and whether it is valid
+	 * @param user User who sent the packet
+	 * @return True if the packet can be processed
+	 */
+	public boolean admit(User user) {
+		return admit(user, MILLI);
+	}
+
+	/**
+	 * Charges the extra cost of a broadcast to a channel, on top of the cost the packet already paid with admit(User)
+	 * @param user User who sent the broadcast
+	 * @param recipients Number of members of the channel
+	 * @return True if the broadcast can be sent
+	 */
+	public boolean admitFanout(User user, int recipients) {
+		return admit(user, Math.min(this.capacity, this.fanoutCost * recipients));
+	}
+
+	/**
+	 * Applies the rate limit to a packet. Depending on the configured action the calling thread waits
+	 * for the tokens, the packet is dropped or the user is disconnected
+	 * @param user User who sent the packet
+	 * @param cost Cost in milli tokens
+	 * @return True if the packet can be processed
+	 */
+	private boolean admit(User user, long cost) {
+		if(!this.enabled || cost == 0) {
+			return true;
+		}
+		long wait = tryAcquire(user, cost);
+		if(wait == 0) {
+			return true;
+		}
+		switch(this.action) {
+		case DELAY:
+			this.delayed.inc();
+			long waited = 0;
+			while(wait > 0 && waited < this.maxDelayMillis) {
+				try {
+					Thread.sleep(wait);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				waited += wait;
+				wait = tryAcquire(user, cost);
+			}
+			if(wait == 0) {
+				return true;
+			}
+			this.dropped.inc();
+			return false;
+		case DROP:
+			this.dropped.inc();
+			return false;
+		default:
+			this.disconnected.inc();
+			user.close("Disconnected for sending messages too fast!");
+			return false;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package Server;
+
+/**
+ * Packet types of the replication stream from a primary server to its standby servers. Like ProtocolID the
+ * ordinals are the type values on the wire so new types must only be added at the end. Payloads are UTF-8 text
+ * with the fields separated by colons
+ * @author etsubu
+ *
+ */
+public enum ReplicationID {
+	/**
+	 * Empty, the standby discards its state and the full state follows
+	 */
+	SNAPSHOT_BEGIN,
+	/**
+	 * NUMBER_OF_SESSIONS, the standby is in sync and changes follow
+	 */
+	SNAPSHOT_END,
+	/**
+	 * TOKEN:NICKNAME, a session was created
+	 */
+	SESSION,
+	/**
+	 * TOKEN, a session expired
+	 */
+	SESSION_REMOVE,
+	/**
+	 * TOKEN:CHANNEL_NAME, the user of the session joined the channel
+	 */
+	JOIN,
+	/**
+	 * TOKEN:CHANNEL_NAME, the user of the session left the channel
+	 */
+	LEAVE,
+	/**
+	 * Empty, sent periodically so the standby notices a primary that stopped responding
+	 */
+	HEARTBEAT,
+	/**
+	 * TOKEN:MILLISECONDS, the user of the session disconnected and the session expires in MILLISECONDS
+	 */
+	DETACH,
+	/**
+	 * TOKEN, the user of the session reconnected
+	 */
+	RESUME;
+
+	private static final ReplicationID[] VALUES = values();
+
+	/**
+	 * Maps a type ID of a packet to the ReplicationID
+	 * @param type Type ID of the packet
+	 * @return The ReplicationID or null if there is no such ID
+	 */
+	public static ReplicationID of(int type) {
+		return (type >= 0 && type < VALUES.length) ? VALUES[type] : null;
+	}
+}
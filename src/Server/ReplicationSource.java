@@ -0,0 +1,188 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ProtocolSocket.Frame;
+import ProtocolSocket.ProtocolSocket;
+
+/**
+ * Streams the sessions of the primary server to standby servers. A standby that connects to replication.port
+ * first receives a snapshot of every session and then every change in order. Heartbeats are sent every
+ * replication.heartbeatMillis so the standby can tell a primary that died from an idle one
+ * @author etsubu
+ *
+ */
+public class ReplicationSource {
+	/**
+	 * Connection to a single standby server. Packets are written by a thread of the link
+	 */
+	static class StandbyLink {
+		private final ReplicationSource source;
+		private final ProtocolSocket socket;
+		private final BlockingQueue<Frame> outbox;
+		private volatile boolean open;
+
+		private StandbyLink(ReplicationSource source, ProtocolSocket socket, int queueSize) {
+			this.source = source;
+			this.socket = socket;
+			this.outbox = new ArrayBlockingQueue<>(Math.max(16, queueSize));
+			this.open = true;
+			Thread writer = new Thread(this::writeLoop, "replication-writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		/**
+		 * Queues a packet to the standby
+		 * @param type Type of the packet
+		 * @param data Payload of the packet
+		 */
+		void send(ReplicationID type, String data) {
+			send(encode(type, data));
+		}
+
+		/**
+		 * Queues an encoded packet to the standby. A standby that falls too far behind is disconnected and
+		 * receives a new snapshot when it reconnects
+		 * @param frame The packet
+		 */
+		void send(Frame frame) {
+			if(this.open && !this.outbox.offer(frame)) {
+				System.out.println("Standby server is too far behind. Disconnecting.");
+				this.socket.close();
+			}
+		}
+
+		private void writeLoop() {
+			try {
+				while(this.open) {
+					this.socket.writeFrame(this.outbox.take());
+				}
+			} catch(IOException | InterruptedException e) {
+				//
+			}
+			this.open = false;
+			this.socket.close();
+			this.source.standbys.remove(this);
+		}
+	}
+
+	private final SessionRegistry sessions;
+	private final String bindAddress;
+	private final int port;
+	private final long heartbeatMillis;
+	private final int queueSize;
+	private final List<StandbyLink> standbys;
+	private ServerSocket server;
+	private ScheduledExecutorService heartbeat;
+	private volatile boolean open;
+
+	/**
+	 * Initializes the replication of the given sessions. Nothing is opened before start()
+	 * @param sessions Sessions to replicate
+	 * @param config Configuration of the server
+	 */
+	public ReplicationSource(SessionRegistry sessions, ServerConfig config) {
+		this.sessions = sessions;
+		this.bindAddress = config.getString("replication.bindAddress", "127.0.0.1");
+		this.port = config.getInt("replication.port", 0);
+		this.heartbeatMillis = Math.max(50, config.getLong("replication.heartbeatMillis", 1000));
+		this.queueSize = config.getInt("replication.queueSize", 65536);
+		this.standbys = new CopyOnWriteArrayList<>();
+		sessions.setReplication(this);
+	}
+
+	/**
+	 * Encodes a packet of the replication stream
+	 * @param type Type of the packet
+	 * @param data Payload of the packet
+	 * @return The encoded packet
+	 */
+	private static Frame encode(ReplicationID type, String data) {
+		return new Frame(data.getBytes(StandardCharsets.UTF_8), type.ordinal(), 0);
+	}
+
+	/**
+	 * Starts accepting standby servers if replication.port is set
+	 * @throws IOException If the port could not be opened
+	 */
+	public void start() throws IOException {
+		if(this.port <= 0 || this.open) {
+			return;
+		}
+		this.open = true;
+		this.server = new ServerSocket(this.port, 50, InetAddress.getByName(this.bindAddress));
+		Thread acceptor = new Thread(this::acceptLoop, "replication-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		this.heartbeat = Executors.newSingleThreadScheduledExecutor(OutboundService.daemonThreads("replication-heartbeat"));
+		this.heartbeat.scheduleAtFixedRate(() -> publish(ReplicationID.HEARTBEAT, ""), this.heartbeatMillis, this.heartbeatMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void acceptLoop() {
+		while(this.open) {
+			try {
+				Socket socket = this.server.accept();
+				socket.setTcpNoDelay(true);
+				System.out.println("Standby server connected from " + socket.getInetAddress().getHostAddress());
+				this.sessions.snapshot(new StandbyLink(this, new ProtocolSocket(socket), this.queueSize));
+			} catch(IOException e) {
+				//
+			}
+		}
+	}
+
+	/**
+	 * Registers a standby that has been sent the snapshot
+	 * @param standby Link of the standby
+	 */
+	void addStandby(StandbyLink standby) {
+		this.standbys.add(standby);
+	}
+
+	/**
+	 * Sends a change to every standby server
+	 * @param type Type of the change
+	 * @param data Payload of the change
+	 */
+	void publish(ReplicationID type, String data) {
+		if(this.standbys.isEmpty()) {
+			return;
+		}
+		Frame frame = encode(type, data);
+		for(StandbyLink standby : this.standbys) {
+			standby.send(frame);
+		}
+	}
+
+	/**
+	 * Stops accepting standby servers and closes the connected ones
+	 */
+	public void stop() {
+		this.open = false;
+		if(this.heartbeat != null) {
+			this.heartbeat.shutdownNow();
+		}
+		if(this.server != null) {
+			try {
+				this.server.close();
+			} catch(IOException e) {
+				//
+			}
+		}
+		for(StandbyLink standby : this.standbys) {
+			standby.socket.close();
+		}
+	}
+}
@@ -1,36 +1,73 @@
 package Server;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.net.ssl.SSLHandshakeException;
 
+import ProtocolSocket.ProtocolListener;
 import ProtocolSocket.ProtocolServerSocket;
 import ProtocolSocket.ProtocolSocket;
+import ProtocolSocket.UnixServerSocket;
 
 /**
- * Hosts the chat server and accepts incoming connections
+ * Hosts the chat server and accepts incoming connections. server.acceptors threads accept connections and each
+ * hands them to its own group of handshake threads. With server.reusePort every acceptor has its own listener
+ * bound with SO_REUSEPORT so the kernel spreads the connections between them, otherwise the acceptors share one
+ * listener. Co-located clients can skip TLS on the plaintext loopback port local.port and the Unix domain socket
+ * local.socketPath, which are served by the same ServerManager
  * @author etsubu
  *
  */
 public class Server{
+	private static final long ACCEPT_RETRY_MILLIS = 10;
 	private int port;
 	private ServerSocket serverSocket;
-	private boolean open;
+	private volatile boolean open;
 	private ServerManager manager;
+	private final List<ProtocolListener> listeners = new CopyOnWriteArrayList<>();
 	
 	/**
 	 * Initializes the server
 	 * @param port Port to bind on
 	 */
 	public Server(int port){
+		this(port, new ServerConfig());
+	}
+	
+	/**
+	 * Initializes the server
+	 * @param port Port to bind on
+	 * @param config Configuration of the server
+	 */
+	public Server(int port, ServerConfig config){
+		this.port = port;
+		this.manager = new ServerManager(config);
+	}
+	
+	/**
+	 * Initializes a server that takes over the sessions of another server
+	 * @param port Port to bind on
+	 * @param config Configuration of the server
+	 * @param sessions Sessions replicated from the previous primary server
+	 */
+	public Server(int port, ServerConfig config, SessionRegistry sessions){
 		this.port = port;
-		this.manager = new ServerManager();
+		this.manager = new ServerManager(config, sessions);
 	}
 	
 	/**
-	 * Starts the server and bind on the given port during initialization
+	 * Starts the server and bind on the given port during initialization. Returns when the server is closed
 	 * @throws IOException When ServerSocket fails to be opened
 	 */
 	public void startServer() throws IOException {
@@ -38,17 +75,171 @@ public class Server{
 			return;
 		}
 		this.open = true;
-		//this.serverSocket = new ServerSocket(this.port);
-		ProtocolServerSocket serverSocket = new ProtocolServerSocket(this.port, true);
+		ServerConfig config = this.manager.getConfig();
+		int acceptors = Math.max(1, config.getInt("server.acceptors", 1));
+		boolean reusePort = config.getBoolean("server.reusePort", false);
+		if(reusePort && !ProtocolServerSocket.isReusePortSupported()) {
+			System.out.println("SO_REUSEPORT is not supported, the acceptors share one listener");
+			reusePort = false;
+		}
+		String bindAddress = config.getString("server.bindAddress", "");
+		InetAddress address = bindAddress.isEmpty() ? null : InetAddress.getByName(bindAddress);
+		int backlog = Math.max(0, config.getInt("server.backlog", 0));
+		int localPort = config.getInt("local.port", 0);
+		String socketPath = config.getString("local.socketPath", "");
+		List<ProtocolServerSocket> tlsListeners = new ArrayList<>();
+		List<ProtocolListener> localListeners = new ArrayList<>();
+		try {
+			for(int i = 0; i < (reusePort ? acceptors : 1); i++) {
+				ProtocolServerSocket listener = new ProtocolServerSocket(address, this.port, true, reusePort, backlog);
+				listener.setMonitor(this.manager.getMetrics());
+				this.listeners.add(listener);
+				tlsListeners.add(listener);
+			}
+			if(localPort > 0) {
+				localListeners.add(new ProtocolServerSocket(InetAddress.getLoopbackAddress(), localPort, false, false, backlog));
+			}
+			if(!socketPath.isEmpty()) {
+				localListeners.add(new UnixServerSocket(Paths.get(socketPath)));
+			}
+			for(ProtocolListener listener : localListeners) {
+				listener.setMonitor(this.manager.getMetrics());
+				this.listeners.add(listener);
+			}
+		} catch(IOException e) {
+			closeListeners();
+			this.open = false;
+			throw e;
+		}
+		this.manager.getMetrics().start(config);
+		this.manager.getCluster().start();
+		this.manager.getReplication().start();
+		int handshakeThreads = Math.max(1, config.getInt("admission.handshakeThreads", Math.max(2, Runtime.getRuntime().availableProcessors())));
+		int groupSize = (handshakeThreads + acceptors - 1) / acceptors;
+		ExecutorService[] handshakes = new ExecutorService[acceptors];
+		List<Thread> threads = new ArrayList<>();
+		for(int i = 0; i < acceptors; i++) {
+			ProtocolServerSocket listener = tlsListeners.get(i % tlsListeners.size());
+			ExecutorService group = Executors.newFixedThreadPool(groupSize, OutboundService.daemonThreads("handshake-" + i));
+			handshakes[i] = group;
+			threads.add(new Thread(() -> acceptLoop(listener, group), "acceptor-" + i));
+		}
+		for(ProtocolListener listener : localListeners) {
+			threads.add(new Thread(() -> acceptLocal(listener), "local-acceptor-" + threads.size()));
+		}
+		for(Thread thread : threads) {
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			try {
+				thread.join();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		for(ExecutorService group : handshakes) {
+			group.shutdownNow();
+		}
+		closeListeners();
+		this.manager.getCluster().stop();
+		this.manager.getReplication().stop();
+		this.manager.getShards().shutdown();
+		this.manager.getFanout().shutdown();
+		this.manager.getTimeouts().stop();
+		this.manager.getMetrics().stop();
+	}
+	
+	/**
+	 * Accepts connections until the server is closed and passes the admitted ones to the handshake group of the acceptor
+	 * @param listener Listener to accept from
+	 * @param handshakes Handshake threads of this acceptor
+	 */
+	private void acceptLoop(ProtocolServerSocket listener, ExecutorService handshakes) {
+		AdmissionControl admission = this.manager.getAdmission();
 		while(this.open) {
-		    try {
-		        ProtocolSocket protoSocket = serverSocket.accept();
-		        this.manager.addUser(protoSocket);
-		    } catch(SSLHandshakeException e) {
-		        // SSLhanshake failed. Probably the client does not trust our certificate
-		    }
+			Socket socket;
+			try {
+				socket = listener.acceptSocket();
+			} catch(IOException e) {
+				// The listener was closed or the accept failed, e.g. the process ran out of file descriptors
+				if(this.open) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(ACCEPT_RETRY_MILLIS));
+				}
+				continue;
+			}
+			AdmissionControl.Ticket ticket = admission.admit(socket.getInetAddress());
+			if(ticket == null) {
+				try {
+					socket.close();
+				} catch(IOException e) {
+					//
+				}
+				continue;
+			}
+			handshakes.execute(() -> handshake(listener, socket, ticket));
 		}
-		serverSocket.close();
+	}
+	
+	/**
+	 * Accepts connections of a trusted local listener until the server is closed. The connections have no handshake
+	 * and are only subject to the server wide admission limits
+	 * @param listener Listener to accept from
+	 */
+	private void acceptLocal(ProtocolListener listener) {
+		AdmissionControl admission = this.manager.getAdmission();
+		while(this.open) {
+			ProtocolSocket protoSocket;
+			try {
+				protoSocket = listener.accept();
+			} catch(IOException e) {
+				if(this.open) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(ACCEPT_RETRY_MILLIS));
+				}
+				continue;
+			}
+			AdmissionControl.Ticket ticket = admission.admit(null);
+			if(ticket == null) {
+				protoSocket.close();
+				continue;
+			}
+			ticket.handshakeFinished();
+			this.manager.addUser(protoSocket, ticket);
+		}
+	}
+	
+	/**
+	 * Completes the handshake of an admitted connection on a handshake thread so a slow client does not
+	 * hold up the accept loop
+	 * @param serverSocket The listening socket
+	 * @param socket The accepted socket
+	 * @param ticket Admission of the connection, released if the handshake fails
+	 */
+	private void handshake(ProtocolServerSocket serverSocket, Socket socket, AdmissionControl.Ticket ticket) {
+		TimingWheel.Timeout deadline = this.manager.getTimeouts().armHandshake(socket);
+		try {
+			ProtocolSocket protoSocket = serverSocket.handshake(socket);
+			ticket.handshakeFinished();
+			this.manager.addUser(protoSocket, ticket);
+		} catch(SSLHandshakeException e) {
+			// SSLhanshake failed. Probably the client does not trust our certificate
+			ticket.release();
+		} catch(IOException e) {
+			// The connection was lost or the handshake deadline passed
+			ticket.release();
+		} finally {
+			ConnectionTimeouts.cancel(deadline);
+		}
+	}
+	
+	/**
+	 * Closes the listeners, which wakes up the acceptors blocked in accept
+	 */
+	private void closeListeners() {
+		for(ProtocolListener listener : this.listeners) {
+			listener.close();
+		}
+		this.listeners.clear();
 	}
 	
 	/**
@@ -56,11 +247,7 @@ public class Server{
 	 */
 	public void closeServer() {
 		this.open = false;
-		try {
-			new Socket("127.0.0.1", this.port).close();
-		} catch (Exception e) {
-		    //
-		}
+		closeListeners();
 		this.manager.closeConnections();
 	}
 }
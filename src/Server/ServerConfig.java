@@ -0,0 +1,131 @@
+package Server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Configuration of the server. Values are read from server.properties in the working directory
+ * and can be overridden with system properties prefixed with "javachat.", e.g. -Djavachat.metrics.httpPort=9100
+ * @author etsubu
+ *
+ */
+public class ServerConfig {
+	public static final String FILE_NAME = "server.properties";
+	public static final String SYSTEM_PROPERTY_PREFIX = "javachat.";
+	private Properties properties;
+
+	/**
+	 * Initializes empty configuration where every value is the default one
+	 */
+	public ServerConfig() {
+		this(new Properties());
+	}
+
+	/**
+	 * Initializes the configuration from the given properties
+	 * @param properties Configuration values
+	 */
+	public ServerConfig(Properties properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * Loads the configuration from server.properties if it exists and applies system property overrides
+	 * @return Loaded configuration
+	 * @throws IOException If the configuration file exists but could not be read
+	 */
+	public static ServerConfig load() throws IOException {
+		Properties properties = new Properties();
+		Path file = Paths.get(System.getProperty("user.dir"), FILE_NAME);
+		if(file.toFile().exists()) {
+			try(InputStream in = new FileInputStream(file.toFile())) {
+				properties.load(in);
+			}
+		}
+		for(String key : System.getProperties().stringPropertyNames()) {
+			if(key.startsWith(SYSTEM_PROPERTY_PREFIX)) {
+				properties.setProperty(key.substring(SYSTEM_PROPERTY_PREFIX.length()), System.getProperty(key));
+			}
+		}
+		return new ServerConfig(properties);
+	}
+
+	/**
+	 * Sets a configuration value
+	 * @param key Key of the value
+	 * @param value The value
+	 */
+	public void set(String key, String value) {
+		this.properties.setProperty(key, value);
+	}
+
+	/**
+	 * Gets a string value
+	 * @param key Key of the value
+	 * @param defaultValue Value to return if the key is not set
+	 * @return Configured value or the default
+	 */
+	public String getString(String key, String defaultValue) {
+		String value = this.properties.getProperty(key);
+		if(value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+
+	/**
+	 * Gets an integer value
+	 * @param key Key of the value
+	 * @param defaultValue Value to return if the key is not set or is not a number
+	 * @return Configured value or the default
+	 */
+	public int getInt(String key, int defaultValue) {
+		try {
+			return Integer.parseInt(getString(key, Integer.toString(defaultValue)));
+		} catch(NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Gets a long value
+	 * @param key Key of the value
+	 * @param defaultValue Value to return if the key is not set or is not a number
+	 * @return Configured value or the default
+	 */
+	public long getLong(String key, long defaultValue) {
+		try {
+			return Long.parseLong(getString(key, Long.toString(defaultValue)));
+		} catch(NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Gets a decimal value
+	 * @param key Key of the value
+	 * @param defaultValue Value to return if the key is not set or is not a number
+	 * @return Configured value or the default
+	 */
+	public double getDouble(String key, double defaultValue) {
+		try {
+			return Double.parseDouble(getString(key, Double.toString(defaultValue)));
+		} catch(NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Gets a boolean value
+	 * @param key Key of the value
+	 * @param defaultValue Value to return if the key is not set
+	 * @return Configured value or the default
+	 */
+	public boolean getBoolean(String key, boolean defaultValue) {
+		return Boolean.parseBoolean(getString(key, Boolean.toString(defaultValue)));
+	}
+}
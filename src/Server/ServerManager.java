@@ -1,12 +1,16 @@
 package Server;
 
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import ProtocolSocket.Frame;
+import ProtocolSocket.Packet;
+import ProtocolSocket.PacketDispatcher;
+import ProtocolSocket.ProtocolID;
 import ProtocolSocket.ProtocolSocket;
 
 /**
@@ -17,41 +21,368 @@ import ProtocolSocket.ProtocolSocket;
 public class ServerManager {
 	public static final int GLOBAL_CHANNEL_ID = 0;
 	private List<User> users;
+	private final Map<String, User> usersByName;
 	private List<Channel> channels;
+	private final Map<String, Channel> channelsByName;
+	private final Channel global;
 	private int channelIndex;
 	private int userIndex;
 	private final Lock userLock;
 	private final Lock channelLock;
+	private final ServerConfig config;
+	private final ServerMetrics metrics;
+	private final PacketDispatcher<User> dispatcher;
+	private final MessageTracer tracer;
+	private final HeavyHitters heavyHitters;
+	private final RateLimiter rateLimiter;
+	private final OutboundService outbound;
+	private final ShardPool shards;
+	private final FanoutPool fanout;
+	private final ConnectionTimeouts timeouts;
+	private final AdmissionControl admission;
+	private final ClusterNode cluster;
+	private final SessionRegistry sessions;
+	private final ReplicationSource replication;
+	private final List<String> adminNicknames;
+	private final long userStackSize;
+	private volatile Frame channelListFrame;
 	
 	/**
-	 * Initializes the ServerManager
+	 * Initializes the ServerManager with default configuration
 	 */
 	public ServerManager() {
+		this(new ServerConfig());
+	}
+	
+	/**
+	 * Initializes the ServerManager
+	 * @param config Configuration of the server
+	 */
+	public ServerManager(ServerConfig config) {
+		this(config, new SessionRegistry(config));
+	}
+	
+	/**
+	 * Initializes the ServerManager with existing sessions, e.g. ones replicated from a primary server.
+	 * The channels of the sessions are created so resuming users find them
+	 * @param config Configuration of the server
+	 * @param sessions Sessions the users can resume
+	 */
+	public ServerManager(ServerConfig config, SessionRegistry sessions) {
+		this.config = config;
+		this.metrics = new ServerMetrics();
+		this.dispatcher = User.createDispatcher(this.metrics.getRegistry());
+		this.tracer = new MessageTracer(config, this.metrics.getRegistry());
+		this.heavyHitters = new HeavyHitters(config, this.metrics.getRegistry());
+		this.metrics.addMBean(HeavyHitters.OBJECT_NAME, this.heavyHitters);
+		this.rateLimiter = new RateLimiter(config, this.metrics.getRegistry());
+		this.outbound = new OutboundService(this, config, this.metrics.getRegistry());
+		this.shards = new ShardPool(config, this.metrics.getRegistry());
+		this.fanout = new FanoutPool(config, this.metrics.getRegistry());
+		this.timeouts = new ConnectionTimeouts(config, this.outbound, this.metrics.getRegistry());
+		this.admission = new AdmissionControl(config, this.outbound, this.metrics.getRegistry());
+		this.cluster = new ClusterNode(this, config, this.metrics.getRegistry());
+		this.sessions = sessions;
+		this.replication = new ReplicationSource(sessions, config);
+		this.userStackSize = Math.max(0, config.getLong("server.userThreadStackKB", 256)) * 1024;
+		this.adminNicknames = new ArrayList<>();
+		for(String nick : config.getString("admin.nicknames", "").split(",")) {
+			if(!nick.trim().isEmpty()) {
+				this.adminNicknames.add(nick.trim().toLowerCase());
+			}
+		}
 		this.users = new ArrayList<User>();
+		this.usersByName = new ConcurrentHashMap<>();
 		this.channels = new ArrayList<Channel>();
+		this.channelsByName = new ConcurrentHashMap<>();
 		this.channelIndex = GLOBAL_CHANNEL_ID;
 		this.userLock  = new ReentrantLock();
 		this.channelLock = new ReentrantLock();
 		
 		//Create the default/global channel
 		createChannel("Global");
+		this.global = this.channelsByName.get("global");
+		for(String name : sessions.getAllChannels()) {
+			createChannel(name);
+		}
+		this.outbound.start();
 	}
 	
 	/**
-	 * Checks if the given nickname is not already used
-	 * @param name the nickname to check
-	 * @return is the nickname available
+	 * Getter for the server configuration
+	 * @return The configuration
 	 */
-	public boolean isAvailableNickname(String name) {
-		this.userLock.lock();
-		String lower = name.toLowerCase();
-		for(User u:this.users) {
-			String userName = u.getName();
-			if(userName != null && userName.toLowerCase().equals(lower)) {
-				return false;
+	public ServerConfig getConfig() {
+		return this.config;
+	}
+	
+	/**
+	 * Getter for the server metrics
+	 * @return The metrics
+	 */
+	public ServerMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * Getter for the handlers of the packets users send. Further packet types are added by registering their handler
+	 * @return The packet dispatcher
+	 */
+	public PacketDispatcher<User> getDispatcher() {
+		return this.dispatcher;
+	}
+	
+	/**
+	 * Getter for the message tracer
+	 * @return The message tracer
+	 */
+	public MessageTracer getTracer() {
+		return this.tracer;
+	}
+	
+	/**
+	 * Getter for the heavy hitter tracker
+	 * @return The heavy hitter tracker
+	 */
+	public HeavyHitters getHeavyHitters() {
+		return this.heavyHitters;
+	}
+	
+	/**
+	 * Getter for the rate limiter of the users' packets
+	 * @return The rate limiter
+	 */
+	public RateLimiter getRateLimiter() {
+		return this.rateLimiter;
+	}
+	
+	/**
+	 * Getter for the writer threads and slow consumer checks of the outbound queues
+	 * @return The outbound service
+	 */
+	public OutboundService getOutbound() {
+		return this.outbound;
+	}
+	
+	/**
+	 * Getter for the shards that own the channels
+	 * @return The shard pool
+	 */
+	public ShardPool getShards() {
+		return this.shards;
+	}
+	
+	/**
+	 * Getter for the pool that delivers to very large channels in parallel
+	 * @return The fan-out pool
+	 */
+	public FanoutPool getFanout() {
+		return this.fanout;
+	}
+	
+	/**
+	 * Getter for the deadlines of the connections
+	 * @return The connection timeouts
+	 */
+	public ConnectionTimeouts getTimeouts() {
+		return this.timeouts;
+	}
+	
+	/**
+	 * Getter for the admission control of new connections
+	 * @return The admission control
+	 */
+	public AdmissionControl getAdmission() {
+		return this.admission;
+	}
+	
+	/**
+	 * Getter for the link of this server to the other nodes of the cluster
+	 * @return The cluster node
+	 */
+	public ClusterNode getCluster() {
+		return this.cluster;
+	}
+	
+	/**
+	 * Getter for the sessions the users can resume
+	 * @return The session registry
+	 */
+	public SessionRegistry getSessions() {
+		return this.sessions;
+	}
+	
+	/**
+	 * Getter for the replication stream to the standby servers
+	 * @return The replication source
+	 */
+	public ReplicationSource getReplication() {
+		return this.replication;
+	}
+	
+	/**
+	 * Creates a snapshot of the connected users
+	 * @return Copy of the list of connected users
+	 */
+	public List<User> getUsers() {
+		lockUsers();
+		List<User> snapshot = new ArrayList<>(this.users);
+		this.userLock.unlock();
+		return snapshot;
+	}
+	
+	/**
+	 * Getter for the encoded list of all visible channels. The frame is rebuilt when channels
+	 * are created or removed and shared by every user it is sent to
+	 * @return LIST_CHANNELS frame
+	 */
+	public Frame getChannelListFrame() {
+		return this.channelListFrame;
+	}
+	
+	/**
+	 * Creates a snapshot of the channels of this server
+	 * @return Copy of the list of channels
+	 */
+	public List<Channel> getChannels() {
+		lockChannels();
+		List<Channel> snapshot = new ArrayList<>(this.channels);
+		this.channelLock.unlock();
+		return snapshot;
+	}
+	
+	/**
+	 * Finds a channel by its name without creating it
+	 * @param name Name of the channel
+	 * @return The channel or null if it does not exist on this server
+	 */
+	public Channel findChannel(String name) {
+		return this.channelsByName.get(name.toLowerCase());
+	}
+	
+	/**
+	 * Finds a connected user by nickname without locking
+	 * @param name Nickname of the user
+	 * @return The user or null if no such user is connected to this server
+	 */
+	public User findUser(String name) {
+		return this.usersByName.get(name.toLowerCase());
+	}
+	
+	/**
+	 * Delivers a private message to the user with the given nickname and echoes it to the sender. Both receive
+	 * FROM:TO:MESSAGE. Users of the other cluster nodes are reached through the cluster. If nobody has the
+	 * nickname or the message does not fit in one packet the sender receives :TO:REASON
+	 * @param from Sender of the message
+	 * @param to Nickname of the recipient
+	 * @param message The message
+	 */
+	public void sendPrivateMessage(User from, String to, String message) {
+		if(Packet.payloadSize(from.getName(), to, message) > Packet.MAX_SIZE) {
+			this.metrics.messageTooLong();
+			from.send(new Frame(":" + to + ":Message is too long", ProtocolID.PRIVATE_MESSAGE));
+			return;
+		}
+		User target = findUser(to);
+		if(target != null) {
+			Frame frame = new Frame(from.getName() + ":" + target.getName() + ":" + message, ProtocolID.PRIVATE_MESSAGE);
+			target.send(frame);
+			if(target != from) {
+				from.send(frame);
 			}
+		} else if(this.cluster.forwardPrivateMessage(from.getName(), to, message)) {
+			from.send(new Frame(from.getName() + ":" + to + ":" + message, ProtocolID.PRIVATE_MESSAGE));
+		} else {
+			from.send(new Frame(":" + to + ":" + to + " is not online", ProtocolID.PRIVATE_MESSAGE));
+		}
+	}
+	
+	/**
+	 * Rebuilds the channel list and sends it to every user. Called when the channels of the other cluster nodes change
+	 */
+	public void channelListChanged() {
+		lockChannels();
+		updateChannelListFrame();
+		this.channelLock.unlock();
+		lockUsers();
+		for(User u:this.users) {
+			u.sendChannelList();
 		}
 		this.userLock.unlock();
+	}
+	
+	/**
+	 * Rebuilds the channel list frame. The list includes the channels that only have members on the other
+	 * cluster nodes. Must be called while holding the channel lock
+	 */
+	private void updateChannelListFrame() {
+		StringBuilder nameBuilder = new StringBuilder();
+		for(Channel c:this.channels) {
+			nameBuilder.append(c.getName() + "\n");
+		}
+		for(String name:this.cluster.getRemoteChannelNames()) {
+			boolean local = false;
+			for(Channel c:this.channels) {
+				local |= c.getName().equalsIgnoreCase(name);
+			}
+			if(!local) {
+				nameBuilder.append(name + "\n");
+			}
+		}
+		this.channelListFrame = new Frame(nameBuilder.substring(0, nameBuilder.length() - 1), ProtocolID.LIST_CHANNELS);
+	}
+	
+	/**
+	 * Checks if the user is allowed to use the administrative requests. Admins are listed in admin.nicknames
+	 * @param user User to check
+	 * @return True if the user is an admin
+	 */
+	public boolean isAdmin(User user) {
+		return user.getName() != null && this.adminNicknames.contains(user.getName().toLowerCase());
+	}
+	
+	/**
+	 * Acquires the user lock and records the time spent waiting for it
+	 */
+	private void lockUsers() {
+		if(this.userLock.tryLock()) {
+			this.metrics.userLockWait(0);
+			return;
+		}
+		long start = System.nanoTime();
+		this.userLock.lock();
+		this.metrics.userLockWait(System.nanoTime() - start);
+	}
+	
+	/**
+	 * Acquires the channel lock and records the time spent waiting for it
+	 */
+	private void lockChannels() {
+		if(this.channelLock.tryLock()) {
+			this.metrics.channelLockWait(0);
+			return;
+		}
+		long start = System.nanoTime();
+		this.channelLock.lock();
+		this.metrics.channelLockWait(System.nanoTime() - start);
+	}
+	
+	/**
+	 * Reserves a nickname for the user if it is not already used on this server or on the other nodes of the cluster.
+	 * The nickname is added to the index used to route private messages
+	 * @param user User who wants the nickname
+	 * @param name the nickname to reserve
+	 * @return was the nickname available
+	 */
+	public boolean reserveNickname(User user, String name) {
+		String lower = name.toLowerCase();
+		if(this.usersByName.putIfAbsent(lower, user) != null) {
+			return false;
+		}
+		if(!this.cluster.claimNickname(name)) {
+			this.usersByName.remove(lower, user);
+			return false;
+		}
 		return true;
 	}
 	
@@ -61,30 +392,47 @@ public class ServerManager {
 	 * @return Was the channel created
 	 */
 	public boolean createChannel(String name){
+		ChannelLifecycleEvent event = new ChannelLifecycleEvent();
+		event.begin();
+		Channel channel = addChannel(name);
+		if(event.shouldCommit()) {
+			event.channelID = channel == null ? -1 : channel.getID();
+			event.channelName = name;
+			event.action = "create";
+			event.success = channel != null;
+			event.commit();
+		}
+		return channel != null;
+	}
+	
+	/**
+	 * Adds a new channel if the name is allowed and does not already exist and notifies the users
+	 * @param name The name of the channel
+	 * @return The created channel or null if it was not created
+	 */
+	private Channel addChannel(String name){
 		String loweredName = name.toLowerCase();
-		this.channelLock.lock();
-		for(Channel c:this.channels) {
-			if(c.getName().toLowerCase().equals(loweredName)) {
-				return false;
-			}
+		lockChannels();
+		if(this.channelsByName.containsKey(loweredName)) {
+			this.channelLock.unlock();
+			return null;
 		}
 		try {
-            this.channels.add(new Channel(name, this.channelIndex, this));
+            Channel channel = new Channel(name, this.channelIndex, this);
+            this.channels.add(channel);
+            this.channelsByName.put(loweredName, channel);
             this.channelIndex++;
+            updateChannelListFrame();
             this.channelLock.unlock();
-            this.userLock.lock();
-            this.users.forEach(x -> {
-                try {
-                    x.sendChannelList();
-                } catch (Exception e1) {
-                    // 
-                } 
-            });
+            this.metrics.channelCreated();
+            lockUsers();
+            this.users.forEach(x -> x.sendChannelList());
             this.userLock.unlock();
-            return true;
+            return channel;
         } catch (InvalidChannelNameException e1) {
             // The channel name was invalid
-            return false;
+            this.channelLock.unlock();
+            return null;
         }
 	}
 	
@@ -97,63 +445,53 @@ public class ServerManager {
 		if(c.getID() == GLOBAL_CHANNEL_ID) {
 			return false;
 		}
+		ChannelLifecycleEvent event = new ChannelLifecycleEvent();
+		event.begin();
 		boolean removed = false;
-		this.channelLock.lock();
+		lockChannels();
 		for(int i = 0;i < this.channels.size();i++) {
 			if(channels.get(i).equals(c)) {
 				this.channels.remove(i);
+				this.channelsByName.remove(c.getName().toLowerCase(), c);
 				removed = true;
+				updateChannelListFrame();
 				break;
 			}
 		}
 		this.channelLock.unlock();
 		if(removed) {
-			this.userLock.lock();
+			this.metrics.channelRemoved();
+			this.tracer.removeChannelTrace(c.getTrace());
+			lockUsers();
 			for(User u:this.users) {
-				try {
-					u.sendChannelList();
-				} catch (Exception e) {
-				    //
-				}
+				u.sendChannelList();
 			}
 			this.userLock.unlock();
 		}
+		if(event.shouldCommit()) {
+			event.channelID = c.getID();
+			event.channelName = c.getName();
+			event.action = "remove";
+			event.success = removed;
+			event.commit();
+		}
 		return removed;
 	}
 	
 	/**
-	 * Gets a channel by the given name and creates it if it does not exist
+	 * Gets a channel by the given name and creates it if it does not exist. Existing channels are found without locking
 	 * @param name Name of the channel
 	 * @return Channel object or null if it does not exist and could not be created
 	 */
-	public synchronized Channel getChannel(String name) {
-		this.channelLock.lock();
-		for(Channel c:this.channels) {
-			if(c.getName().equalsIgnoreCase(name)) {
-				this.channelLock.unlock();
-				return c;
-			}
-		}
-		boolean created = createChannel(name);
-		if(created) {
-			Channel channel = this.channels.get(this.channels.size() - 1);
-			this.channelLock.unlock();
-			return channel;
-		}
-		this.channelLock.unlock();
-		return null;
-	}
-	
-	/**
-	 * Lists the all visible channels and returns them as string object
-	 * @return List of all visible channels
-	 */
-	public synchronized String listChannelNames(){
-		StringBuilder nameBuilder = new StringBuilder();
-		for(int i = 0;i < this.channels.size();i++) {
-			nameBuilder.append(this.channels.get(i).getName() + "\n");
+	public Channel getChannel(String name) {
+		String loweredName = name.toLowerCase();
+		Channel channel = this.channelsByName.get(loweredName);
+		if(channel == null) {
+			// Another thread may create it first, either way it can be found afterwards
+			createChannel(name);
+			channel = this.channelsByName.get(loweredName);
 		}
-		return nameBuilder.toString().substring(0, nameBuilder.length() - 1);
+		return channel;
 	}
 	
 	/**
@@ -161,10 +499,7 @@ public class ServerManager {
 	 * @return The global channel
 	 */
 	public Channel getGlobalChannel(){
-		this.channelLock.lock();
-		Channel global = this.channels.get(GLOBAL_CHANNEL_ID);
-		this.channelLock.unlock();
-		return global;
+		return this.global;
 	}
 	
 	/**
@@ -172,10 +507,21 @@ public class ServerManager {
 	 * @param protoSocket The ProtocolSocket of the client
 	 */
 	public void addUser(ProtocolSocket protoSocket) {
-		this.userLock.lock();
-		User user = new User(this, protoSocket, this.userIndex);
+		addUser(protoSocket, null);
+	}
+	
+	/**
+	 * Adds a new user that was admitted by the AdmissionControl. The ticket is released when the user disconnects
+	 * @param protoSocket The ProtocolSocket of the client
+	 * @param ticket Admission of the connection or null if it was not admitted through AdmissionControl
+	 */
+	public void addUser(ProtocolSocket protoSocket, AdmissionControl.Ticket ticket) {
+		lockUsers();
+		User user = new User(this, protoSocket, this.userIndex, ticket);
 		this.users.add(user);
-		new Thread(user).start();
+		this.metrics.userConnected();
+		// Every connection has a reader thread, so its stack is the largest part of the footprint of an idle connection
+		new Thread(null, user, "user-" + this.userIndex, this.userStackSize).start();
 		this.userIndex++;
 		this.userLock.unlock();
 	}
@@ -185,27 +531,32 @@ public class ServerManager {
 	 * @param user User to be removed
 	 */
 	public void removeUser(User user) {
-		this.userLock.lock();
+		lockUsers();
 		for(int i = 0;i < this.users.size();i++) {
 			if(this.users.get(i).equals(user)) {
 				System.out.println(user.toString() + " Disconnected.");
 				this.users.remove(i);
+				this.metrics.userDisconnected();
 				break;
 			}
 		}
 		this.userLock.unlock();
-		this.channelLock.lock();
-		for(Channel c:this.channels) {
+		if(user.getName() != null) {
+			this.usersByName.remove(user.getName().toLowerCase(), user);
+		}
+		// A channel joined after this is left by User.channelJoined() since the user is no longer alive
+		for(Channel c:user.getJoinedChannels()) {
 			c.userLeave(user);
 		}
-		this.channelLock.unlock();
+		this.cluster.userRemoved(user);
 	}
 	
 	/**
-	 * Disconnects all the connected clients
+	 * Disconnects all the connected clients. The connections are closed by the writer threads once
+	 * the closing message has been written
 	 */
 	public void closeConnections() {
-		this.userLock.lock();
+		lockUsers();
 		for(User u:this.users) {
 			u.close("Server is closing!");
 		}
@@ -0,0 +1,370 @@
+package Server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import Metrics.Counter;
+import Metrics.Gauge;
+import Metrics.Histogram;
+import Metrics.MetricsRegistry;
+import Metrics.PrometheusEndpoint;
+import ProtocolSocket.ProtocolID;
+import ProtocolSocket.SocketMonitor;
+
+/**
+ * Collects the runtime metrics of the server. The metrics are exposed through JMX and optionally
+ * through a local HTTP endpoint in Prometheus text format. All the recording methods are allocation free
+ * @author etsubu
+ *
+ */
+public class ServerMetrics implements ServerMetricsMBean, SocketMonitor {
+	public static final String OBJECT_NAME = "JavaChat:type=ServerMetrics";
+	private static final ProtocolID[] TYPES = ProtocolID.values();
+	private static final String UNKNOWN_TYPE = "UNKNOWN";
+
+	private final MetricsRegistry registry;
+	private final Gauge connectedUsers;
+	private final Gauge channels;
+	private final Counter[] framesIn;
+	private final Counter[] framesOut;
+	private final Counter[] bytesIn;
+	private final Counter[] bytesOut;
+	private final Counter handshakeFailures;
+	private final Counter messagesTooLong;
+	private final Histogram broadcastFanout;
+	private final Histogram writeLatency;
+	private final Histogram handshakeLatency;
+	private final Histogram userLockWait;
+	private final Histogram channelLockWait;
+	private final Map<String, Object> mbeans;
+	private final List<ObjectName> registeredNames;
+	private PrometheusEndpoint endpoint;
+
+	/**
+	 * Initializes the metrics and registers them to a new registry
+	 */
+	public ServerMetrics() {
+		this.registry = new MetricsRegistry();
+		this.mbeans = new LinkedHashMap<>();
+		this.mbeans.put(OBJECT_NAME, this);
+		this.registeredNames = new ArrayList<>();
+		this.connectedUsers = this.registry.register("javachat_connected_users", "Number of connected users", new Gauge());
+		this.channels = this.registry.register("javachat_channels", "Number of existing channels", new Gauge());
+		this.framesIn = new Counter[TYPES.length + 1];
+		this.framesOut = new Counter[TYPES.length + 1];
+		this.bytesIn = new Counter[TYPES.length + 1];
+		this.bytesOut = new Counter[TYPES.length + 1];
+		for(int i = 0; i <= TYPES.length; i++) {
+			String labels = "type=\"" + typeName(i) + "\"";
+			this.framesIn[i] = this.registry.register("javachat_frames_in_total", "Frames received per type", labels, new Counter());
+			this.framesOut[i] = this.registry.register("javachat_frames_out_total", "Frames sent per type", labels, new Counter());
+			this.bytesIn[i] = this.registry.register("javachat_bytes_in_total", "Bytes received per type", labels, new Counter());
+			this.bytesOut[i] = this.registry.register("javachat_bytes_out_total", "Bytes sent per type", labels, new Counter());
+		}
+		this.handshakeFailures = this.registry.register("javachat_handshake_failures_total", "Failed TLS handshakes", new Counter());
+		this.messagesTooLong = this.registry.register("javachat_messages_too_long_total", "Chat messages rejected because they do not fit in one packet", new Counter());
+		this.broadcastFanout = this.registry.register("javachat_broadcast_fanout", "Recipients per channel broadcast",
+				new Histogram(Histogram.exponentialBounds(1, 2.0, 18), 1.0));
+		this.writeLatency = this.registry.register("javachat_write_seconds", "Duration of a socket write and flush, which can carry several frames", Histogram.latencyNanos());
+		this.handshakeLatency = this.registry.register("javachat_handshake_seconds", "Duration of TLS handshakes", Histogram.latencyNanos());
+		this.userLockWait = this.registry.register("javachat_lock_wait_seconds", "Time spent waiting for ServerManager locks",
+				"lock=\"userLock\"", Histogram.latencyNanos());
+		this.channelLockWait = this.registry.register("javachat_lock_wait_seconds", "Time spent waiting for ServerManager locks",
+				"lock=\"channelLock\"", Histogram.latencyNanos());
+	}
+
+	/**
+	 * Maps a type ID to its name
+	 * @param type Type ID of the packet
+	 * @return Name of the ProtocolID
+	 */
+	private static String typeName(int type) {
+		return type < TYPES.length ? TYPES[type].name() : UNKNOWN_TYPE;
+	}
+
+	/**
+	 * Maps a type ID to the index of the per type counters
+	 * @param type Type ID of the packet
+	 * @return Index to the counters
+	 */
+	private static int typeIndex(int type) {
+		return (type >= 0 && type < TYPES.length) ? type : TYPES.length;
+	}
+
+	/**
+	 * Adds an MBean that is registered together with the metrics when they are started
+	 * @param objectName Object name of the MBean
+	 * @param mbean The MBean
+	 */
+	public void addMBean(String objectName, Object mbean) {
+		this.mbeans.put(objectName, mbean);
+	}
+	
+	/**
+	 * Starts exposing the metrics as configured
+	 * @param config Server configuration. metrics.jmx enables the MBean and metrics.httpPort the local HTTP endpoint
+	 */
+	public void start(ServerConfig config) {
+		if(config.getBoolean("metrics.jmx", true)) {
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			for(Map.Entry<String, Object> mbean : this.mbeans.entrySet()) {
+				try {
+					ObjectName name = new ObjectName(mbean.getKey());
+					if(!mbeanServer.isRegistered(name)) {
+						mbeanServer.registerMBean(mbean.getValue(), name);
+						this.registeredNames.add(name);
+					}
+				} catch(JMException e) {
+					System.out.println("Failed to register MBean " + mbean.getKey() + ": " + e.getMessage());
+				}
+			}
+		}
+		int httpPort = config.getInt("metrics.httpPort", 0);
+		if(httpPort > 0) {
+			this.endpoint = new PrometheusEndpoint(this.registry);
+			try {
+				this.endpoint.start(httpPort);
+				System.out.println("Serving metrics on http://127.0.0.1:" + httpPort + "/metrics");
+			} catch(IOException e) {
+				System.out.println("Failed to open metrics endpoint: " + e.getMessage());
+				this.endpoint = null;
+			}
+		}
+	}
+
+	/**
+	 * Stops exposing the metrics
+	 */
+	public void stop() {
+		if(this.endpoint != null) {
+			this.endpoint.stop();
+			this.endpoint = null;
+		}
+		for(ObjectName name : this.registeredNames) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch(JMException e) {
+				//
+			}
+		}
+		this.registeredNames.clear();
+	}
+
+	/**
+	 * Getter for the registry so other components can register their own metrics
+	 * @return The metrics registry
+	 */
+	public MetricsRegistry getRegistry() {
+		return this.registry;
+	}
+
+	/**
+	 * Called when a user has connected
+	 */
+	public void userConnected() {
+		this.connectedUsers.inc();
+	}
+
+	/**
+	 * Called when a user has disconnected
+	 */
+	public void userDisconnected() {
+		this.connectedUsers.dec();
+	}
+
+	/**
+	 * Called when a channel has been created
+	 */
+	public void channelCreated() {
+		this.channels.inc();
+	}
+
+	/**
+	 * Called when a channel has been removed
+	 */
+	public void channelRemoved() {
+		this.channels.dec();
+	}
+
+	/**
+	 * Records the number of recipients of a channel broadcast
+	 * @param recipients Number of recipients
+	 */
+	public void broadcast(int recipients) {
+		this.broadcastFanout.record(recipients);
+	}
+
+	/**
+	 * Called when a chat message was rejected because it does not fit in one packet
+	 */
+	public void messageTooLong() {
+		this.messagesTooLong.inc();
+	}
+
+	/**
+	 * Records time spent waiting for the user lock
+	 * @param nanos Wait time in nanoseconds
+	 */
+	public void userLockWait(long nanos) {
+		this.userLockWait.record(nanos);
+	}
+
+	/**
+	 * Records time spent waiting for the channel lock
+	 * @param nanos Wait time in nanoseconds
+	 */
+	public void channelLockWait(long nanos) {
+		this.channelLockWait.record(nanos);
+	}
+
+	@Override
+	public void packetRead(int type, int size) {
+		int index = typeIndex(type);
+		this.framesIn[index].inc();
+		this.bytesIn[index].add(size);
+	}
+
+	@Override
+	public void packetWritten(int type, int size) {
+		int index = typeIndex(type);
+		this.framesOut[index].inc();
+		this.bytesOut[index].add(size);
+	}
+
+	@Override
+	public void writeFlushed(long nanos) {
+		this.writeLatency.record(nanos);
+	}
+
+	@Override
+	public void handshakeCompleted(long nanos, boolean success) {
+		this.handshakeLatency.record(nanos);
+		if(!success) {
+			this.handshakeFailures.inc();
+		}
+	}
+
+	/**
+	 * Sums the given counters
+	 * @param counters Counters to sum
+	 * @return Sum of the counters
+	 */
+	private static long sum(Counter[] counters) {
+		long sum = 0;
+		for(Counter c : counters) {
+			sum += c.get();
+		}
+		return sum;
+	}
+
+	/**
+	 * Formats the per type counters
+	 * @param counters Counters to format
+	 * @return TYPE=count entries for the non zero counters
+	 */
+	private static String[] byType(Counter[] counters) {
+		int nonZero = 0;
+		for(Counter c : counters) {
+			if(c.get() != 0) {
+				nonZero++;
+			}
+		}
+		String[] entries = new String[nonZero];
+		int index = 0;
+		for(int i = 0; i < counters.length && index < nonZero; i++) {
+			long value = counters[i].get();
+			if(value != 0) {
+				entries[index++] = typeName(i) + "=" + value;
+			}
+		}
+		return entries;
+	}
+
+	@Override
+	public long getConnectedUsers() {
+		return this.connectedUsers.get();
+	}
+
+	@Override
+	public long getChannels() {
+		return this.channels.get();
+	}
+
+	@Override
+	public long getFramesIn() {
+		return sum(this.framesIn);
+	}
+
+	@Override
+	public long getFramesOut() {
+		return sum(this.framesOut);
+	}
+
+	@Override
+	public long getBytesIn() {
+		return sum(this.bytesIn);
+	}
+
+	@Override
+	public long getBytesOut() {
+		return sum(this.bytesOut);
+	}
+
+	@Override
+	public String[] getFramesInByType() {
+		return byType(this.framesIn);
+	}
+
+	@Override
+	public String[] getFramesOutByType() {
+		return byType(this.framesOut);
+	}
+
+	@Override
+	public double getMeanBroadcastFanout() {
+		return this.broadcastFanout.getMean();
+	}
+
+	@Override
+	public double getMeanWriteLatencyMicros() {
+		return this.writeLatency.getMean() / 1000.0;
+	}
+
+	@Override
+	public double getP99WriteLatencyMicros() {
+		return this.writeLatency.getPercentile(99) / 1000.0;
+	}
+
+	@Override
+	public double getMeanHandshakeLatencyMicros() {
+		return this.handshakeLatency.getMean() / 1000.0;
+	}
+
+	@Override
+	public long getHandshakeFailures() {
+		return this.handshakeFailures.get();
+	}
+
+	@Override
+	public double getMeanUserLockWaitMicros() {
+		return this.userLockWait.getMean() / 1000.0;
+	}
+
+	@Override
+	public double getMeanChannelLockWaitMicros() {
+		return this.channelLockWait.getMean() / 1000.0;
+	}
+
+	@Override
+	public String scrape() {
+		return this.registry.scrape();
+	}
+}
@@ -0,0 +1,90 @@
+package Server;
+
+/**
+ * JMX management interface of the server metrics
+ * @author etsubu
+ *
+ */
+public interface ServerMetricsMBean {
+
+	/**
+	 * @return Number of currently connected users
+	 */
+	public long getConnectedUsers();
+
+	/**
+	 * @return Number of currently existing channels
+	 */
+	public long getChannels();
+
+	/**
+	 * @return Total number of frames received
+	 */
+	public long getFramesIn();
+
+	/**
+	 * @return Total number of frames sent
+	 */
+	public long getFramesOut();
+
+	/**
+	 * @return Total number of bytes received
+	 */
+	public long getBytesIn();
+
+	/**
+	 * @return Total number of bytes sent
+	 */
+	public long getBytesOut();
+
+	/**
+	 * @return Received frames per ProtocolID as TYPE=count entries
+	 */
+	public String[] getFramesInByType();
+
+	/**
+	 * @return Sent frames per ProtocolID as TYPE=count entries
+	 */
+	public String[] getFramesOutByType();
+
+	/**
+	 * @return Mean number of recipients per broadcast
+	 */
+	public double getMeanBroadcastFanout();
+
+	/**
+	 * @return Mean duration of a single write in microseconds
+	 */
+	public double getMeanWriteLatencyMicros();
+
+	/**
+	 * @return 99th percentile of the write duration in microseconds
+	 */
+	public double getP99WriteLatencyMicros();
+
+	/**
+	 * @return Mean duration of a TLS handshake in microseconds
+	 */
+	public double getMeanHandshakeLatencyMicros();
+
+	/**
+	 * @return Number of failed TLS handshakes
+	 */
+	public long getHandshakeFailures();
+
+	/**
+	 * @return Mean time spent waiting for the user lock in microseconds
+	 */
+	public double getMeanUserLockWaitMicros();
+
+	/**
+	 * @return Mean time spent waiting for the channel lock in microseconds
+	 */
+	public double getMeanChannelLockWaitMicros();
+
+	/**
+	 * Renders all metrics in Prometheus text format
+	 * @return The metrics as text
+	 */
+	public String scrape();
+}
@@ -0,0 +1,312 @@
+package Server;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sessions of the users. A session is identified by a random token that the client receives after choosing its
+ * nickname and remembers the channels the user has joined. A client that reconnects with the token gets its nickname
+ * and channels back in one round-trip. Sessions of disconnected users are kept for session.ttlSeconds and their
+ * nicknames cannot be taken by other users meanwhile.
+ * Every change is published to the ReplicationSource so a standby server can take over the sessions
+ * @author etsubu
+ *
+ */
+public class SessionRegistry {
+	/**
+	 * Session of a single user
+	 */
+	public static class Session {
+		private final String token;
+		private final String nickname;
+		private final Set<String> channels;
+		private long expiresAt;
+
+		private Session(String token, String nickname) {
+			this.token = token;
+			this.nickname = nickname;
+			this.channels = new LinkedHashSet<>();
+		}
+
+		/**
+		 * Getter for the token of the session
+		 * @return The token
+		 */
+		public String getToken() {
+			return this.token;
+		}
+
+		/**
+		 * Getter for the nickname of the session
+		 * @return The nickname
+		 */
+		public String getNickname() {
+			return this.nickname;
+		}
+	}
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private final Map<String, Session> sessions;
+	private final Map<String, Session> byNickname;
+	private final long ttlNanos;
+	private ReplicationSource replication;
+
+	/**
+	 * Initializes an empty registry
+	 * @param config Configuration of the server
+	 */
+	public SessionRegistry(ServerConfig config) {
+		this.sessions = new HashMap<>();
+		this.byNickname = new HashMap<>();
+		this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(1, config.getLong("session.ttlSeconds", 300)));
+	}
+
+	/**
+	 * Sets the replication stream the changes are published to
+	 * @param replication The replication source
+	 */
+	synchronized void setReplication(ReplicationSource replication) {
+		this.replication = replication;
+	}
+
+	/**
+	 * Publishes a change to the standby servers. Called while synchronized so the stream follows the order of the changes
+	 * @param type Type of the change
+	 * @param data Payload of the change
+	 */
+	private void publish(ReplicationID type, String data) {
+		if(this.replication != null) {
+			this.replication.publish(type, data);
+		}
+	}
+
+	/**
+	 * Creates a new session for a user
+	 * @param nickname Nickname of the user
+	 * @return The session
+	 */
+	public synchronized Session create(String nickname) {
+		purgeExpired();
+		byte[] bytes = new byte[16];
+		RANDOM.nextBytes(bytes);
+		Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), nickname);
+		add(session);
+		publish(ReplicationID.SESSION, session.token + ":" + nickname);
+		return session;
+	}
+	
+	/**
+	 * Adds a session to the maps
+	 * @param session The session
+	 */
+	private void add(Session session) {
+		this.sessions.put(session.token, session);
+		this.byNickname.put(session.nickname.toLowerCase(), session);
+	}
+	
+	/**
+	 * Removes a session from the maps
+	 * @param session The session
+	 */
+	private void remove(Session session) {
+		this.sessions.remove(session.token);
+		this.byNickname.remove(session.nickname.toLowerCase(), session);
+	}
+	
+	/**
+	 * Checks whether a nickname belongs to the session of a disconnected user that can still be resumed
+	 * @param nickname The nickname
+	 * @return True if only the owner of the session can take the nickname
+	 */
+	public synchronized boolean isReserved(String nickname) {
+		Session session = this.byNickname.get(nickname.toLowerCase());
+		return session != null && session.expiresAt != 0 && session.expiresAt - System.nanoTime() > 0;
+	}
+
+	/**
+	 * Finds a session that can be resumed and attaches it to a connection
+	 * @param token Token given by the client
+	 * @return The session or null if the token is unknown or expired
+	 */
+	public synchronized Session resume(String token) {
+		Session session = this.sessions.get(token);
+		if(session == null || (session.expiresAt != 0 && session.expiresAt - System.nanoTime() < 0)) {
+			return null;
+		}
+		if(session.expiresAt != 0) {
+			session.expiresAt = 0;
+			publish(ReplicationID.RESUME, token);
+		}
+		return session;
+	}
+
+	/**
+	 * Called when the connection of the session is closed. The session expires after session.ttlSeconds
+	 * @param session The session
+	 */
+	public synchronized void detach(Session session) {
+		if(this.sessions.get(session.token) == session) {
+			session.expiresAt = System.nanoTime() + this.ttlNanos;
+			publish(ReplicationID.DETACH, session.token + ":" + TimeUnit.NANOSECONDS.toMillis(this.ttlNanos));
+		}
+	}
+
+	/**
+	 * Records that the user of the session joined a channel
+	 * @param session The session
+	 * @param channelName Name of the channel
+	 */
+	public synchronized void joined(Session session, String channelName) {
+		if(session.channels.add(channelName)) {
+			publish(ReplicationID.JOIN, session.token + ":" + channelName);
+		}
+	}
+
+	/**
+	 * Records that the user of the session left a channel
+	 * @param session The session
+	 * @param channelName Name of the channel
+	 */
+	public synchronized void left(Session session, String channelName) {
+		if(session.channels.remove(channelName)) {
+			publish(ReplicationID.LEAVE, session.token + ":" + channelName);
+		}
+	}
+
+	/**
+	 * Getter for the channels of a session
+	 * @param session The session
+	 * @return Names of the joined channels
+	 */
+	public synchronized List<String> getChannels(Session session) {
+		return new ArrayList<>(session.channels);
+	}
+
+	/**
+	 * Collects the channels of every session
+	 * @return Names of the channels, each listed once
+	 */
+	public synchronized Set<String> getAllChannels() {
+		Set<String> names = new LinkedHashSet<>();
+		for(Session session : this.sessions.values()) {
+			names.addAll(session.channels);
+		}
+		return names;
+	}
+
+	/**
+	 * Removes the sessions that have expired
+	 */
+	private void purgeExpired() {
+		long now = System.nanoTime();
+		Iterator<Session> iterator = this.sessions.values().iterator();
+		while(iterator.hasNext()) {
+			Session session = iterator.next();
+			if(session.expiresAt != 0 && session.expiresAt - now < 0) {
+				iterator.remove();
+				this.byNickname.remove(session.nickname.toLowerCase(), session);
+				publish(ReplicationID.SESSION_REMOVE, session.token);
+			}
+		}
+	}
+
+	/**
+	 * Writes the whole registry to a standby server and registers it for the following changes
+	 * @param standby Link of the standby server
+	 */
+	synchronized void snapshot(ReplicationSource.StandbyLink standby) {
+		standby.send(ReplicationID.SNAPSHOT_BEGIN, "");
+		long now = System.nanoTime();
+		for(Session session : this.sessions.values()) {
+			standby.send(ReplicationID.SESSION, session.token + ":" + session.nickname);
+			for(String channel : session.channels) {
+				standby.send(ReplicationID.JOIN, session.token + ":" + channel);
+			}
+			if(session.expiresAt != 0) {
+				long remaining = Math.max(0, TimeUnit.NANOSECONDS.toMillis(session.expiresAt - now));
+				standby.send(ReplicationID.DETACH, session.token + ":" + remaining);
+			}
+		}
+		standby.send(ReplicationID.SNAPSHOT_END, Integer.toString(this.sessions.size()));
+		this.replication.addStandby(standby);
+	}
+
+	/**
+	 * Applies a change received from the primary server. Used by the standby server
+	 * @param type Type of the change
+	 * @param data Payload of the change
+	 */
+	synchronized void apply(ReplicationID type, String data) {
+		int index = data.indexOf(':');
+		switch(type) {
+		case SNAPSHOT_BEGIN:
+			this.sessions.clear();
+			this.byNickname.clear();
+			break;
+		case SESSION:
+			add(new Session(data.substring(0, index), data.substring(index + 1)));
+			break;
+		case SESSION_REMOVE:
+			Session removed = this.sessions.get(data);
+			if(removed != null) {
+				remove(removed);
+			}
+			break;
+		case JOIN:
+		case LEAVE:
+			Session session = this.sessions.get(data.substring(0, index));
+			if(session != null && type == ReplicationID.JOIN) {
+				session.channels.add(data.substring(index + 1));
+			} else if(session != null) {
+				session.channels.remove(data.substring(index + 1));
+			}
+			break;
+		case DETACH:
+			Session detached = this.sessions.get(data.substring(0, index));
+			if(detached != null) {
+				// The remaining time is sent instead of a timestamp so the clocks of the servers do not matter
+				detached.expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(data.substring(index + 1)));
+			}
+			break;
+		case RESUME:
+			Session resumed = this.sessions.get(data);
+			if(resumed != null) {
+				resumed.expiresAt = 0;
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Called when a standby server takes over. The sessions that were connected to the primary are detached so they
+	 * expire unless their clients reconnect. Sessions that were already detached keep their expiry time and the
+	 * expired ones are removed
+	 */
+	synchronized void takeOver() {
+		purgeExpired();
+		long expiresAt = System.nanoTime() + this.ttlNanos;
+		for(Session session : this.sessions.values()) {
+			if(session.expiresAt == 0) {
+				session.expiresAt = expiresAt;
+			}
+		}
+	}
+
+	/**
+	 * Getter for the number of sessions
+	 * @return Number of sessions, including the ones of disconnected users
+	 */
+	public synchronized int size() {
+		return this.sessions.size();
+	}
+}
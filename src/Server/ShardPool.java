@@ -0,0 +1,122 @@
+package Server;
+
+import java.util.concurrent.locks.LockSupport;
+
+import Metrics.Gauge;
+import Metrics.MetricsRegistry;
+
+/**
+ * Event-loop threads that own the channels. Every channel is bound to one shard by the hash of its ID and all of
+ * its joins, leaves and broadcasts run on that shard's thread in the order they were submitted, so a channel needs
+ * no locks and channels on different shards never contend. Work is handed to a shard through a lock-free queue.
+ * Configured with shards.count, which defaults to the number of cores
+ * @author etsubu
+ *
+ */
+public class ShardPool {
+	/**
+	 * Single event-loop thread and its task queue
+	 */
+	public static class Shard implements Runnable {
+		private final MpscQueue<Runnable> tasks;
+		private final Gauge pending;
+		private final Thread thread;
+		private volatile boolean sleeping;
+		private volatile boolean running;
+
+		private Shard(int index, Gauge pending) {
+			this.tasks = new MpscQueue<>();
+			this.pending = pending;
+			this.running = true;
+			this.thread = new Thread(this, "shard-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		/**
+		 * Submits a task to run on the shard. Can be called from any thread, tasks run in the order they were submitted
+		 * @param task Task to run
+		 */
+		public void execute(Runnable task) {
+			this.pending.inc();
+			this.tasks.offer(task);
+			if(this.sleeping) {
+				LockSupport.unpark(this.thread);
+			}
+		}
+
+		/**
+		 * Checks if the calling thread is the thread of this shard
+		 * @return True if called from the shard
+		 */
+		public boolean inShard() {
+			return Thread.currentThread() == this.thread;
+		}
+
+		@Override
+		public void run() {
+			while(this.running) {
+				Runnable task = this.tasks.poll();
+				if(task == null) {
+					this.sleeping = true;
+					// A producer that saw sleeping == false has already made its task visible
+					if(this.tasks.isEmpty()) {
+						LockSupport.park(this);
+					}
+					this.sleeping = false;
+					continue;
+				}
+				this.pending.dec();
+				try {
+					task.run();
+				} catch(RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private final Shard[] shards;
+
+	/**
+	 * Starts the shard threads
+	 * @param config Configuration of the server
+	 * @param registry Registry where the queue lengths of the shards are registered
+	 */
+	public ShardPool(ServerConfig config, MetricsRegistry registry) {
+		int count = Math.max(1, config.getInt("shards.count", Runtime.getRuntime().availableProcessors()));
+		this.shards = new Shard[count];
+		for(int i = 0; i < count; i++) {
+			Gauge pending = registry.register("javachat_shard_pending_tasks", "Tasks waiting in the queue of a shard", "shard=\"" + i + "\"", new Gauge());
+			this.shards[i] = new Shard(i, pending);
+			this.shards[i].thread.start();
+		}
+	}
+
+	/**
+	 * Chooses the shard of a channel
+	 * @param channelID ID of the channel
+	 * @return The shard that owns the channel
+	 */
+	public Shard shardFor(int channelID) {
+		int h = channelID * 0x9E3779B9;
+		return this.shards[((h ^ (h >>> 16)) & Integer.MAX_VALUE) % this.shards.length];
+	}
+
+	/**
+	 * Getter for the number of shards
+	 * @return Number of shard threads
+	 */
+	public int size() {
+		return this.shards.length;
+	}
+
+	/**
+	 * Stops the shard threads after their current task
+	 */
+	public void shutdown() {
+		for(Shard shard : this.shards) {
+			shard.running = false;
+			LockSupport.unpark(shard.thread);
+		}
+	}
+}
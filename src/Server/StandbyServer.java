@@ -0,0 +1,103 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import ProtocolSocket.IllegalHeaderException;
+import ProtocolSocket.Packet;
+import ProtocolSocket.ProtocolSocket;
+
+/**
+ * Warm standby of a primary server. Follows the replication stream of the primary given in replication.primary
+ * and keeps a copy of its sessions. When the primary has been unreachable for replication.failoverMillis the
+ * standby takes over: it starts listening on the client port and reconnecting clients resume their sessions.
+ * A standby only takes over once it has received a whole snapshot of the primary's sessions, so a standby that
+ * was started with a wrong address or before its primary does not start serving with no sessions
+ * @author etsubu
+ *
+ */
+public class StandbyServer {
+	private final String host;
+	private final int port;
+	private final long failoverMillis;
+	private final SessionRegistry sessions;
+	private boolean synced;
+	private boolean snapshotReceived;
+
+	/**
+	 * Initializes the standby
+	 * @param config Configuration of the server, replication.primary must be HOST:PORT of the primary's replication port
+	 */
+	public StandbyServer(ServerConfig config) {
+		String primary = config.getString("replication.primary", "");
+		int index = primary.lastIndexOf(':');
+		if(index <= 0) {
+			throw new IllegalArgumentException("replication.primary must be HOST:PORT");
+		}
+		this.host = primary.substring(0, index);
+		this.port = Integer.parseInt(primary.substring(index + 1));
+		this.failoverMillis = Math.max(100, config.getLong("replication.failoverMillis", 3000));
+		this.sessions = new SessionRegistry(config);
+	}
+
+	/**
+	 * Follows the primary until it has been unreachable for replication.failoverMillis. A standby that has not
+	 * received a snapshot yet keeps waiting for the primary
+	 * @return The replicated sessions to start the server with
+	 */
+	public SessionRegistry awaitFailover() {
+		long lastContact = System.currentTimeMillis();
+		while(!this.snapshotReceived || System.currentTimeMillis() - lastContact < this.failoverMillis) {
+			try(Socket socket = new Socket()) {
+				socket.connect(new InetSocketAddress(this.host, this.port), (int) this.failoverMillis);
+				socket.setSoTimeout((int) this.failoverMillis);
+				System.out.println("Following the primary server at " + this.host + ":" + this.port);
+				follow(new ProtocolSocket(socket));
+			} catch(IOException e) {
+				// Connection lost or not yet established
+			}
+			if(this.synced) {
+				lastContact = System.currentTimeMillis();
+				this.synced = false;
+				System.out.println("Lost the primary server");
+			}
+			try {
+				Thread.sleep(Math.min(500, this.failoverMillis / 4));
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		System.out.println("Taking over with " + this.sessions.size() + " sessions");
+		this.sessions.takeOver();
+		return this.sessions;
+	}
+
+	/**
+	 * Applies the replication stream until the connection is lost
+	 * @param socket Connection to the primary
+	 * @throws IOException If the connection is lost or the primary stops sending heartbeats
+	 */
+	private void follow(ProtocolSocket socket) throws IOException {
+		try {
+			while(true) {
+				Packet packet = socket.readPacket();
+				ReplicationID type = ReplicationID.of(packet.getHeader().getType());
+				if(type == null || type == ReplicationID.HEARTBEAT) {
+					continue;
+				}
+				if(type == ReplicationID.SNAPSHOT_END) {
+					this.synced = true;
+					this.snapshotReceived = true;
+					System.out.println("Standby is in sync with " + this.sessions.size() + " sessions");
+					continue;
+				}
+				this.sessions.apply(type, packet.getData() == null ? "" : new String(packet.getData(), StandardCharsets.UTF_8));
+			}
+		} catch(IllegalHeaderException e) {
+			throw new IOException(e);
+		}
+	}
+}
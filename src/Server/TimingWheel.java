@@ -0,0 +1,204 @@
+package Server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel. Deadlines are hashed by their tick into a ring of buckets and a single thread advances the
+ * wheel one bucket per tick, so arming and cancelling a timeout are O(1) no matter how many are pending. Timeouts are
+ * handed to the wheel thread through lock-free queues and a deadline fires up to one tick late. Tasks run on the
+ * wheel thread and must be short
+ * @author etsubu
+ *
+ */
+public class TimingWheel implements Runnable {
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	/**
+	 * Handle of a scheduled task
+	 */
+	public final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state;
+		private long rounds;
+		private Bucket bucket;
+		private Timeout previous;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+			this.state = new AtomicInteger(PENDING);
+		}
+
+		/**
+		 * Cancels the task if it has not run yet. Can be called from any thread
+		 * @return True if the task was cancelled, false if it has already run or been cancelled
+		 */
+		public boolean cancel() {
+			if(!this.state.compareAndSet(PENDING, CANCELLED)) {
+				return false;
+			}
+			cancelled.offer(this);
+			return true;
+		}
+	}
+
+	/**
+	 * Doubly linked list of the timeouts hashed to one slot of the wheel. Only used by the wheel thread
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		private void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.previous = this.tail;
+			if(this.tail == null) {
+				this.head = timeout;
+			} else {
+				this.tail.next = timeout;
+			}
+			this.tail = timeout;
+		}
+
+		private void remove(Timeout timeout) {
+			if(timeout.previous == null) {
+				this.head = timeout.next;
+			} else {
+				timeout.previous.next = timeout.next;
+			}
+			if(timeout.next == null) {
+				this.tail = timeout.previous;
+			} else {
+				timeout.next.previous = timeout.previous;
+			}
+			timeout.bucket = null;
+			timeout.previous = null;
+			timeout.next = null;
+		}
+	}
+
+	private final Bucket[] buckets;
+	private final int mask;
+	private final long tickNanos;
+	private final long start;
+	private final MpscQueue<Timeout> scheduled;
+	private final MpscQueue<Timeout> cancelled;
+	private final Thread thread;
+	private volatile boolean running;
+	private long tick;
+
+	/**
+	 * Starts the wheel thread
+	 * @param name Name of the wheel thread
+	 * @param tickMillis Length of a tick, the precision of the deadlines
+	 * @param wheelSize Number of buckets, rounded up to a power of two
+	 */
+	public TimingWheel(String name, long tickMillis, int wheelSize) {
+		int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+		this.buckets = new Bucket[size];
+		for(int i = 0; i < size; i++) {
+			this.buckets[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		this.start = System.nanoTime();
+		this.scheduled = new MpscQueue<>();
+		this.cancelled = new MpscQueue<>();
+		this.running = true;
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Schedules a task to run after the delay. Can be called from any thread
+	 * @param task Task to run on the wheel thread
+	 * @param delayMillis Delay in milliseconds
+	 * @return Handle that cancels the task
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(task, System.nanoTime() - this.start + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+		this.scheduled.offer(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the wheel thread. Pending tasks do not run
+	 */
+	public void stop() {
+		this.running = false;
+		LockSupport.unpark(this.thread);
+	}
+
+	@Override
+	public void run() {
+		while(this.running) {
+			long wait = this.start + (this.tick + 1) * this.tickNanos - System.nanoTime();
+			if(wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			addScheduled();
+			removeCancelled();
+			expire(this.buckets[(int) (this.tick & this.mask)]);
+			this.tick++;
+		}
+	}
+
+	/**
+	 * Hashes the newly scheduled timeouts to their buckets
+	 */
+	private void addScheduled() {
+		Timeout timeout;
+		while((timeout = this.scheduled.poll()) != null) {
+			if(timeout.state.get() != PENDING) {
+				continue;
+			}
+			long ticks = Math.max(timeout.deadline / this.tickNanos, this.tick);
+			timeout.rounds = (ticks - this.tick) / this.buckets.length;
+			this.buckets[(int) (ticks & this.mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * Unlinks the cancelled timeouts from their buckets
+	 */
+	private void removeCancelled() {
+		Timeout timeout;
+		while((timeout = this.cancelled.poll()) != null) {
+			if(timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	/**
+	 * Runs the timeouts of the bucket that are due on this round of the wheel
+	 * @param bucket Bucket of the current tick
+	 */
+	private void expire(Bucket bucket) {
+		Timeout timeout = bucket.head;
+		while(timeout != null) {
+			Timeout next = timeout.next;
+			if(timeout.rounds > 0) {
+				timeout.rounds--;
+			} else {
+				bucket.remove(timeout);
+				if(timeout.state.compareAndSet(PENDING, EXPIRED)) {
+					try {
+						timeout.task.run();
+					} catch(RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			timeout = next;
+		}
+	}
+}
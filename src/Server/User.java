@@ -1,37 +1,78 @@
 package Server;
 
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import ProtocolSocket.Frame;
+import ProtocolSocket.Header;
+import Metrics.MetricsRegistry;
 import ProtocolSocket.Packet;
+import ProtocolSocket.PacketDispatcher;
+import ProtocolSocket.PacketDispatcher.ErrorPolicy;
 import ProtocolSocket.ProtocolID;
 import ProtocolSocket.ProtocolSocket;
 
 public class User implements Runnable{
+	private static final Frame PONG = new Frame(new byte[0], ProtocolID.PONG);
+	private static final int MAX_USER_LIST_SUBSCRIPTIONS = 32;
 	private ProtocolSocket socket;
 	private String nickname;
+	private byte[] nicknameBytes;
 	private int ID;
-	private boolean alive;
+	private volatile boolean alive;
+	private final AtomicBoolean closed;
 	private ServerManager manager;
-	private Map<Integer, Channel> joinedChannels;
+	private final ChannelSet joinedChannels;
+	private final OutboundQueue outbound;
+	private SessionRegistry.Session session;
+	private boolean resumed;
+	private volatile boolean batching;
+	private volatile boolean answersPings;
+	private volatile boolean membershipChanges;
+	private Map<Integer, Long> resumeSequences;
+	private volatile boolean userListSubscriptions;
+	private final IntSet subscribedUserLists;
+	private final IntSet joiningChannels;
+	private volatile long lastRead;
+	private final AdmissionControl.Ticket ticket;
+	/**
+	 * Token bucket of the user packed into a single long, updated by the RateLimiter
+	 */
+	volatile long rateLimitState;
 	
 	/**
 	 * Initialize the user
 	 * @param manager The ServerManager
 	 * @param socket connection socket
 	 * @param ID Unique ID
+	 * @param ticket Admission of the connection, released on cleanup. Null if the connection was not admitted through AdmissionControl
 	 */
-	public User(ServerManager manager, ProtocolSocket socket, int ID) {
+	public User(ServerManager manager, ProtocolSocket socket, int ID, AdmissionControl.Ticket ticket) {
 		this.manager = manager;
+		this.subscribedUserLists = new IntSet();
+		this.joiningChannels = new IntSet();
 		this.socket = socket;
 		this.ID = ID;
 		this.nickname = null;
 		this.alive = true;
-		this.joinedChannels = new HashMap<>();
+		this.closed = new AtomicBoolean();
+		this.joinedChannels = new ChannelSet();
+		this.outbound = new OutboundQueue(this, socket, manager.getOutbound());
+		this.rateLimitState = manager.getRateLimiter().initialState();
+		this.lastRead = System.nanoTime();
+		this.ticket = ticket;
+	}
+	
+	/**
+	 * Getter for the time the last packet was received from the client
+	 * @return System.nanoTime() of the last received packet or of the connection if none has been received
+	 */
+	public long getLastRead() {
+		return this.lastRead;
 	}
 	
 	/**
@@ -43,16 +84,107 @@ public class User implements Runnable{
 	}
 	
 	/**
-	 * Closes the connection with a message
+	 * Getter for the session of the user
+	 * @return The session or null if the user has not chosen a nickname yet
+	 */
+	public SessionRegistry.Session getSession() {
+		return this.session;
+	}
+	
+	/**
+	 * Checks if the frames to the user can be packed into BATCH frames
+	 * @return True if the client announced that it unpacks BATCH frames
+	 */
+	public boolean acceptsBatches() {
+		return this.batching;
+	}
+	
+	/**
+	 * Checks if the user can be sent PING packets
+	 * @return True if the client announced that it answers PING packets
+	 */
+	public boolean answersPings() {
+		return this.answersPings;
+	}
+	
+	/**
+	 * Checks if the user can be sent MEMBERSHIP_CHANGES packets
+	 * @return True if the client announced that it understands MEMBERSHIP_CHANGES packets
+	 */
+	public boolean acceptsMembershipChanges() {
+		return this.membershipChanges;
+	}
+	
+	/**
+	 * Getter for the outbound queue of the user
+	 * @return Queue of the frames waiting to be written
+	 */
+	public OutboundQueue getOutbound() {
+		return this.outbound;
+	}
+	
+	/**
+	 * Closes the connection with a message. Anything still queued is dropped and
+	 * the connection is closed once the message has been written
 	 * @param message Message to send before closing
 	 */
 	public void close(String message) {
-		try{
-			this.socket.write(message, ProtocolID.CONNECTION_CLOSED);
-		}catch(Exception e){
-		    // 
+		this.alive = false;
+		this.outbound.closeWith(new Frame(message, ProtocolID.CONNECTION_CLOSED));
+	}
+	
+	/**
+	 * Checks if the connection of the user is still open
+	 * @return True if the user is connected
+	 */
+	public boolean isAlive() {
+		return this.alive;
+	}
+	
+	/**
+	 * Getter for the channels the user has joined
+	 * @return View of the joined channels
+	 */
+	Collection<Channel> getJoinedChannels() {
+		return this.joinedChannels.values();
+	}
+	
+	/**
+	 * Called by the channel on its shard when the user has been added to it
+	 * @param channel The joined channel
+	 */
+	void channelJoined(Channel channel) {
+		this.joinedChannels.put(channel);
+		if(!this.alive) {
+			// Disconnected while joining, cleanup() may have missed this channel
+			channel.userLeave(this);
+			return;
+		}
+		this.manager.getSessions().joined(this.session, channel.getName());
+		send(channel.getJoinFrame());
+	}
+	
+	/**
+	 * Called by the channel on its shard once a join requested by the user has been handled, whether the user was
+	 * added or not
+	 * @param channel The channel
+	 */
+	void joinHandled(Channel channel) {
+		this.joiningChannels.remove(channel.getID());
+	}
+	
+	/**
+	 * Called by the channel on its shard when the user has been removed from it. The session keeps
+	 * the channel if the user was disconnected so it can be rejoined on resume
+	 * @param channel The left channel
+	 */
+	void channelLeft(Channel channel) {
+		this.joinedChannels.remove(channel);
+		this.subscribedUserLists.remove(channel.getID());
+		if(this.alive) {
+			this.manager.getSessions().left(this.session, channel.getName());
+			send(new Frame(Integer.toString(channel.getID()), ProtocolID.LEAVE_CHANNEL));
 		}
-		cleanup();
 	}
 	
 	/**
@@ -64,12 +196,51 @@ public class User implements Runnable{
 	}
 	
 	/**
-	 * Closes the socket and sets the status to not connected
+	 * Getter for the nickname encoded once in UTF-8 so the messages of the user do not encode it again
+	 * @return Nickname of the user in UTF-8, must not be modified
+	 */
+	byte[] getNameBytes() {
+		return this.nicknameBytes;
+	}
+	
+	/**
+	 * Closes the socket and sets the status to not connected. Only the first call has an effect
 	 */
 	public void cleanup() {
-		this.socket.close();
+		if(!this.closed.compareAndSet(false, true)) {
+			return;
+		}
 		this.alive = false;
+		this.outbound.discard();
+		this.socket.close();
+		if(this.ticket != null) {
+			this.ticket.release();
+		}
 		this.manager.removeUser(this);
+		if(this.session != null) {
+			this.manager.getSessions().detach(this.session);
+		}
+	}
+	
+	/**
+	 * Queues a frame to the client
+	 * @param frame Frame to send
+	 * @return True if the frame was queued
+	 */
+	public boolean send(Frame frame) {
+		return this.alive && this.outbound.enqueue(frame);
+	}
+	
+	/**
+	 * Queues a traced channel message to the client
+	 * @param frame Frame to send
+	 * @param receiveTime System.nanoTime() when the message was received from its sender
+	 * @param trace Trace of the channel
+	 * @param channelID ID of the channel
+	 * @return True if the frame was queued
+	 */
+	public boolean sendTraced(Frame frame, long receiveTime, ChannelTrace trace, int channelID) {
+		return this.alive && this.outbound.enqueueTraced(frame, receiveTime, trace, channelID);
 	}
 	
 	/**
@@ -80,15 +251,31 @@ public class User implements Runnable{
 	 * @param message The message content
 	 */
 	public void sendMessage(int channel, String name, ProtocolID typeID, String message) {
-		if(!alive) {
-			return;
-		}
+		sendMessage(channel, name, typeID, message, 0);
+	}
+	
+	/**
+	 * Sends a message to the client with the given header flags
+	 * @param channel Channel ID where the message came from
+	 * @param name The name of the user that sent the message
+	 * @param typeID The type of the message 
+	 * @param message The message content
+	 * @param flags Header flags of the packet
+	 * @return True if the message was queued
+	 */
+	public boolean sendMessage(int channel, String name, ProtocolID typeID, String message, int flags) {
 		String data = channel + ":" + name + ":" + message;
-		try {
-			this.socket.write(data, typeID);
-		} catch (Exception e) {
-			cleanup();
-		}
+		return send(new Frame(data.getBytes(StandardCharsets.UTF_8), typeID, flags));
+	}
+	
+	/**
+	 * Sends the latency stamps of a traced message to the client
+	 * @param channel Channel ID where the traced message came from
+	 * @param receiveToEnqueue Nanoseconds from receiving the message until it was handed to this user
+	 * @param enqueueToWrite Nanoseconds it took to write the message to this user
+	 */
+	public void sendTrace(int channel, long receiveToEnqueue, long enqueueToWrite) {
+		sendMessage(channel, ProtocolID.TRACE, receiveToEnqueue + ":" + enqueueToWrite);
 	}
 	
 	/**
@@ -98,33 +285,62 @@ public class User implements Runnable{
 	 * @param message The message content
 	 */
 	public void sendMessage(int channel, ProtocolID typeID, String message) {
-		if (!alive) {
-			return;
-		}
-		String data = channel + ":" + message;
-		try {
-			this.socket.write(data.getBytes("UTF-8"), typeID);
-		} catch (Exception e) {
-			cleanup();
-		}
+		send(new Frame(channel + ":" + message, typeID));
 	}
 	/**
-	 * Reads the user nickname and joins the global channel
+	 * Reads the user nickname or the token of a session to resume. An unknown or expired token
+	 * falls back to the nickname sent with it. A resume is TOKEN:NICKNAME followed by a CHANNEL_ID:SEQUENCE line
+	 * for every channel the client has messages of, the messages after those are sent again
 	 * @return was nickname the nickname valid
 	 */
 	private boolean readNickname() {
 		try {
 			Packet namePacket = this.socket.readPacket();
-			String name = new String(namePacket.getData());
+			String name = new String(namePacket.getData(), StandardCharsets.UTF_8);
+			SessionRegistry sessions = this.manager.getSessions();
+			SessionRegistry.Session previous = null;
+			this.resumeSequences = new HashMap<>();
+			if(namePacket.getHeader().getType() == ProtocolID.SESSION_RESUME.ordinal()) {
+				String[] lines = name.split("\n");
+				name = lines[0];
+				for(int i = 1; i < lines.length; i++) {
+					int separator = lines[i].indexOf(":");
+					try {
+						this.resumeSequences.put(Integer.parseInt(lines[i].substring(0, separator)), Long.parseLong(lines[i].substring(separator + 1)));
+					} catch(RuntimeException e) {
+						// Malformed lines are ignored, the channel is rejoined without its history
+					}
+				}
+				int index = name.indexOf(":");
+				previous = index == -1 ? null : sessions.resume(name.substring(0, index));
+				name = previous == null ? name.substring(index + 1) : previous.getNickname();
+				// The old connection of the session may not have noticed that it is gone yet
+				User stale = previous == null ? null : this.manager.findUser(name);
+				if(stale != null && stale.getSession() == previous) {
+					stale.cleanup();
+					sessions.resume(previous.getToken());
+				}
+			}
 			if(!Channel.checkChannelNameValidity(name)) {
 				close("Nickname can only contain letters and numbers!");
 				return false;
 			}
-			if(!this.manager.isAvailableNickname(name)) {
+			if(previous == null && sessions.isReserved(name)) {
+				close("Nickname is already in use!");
+				return false;
+			}
+			if(!this.manager.reserveNickname(this, name)) {
 				close("Nickname is already in use!");
 				return false;
 			}
 			this.nickname = name;
+			this.nicknameBytes = name.getBytes(StandardCharsets.UTF_8);
+			this.resumed = previous != null;
+			this.session = this.resumed ? previous : sessions.create(name);
+			this.batching = (namePacket.getHeader().getFlags() & Header.FLAG_BATCH) != 0 && this.manager.getOutbound().isBatchingEnabled();
+			this.answersPings = (namePacket.getHeader().getFlags() & Header.FLAG_PING) != 0;
+			this.membershipChanges = (namePacket.getHeader().getFlags() & Header.FLAG_MEMBERSHIP_CHANGES) != 0;
+			send(new Frame(this.session.getToken(), ProtocolID.SESSION_TOKEN));
 		} catch (Exception e) {
 			cleanup();
 			return false;
@@ -132,68 +348,144 @@ public class User implements Runnable{
 		return true;
 	}
 	
+	/**
+	 * Creates the table of handlers for the packets a logged in user can send. The server shares one table between
+	 * all users. Malformed requests are protocol violations that disconnect the user, a failed heavy hitter report
+	 * is only dropped
+	 * @param registry Registry where the handler metrics are exported
+	 * @return The dispatcher
+	 */
+	static PacketDispatcher<User> createDispatcher(MetricsRegistry registry) {
+		PacketDispatcher<User> dispatcher = new PacketDispatcher<>(User::cleanup, registry);
+		dispatcher.register(ProtocolID.CHANNEL_BROADCAST, (user, packet) -> user.processBroadcastMessage(text(packet), packet.getReceiveTime()));
+		dispatcher.register(ProtocolID.LIST_USERS, (user, packet) -> user.processListUsers(text(packet)));
+		dispatcher.register(ProtocolID.LIST_CHANNELS, (user, packet) -> user.sendChannelList());
+		dispatcher.register(ProtocolID.JOIN_CHANNEL, (user, packet) -> user.joinUserToChannel(text(packet)));
+		dispatcher.register(ProtocolID.LEAVE_CHANNEL, (user, packet) -> user.leaveChannel(Integer.parseInt(text(packet))));
+		dispatcher.register(ProtocolID.USER_LIST_SUBSCRIBE, (user, packet) -> user.subscribeUserList(Integer.parseInt(text(packet))));
+		dispatcher.register(ProtocolID.USER_LIST_UNSUBSCRIBE, (user, packet) -> user.unsubscribeUserList(Integer.parseInt(text(packet))));
+		dispatcher.register(ProtocolID.PING, (user, packet) -> user.send(PONG));
+		dispatcher.register(ProtocolID.PRIVATE_MESSAGE, (user, packet) -> user.processPrivateMessage(text(packet)));
+		dispatcher.register(ProtocolID.ADMIN_HEAVY_HITTERS, (user, packet) -> user.processHeavyHitters(text(packet)), ErrorPolicy.IGNORE);
+		return dispatcher;
+	}
+	
+	/**
+	 * Decodes the payload of a packet
+	 * @param packet The packet
+	 * @return The payload as UTF-8 text, empty if the packet has no payload
+	 */
+	private static String text(Packet packet) {
+		return packet.getData() == null ? "" : new String(packet.getData(), StandardCharsets.UTF_8);
+	}
+	
 	/**
 	 * Processes the packet that has arrived
 	 * @param packet The packet that arrived
 	 */
 	private void processPacket(Packet packet) {
-		try{
-			int type = packet.getHeader().getType();
-			if (type == ProtocolID.CHANNEL_BROADCAST.ordinal()) {
-				processBroadcastMessage(new String(packet.getData(), StandardCharsets.UTF_8));
-			} else if (type == ProtocolID.LIST_USERS.ordinal()) {
-				processListUsers(new String(packet.getData(), StandardCharsets.UTF_8));
-			} else if (type == ProtocolID.LIST_CHANNELS.ordinal()) {
-				sendChannelList();
-			} else if (type == ProtocolID.JOIN_CHANNEL.ordinal()) {
-				joinUserToChannel(new String(packet.getData(), StandardCharsets.UTF_8));
-			} else if (type == ProtocolID.LEAVE_CHANNEL.ordinal()) {
-				leaveChannel(Integer.parseInt(new String(packet.getData(), StandardCharsets.UTF_8)));
-			}
-		} catch(Exception e){
+		this.manager.getHeavyHitters().userPacket(this);
+		// Broadcasts pay for their fan-out once the target channel is known
+		if (!this.manager.getRateLimiter().admit(this)) {
+			return;
+		}
+		this.manager.getDispatcher().dispatch(this, packet);
+	}
+	
+	/**
+	 * Sends the heavy hitter report to an admin. Requests from other users are ignored
+	 * @param request CHANNEL_ID:KIND where the channel ID is echoed back and kind is channels, users or empty for both
+	 */
+	private void processHeavyHitters(String request) {
+		if(!this.manager.isAdmin(this)) {
+			return;
+		}
+		int index = request.indexOf(":");
+		String channel = index == -1 ? Integer.toString(ServerManager.GLOBAL_CHANNEL_ID) : request.substring(0, index);
+		String kind = index == -1 ? request : request.substring(index + 1);
+		send(new Frame(channel + ":" + this.manager.getHeavyHitters().report(kind.trim()), ProtocolID.ADMIN_HEAVY_HITTERS));
+	}
+	
+	/**
+	 * Processes a received private message
+	 * @param data TO:MESSAGE where TO is the nickname of the recipient
+	 */
+	private void processPrivateMessage(String data) {
+		int index = data.indexOf(":");
+		if (index <= 0 || index == data.length() - 1) {
 			cleanup();
+			return;
 		}
+		this.manager.sendPrivateMessage(this, data.substring(0, index), data.substring(index + 1));
 	}
 	
 	/**
 	 * Removes the user from the given channel
 	 * @param channelID ID of the channel to leave from
-	 * @throws IOException 
-	 * @throws UnsupportedEncodingException 
 	 */
-	private void leaveChannel(int channelID) throws UnsupportedEncodingException, IOException {
+	private void leaveChannel(int channelID) {
 		Channel c = this.joinedChannels.get(channelID);
 		if(c != null) {
 			c.userLeave(this);
-			this.joinedChannels.remove(channelID);
-			this.socket.write(Integer.toString(channelID), ProtocolID.LEAVE_CHANNEL);
 		}
 	}
 	/**
-	 * Send the user list of users on the requested channel
+	 * Subscribes the user to the user list updates of a channel and sends the current list. The first subscription
+	 * switches the user to subscription mode, where the lists of the other channels are only sent on request.
+	 * Only channels that are joined or being joined can be subscribed to, at most MAX_USER_LIST_SUBSCRIPTIONS of them
+	 * @param channelID ID of the channel
+	 */
+	private void subscribeUserList(int channelID) {
+		this.userListSubscriptions = true;
+		Channel channel = this.joinedChannels.get(channelID);
+		if (channel == null && !this.joiningChannels.contains(channelID)) {
+			return;
+		}
+		if (!this.subscribedUserLists.contains(channelID) && this.subscribedUserLists.size() >= MAX_USER_LIST_SUBSCRIPTIONS) {
+			return;
+		}
+		this.subscribedUserLists.add(channelID);
+		if (channel != null) {
+			channel.requestUserList(this);
+		}
+	}
+	
+	/**
+	 * Unsubscribes the user from the user list updates of a channel
+	 * @param channelID ID of the channel
+	 */
+	private void unsubscribeUserList(int channelID) {
+		this.userListSubscriptions = true;
+		this.subscribedUserLists.remove(channelID);
+	}
+	
+	/**
+	 * Send the user list of users on the requested channel. CHANNEL_ID requests the whole list and
+	 * CHANNEL_ID:PREFIX:AFTER requests a page of the members sorted by their nickname
 	 * @param message The channel to request the user list from
 	 */
-	private void processListUsers(String message) throws Exception{
-		int channelID = Integer.parseInt(message);
+	private void processListUsers(String message) throws NumberFormatException {
+		String[] parts = message.split(":", 3);
+		int channelID = Integer.parseInt(parts[0]);
 		Channel channel = this.joinedChannels.get(channelID);
-		if (channel == null) {
-			this.socket.write(Integer.toString(channelID), ProtocolID.LIST_USERS);
-		} else {
-			List<User> users = channel.getJoinedUsers();
-			StringBuilder userList = new StringBuilder();
-			userList.append(channelID+":");
-			for(User u:users) {
-				userList.append(u.getName() + "\n");
+		if (parts.length == 3) {
+			if (channel == null) {
+				send(new Frame(channelID + ":" + parts[1] + ":" + parts[2] + ":0", ProtocolID.USER_PAGE));
+			} else {
+				channel.requestUserPage(this, parts[1], parts[2]);
 			}
-			String listStr = userList.toString().substring(0, userList.length() - 1);
-			this.socket.write(listStr, ProtocolID.LIST_USERS);
+		} else if (channel == null) {
+			send(new Frame(Integer.toString(channelID), ProtocolID.LIST_USERS));
+		} else {
+			channel.requestUserList(this);
 		}
 	}
 	/**
 	 * Processes the received broadcastmessage
 	 * @param data the message that was received
+	 * @param receiveTime System.nanoTime() when the message was received
 	 */
-	private void processBroadcastMessage(String data) throws NumberFormatException {
+	private void processBroadcastMessage(String data, long receiveTime) throws NumberFormatException {
 		int index = data.indexOf(":");
 		if (index == -1 || index == data.length() - 1) {
 			cleanup();
@@ -201,29 +493,22 @@ public class User implements Runnable{
 		int channelID = Integer.parseInt(data.substring(0, index));
 		String message = data.substring(index + 1);
 		Channel channel = this.joinedChannels.get(channelID);
-		if (channel != null) {
-			channel.broadcastMessage(this, message);
+		if (channel != null && this.manager.getRateLimiter().admitFanout(this, channel.getMemberCount())) {
+			channel.broadcastMessage(this, message, receiveTime);
 		}
 	}
 	
 	/**
-	 * Tries to join the user to the given channel if he is not already in it
+	 * Tries to join the user to the given channel if he is not already in it. The join runs on the
+	 * shard of the channel which sends JOIN_CHANNEL and the user list once the user has been added
 	 * @param channel Channel to join
-	 * @return Was the user added to channel
-	 */
-	private boolean joinUserToChannel(Channel channel) {
-		if (this.joinedChannels.containsKey(channel.getID()) == false && channel.userJoin(this)) {
-			this.joinedChannels.put(channel.getID(), channel);
-			try {
-				this.socket.write(new String(channel.getID() + ":" + channel.getName()), ProtocolID.JOIN_CHANNEL);
-			} catch (Exception e) {
-				cleanup();
-				return false;
-			}
-			sendListUsers(channel);
-			return true;
+	 */
+	private void joinUserToChannel(Channel channel) {
+		if (this.joinedChannels.contains(channel.getID()) == false) {
+			this.joiningChannels.add(channel.getID());
+			Long since = this.resumeSequences.remove(channel.getID());
+			channel.userJoin(this, since == null ? -1 : since);
 		}
-		return false;
 	}
 	
 	/**
@@ -238,46 +523,64 @@ public class User implements Runnable{
 	}
 	
 	/**
-	 * Sends the user a list of users on the given channel
+	 * Sends the user a list of users on the given channel after a membership change. A list of the same channel that is still
+	 * queued is replaced so the client only receives the newest one. Must be called on the shard of the channel
 	 * @param channel Channel whose users list
 	 */
 	public void sendListUsers(Channel channel) {
-		if(channel == null) {
+		sendListUsers(channel, false);
+	}
+	
+	/**
+	 * Sends the user a list of users on the given channel. In subscription mode a list that was not requested is only
+	 * sent if the user is subscribed to the channel. Must be called on the shard of the channel
+	 * @param channel Channel whose users list
+	 * @param requested True if the user asked for the list
+	 */
+	public void sendListUsers(Channel channel, boolean requested) {
+		if(channel == null || !this.alive) {
 			return;
 		}
-		List<User> users = channel.getJoinedUsers();
-		StringBuilder userList = new StringBuilder();
-		userList.append(channel.getID()+":");
-		for(User u:users) {
-			userList.append(u.getName() + "\n");
-		}
-		String listStr = userList.toString().substring(0, userList.length() - 1);
-		try {
-			this.socket.write(listStr.getBytes(StandardCharsets.UTF_8), ProtocolID.LIST_USERS);
-		} catch (Exception e) {
-			cleanup();
+		if(!requested && this.userListSubscriptions && !this.subscribedUserLists.contains(channel.getID())) {
+			return;
 		}
+		this.outbound.enqueue(channel.getUserListFrame(), OutboundQueue.conflationKey(ProtocolID.LIST_USERS, channel.getID()));
 	}
 	
 	/**
-	 * Sends the user the list of all visible channels
-	 * @throws UnsupportedEncodingException Won't be thrown
-	 * @throws IOException failed to send the message
+	 * Sends the user the list of all visible channels. A channel list that is still queued is replaced
 	 */
-	public void sendChannelList() throws UnsupportedEncodingException, IOException {
-		this.socket.write(this.manager.listChannelNames().getBytes(StandardCharsets.UTF_8), ProtocolID.LIST_CHANNELS);
+	public void sendChannelList() {
+		if(!this.alive) {
+			return;
+		}
+		this.outbound.enqueue(this.manager.getChannelListFrame(), OutboundQueue.conflationKey(ProtocolID.LIST_CHANNELS, 0));
 	}
 	@Override
 	public void run() {
 		try{
-			if(!readNickname()) {
+			ConnectionTimeouts timeouts = this.manager.getTimeouts();
+			TimingWheel.Timeout nicknameDeadline = timeouts.armNickname(this);
+			boolean named = readNickname();
+			ConnectionTimeouts.cancel(nicknameDeadline);
+			if(!named) {
 				return;
 			}
+			this.lastRead = System.nanoTime();
+			timeouts.startLiveness(this);
 			Channel global = this.manager.getGlobalChannel();
 			joinUserToChannel(global);
+			if(this.resumed) {
+				for(String channel : this.manager.getSessions().getChannels(this.session)) {
+					joinUserToChannel(channel);
+				}
+			}
+			// The resume is over, drop the map instead of keeping its table for the lifetime of the connection
+			this.resumeSequences = Collections.emptyMap();
 			sendChannelList();
 			while(this.alive) {
 				Packet packet = this.socket.readPacket();
+				this.lastRead = packet.getReceiveTime();
 				processPacket(packet);
 			}
 		} catch(Exception e){